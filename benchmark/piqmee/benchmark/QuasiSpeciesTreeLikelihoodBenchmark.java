@@ -0,0 +1,188 @@
+package piqmee.benchmark;
+
+import beast.base.evolution.likelihood.GenericTreeLikelihood;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.substitutionmodel.HKY;
+import beast.base.evolution.tree.Node;
+import beast.base.inference.State;
+import beast.base.inference.StateNode;
+import beast.base.inference.distribution.LogNormalDistributionModel;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.util.Randomizer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+import piqmee.evolution.branchratemodel.QuasiSpeciesUCRelaxedClockModel;
+import piqmee.likelihood.QuasiSpeciesTreeLikelihood2;
+import piqmee.likelihood.QuasiSpeciesTreeLikelihood3;
+import piqmee.tree.QuasiSpeciesTree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmark of calculateLogP() for the quasi-species tree likelihood variants.
+ *
+ * Every benchmark method performs one MCMC-like step: the state is stored,
+ * a proposal is made, the likelihood is recomputed and the proposal is rejected,
+ * so that the tree and parameters are identical at the start of each invocation.
+ * Three proposals are measured:
+ *   dirtyNode  - the height of one internal node is changed,
+ *   dirtyRate  - the relaxed clock rate category of one branch is changed,
+ *   filthy     - the whole tree is marked filthy and all partials are recomputed.
+ *
+ * Run with "ant benchmark", or pass JMH options through -Djmh.args="...",
+ * e.g. -Djmh.args="-p duplicates=10000 -p variant=likelihood3".
+ */
+@org.openjdk.jmh.annotations.State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class QuasiSpeciesTreeLikelihoodBenchmark {
+
+    /** likelihood implementation: likelihood, likelihood2, likelihood3 or classic */
+    @Param({"likelihood", "likelihood2", "likelihood3", "classic"})
+    public String variant;
+
+    @Param({"50"})
+    public int uniqueHaplotypes;
+
+    @Param({"0", "1000", "10000"})
+    public int duplicates;
+
+    @Param({"500"})
+    public int patterns;
+
+    @Param({"1", "4"})
+    public int siteCategories;
+
+    private QuasiSpeciesTree tree;
+    private IntegerParameter rateCategories;
+    private State state;
+    private GenericTreeLikelihood likelihood;
+
+    // internal nodes other than the root, i.e. those whose height can be moved freely
+    private Node[] movableNodes;
+    private int nextNode;
+    private int nextBranch;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        System.setProperty("java.only", "true");
+        Randomizer.setSeed(127);
+
+        SyntheticQuasiSpeciesData data = new SyntheticQuasiSpeciesData(uniqueHaplotypes, duplicates, patterns, 127);
+        tree = data.newTree();
+
+        Frequencies freqs = new Frequencies();
+        freqs.initByName("frequencies", "0.3 0.2 0.2 0.3", "estimate", false);
+        HKY hky = new HKY();
+        hky.initByName("kappa", "4.0", "frequencies", freqs);
+
+        SiteModel siteModel = new SiteModel();
+        if (siteCategories > 1)
+            siteModel.initByName("mutationRate", "1.0", "gammaCategoryCount", siteCategories,
+                    "shape", "0.5", "substModel", hky);
+        else
+            siteModel.initByName("mutationRate", "1.0", "substModel", hky);
+
+        LogNormalDistributionModel uldistr = new LogNormalDistributionModel();
+        uldistr.initByName("M", "1.0", "S", "0.3", "meanInRealSpace", true);
+        rateCategories = new IntegerParameter("0");
+        QuasiSpeciesUCRelaxedClockModel branchModel = new QuasiSpeciesUCRelaxedClockModel();
+        branchModel.initByName("distr", uldistr, "rateCategories", rateCategories,
+                "numberOfDiscreteRates", 10, "tree", tree);
+
+        likelihood = newLikelihood(variant);
+        likelihood.initByName("data", data.getAlignment(), "tree", tree, "siteModel", siteModel,
+                "branchRateModel", branchModel);
+
+        List<StateNode> stateNodes = new ArrayList<>();
+        stateNodes.add(tree);
+        stateNodes.add(rateCategories);
+        state = new State();
+        state.initByName("stateNode", stateNodes);
+        state.initialise();
+        state.setPosterior(likelihood);
+        state.robustlyCalcPosterior(likelihood);
+
+        List<Node> internalNodes = new ArrayList<>();
+        for (Node node : tree.getInternalNodes()) {
+            if (!node.isRoot())
+                internalNodes.add(node);
+        }
+        movableNodes = internalNodes.toArray(new Node[0]);
+    }
+
+    private static GenericTreeLikelihood newLikelihood(String variant) {
+        switch (variant) {
+            case "likelihood":
+                return new piqmee.likelihood.QuasiSpeciesTreeLikelihood();
+            case "likelihood2":
+                return new QuasiSpeciesTreeLikelihood2();
+            case "likelihood3":
+                return new QuasiSpeciesTreeLikelihood3();
+            case "classic":
+                return new piqmee.classiclikelihood.QuasiSpeciesTreeLikelihood();
+            default:
+                throw new IllegalArgumentException("Unknown likelihood variant " + variant);
+        }
+    }
+
+    @Benchmark
+    public double dirtyNode() {
+        state.store(-1);
+
+        // nodes are looked up by number, as restore swaps the node arrays of the tree
+        Node node = tree.getNode(movableNodes[nextNode].getNr());
+        nextNode = (nextNode + 1) % movableNodes.length;
+        // a small move towards the parent keeps the node below any haplotype passing through it
+        double upper = node.getParent().getHeight();
+        node.setHeight(node.getHeight() + (upper - node.getHeight()) * 1e-3);
+
+        return recalculateAndReject();
+    }
+
+    @Benchmark
+    public double dirtyRate() {
+        state.store(-1);
+
+        int branch = nextBranch;
+        nextBranch = (nextBranch + 1) % rateCategories.getDimension();
+        int category = rateCategories.getValue(branch);
+        rateCategories.setValue(branch, (category + 1) % (rateCategories.getUpper() + 1));
+
+        return recalculateAndReject();
+    }
+
+    @Benchmark
+    public double filthy() {
+        state.store(-1);
+
+        tree.startEditing(null);
+        tree.setEverythingDirty(true);
+
+        return recalculateAndReject();
+    }
+
+    private double recalculateAndReject() {
+        state.storeCalculationNodes();
+        state.checkCalculationNodesDirtiness();
+        double logP = likelihood.calculateLogP();
+        state.restore();
+        state.restoreCalculationNodes();
+        return logP;
+    }
+}
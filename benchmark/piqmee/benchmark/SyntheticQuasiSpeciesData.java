@@ -0,0 +1,137 @@
+package piqmee.benchmark;
+
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.alignment.Sequence;
+import beast.base.evolution.alignment.TaxonSet;
+import beast.base.evolution.tree.TraitSet;
+import piqmee.tree.QuasiSpeciesTree;
+import piqmee.tree.QuasiSpeciesTreeFromNewick;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generator of synthetic quasi-species data sets for the benchmarks:
+ * a random coalescent-like tree over the unique haplotypes, random
+ * nucleotide sequences for each haplotype, and a haplotypeCounts trait
+ * spreading the requested number of duplicates evenly over the haplotypes.
+ */
+public class SyntheticQuasiSpeciesData {
+
+    private static final String NUCLEOTIDES = "ACGT";
+
+    final private Alignment alignment;
+    final private TaxonSet taxonSet;
+    final private TraitSet haplotypeCounts;
+    final private String newick;
+
+    /**
+     * @param uniqueHaplotypes number of unique haplotypes (tips of the qs tree)
+     * @param duplicates       total number of duplicate sequences over all haplotypes
+     * @param sites            number of alignment sites
+     * @param seed             seed of the generator, so that every fork sees the same data
+     */
+    public SyntheticQuasiSpeciesData(int uniqueHaplotypes, int duplicates, int sites, long seed) {
+        if (uniqueHaplotypes < 2)
+            throw new IllegalArgumentException("At least two unique haplotypes are needed.");
+
+        Random random = new Random(seed);
+
+        List<Sequence> seqList = new ArrayList<>();
+        StringBuilder traitSB = new StringBuilder();
+        for (int i = 0; i < uniqueHaplotypes; i++) {
+            String taxonID = "t" + i;
+            seqList.add(new Sequence(taxonID, randomSequence(random, sites)));
+
+            int count = 1 + duplicates / uniqueHaplotypes + (i < duplicates % uniqueHaplotypes ? 1 : 0);
+            if (i > 0)
+                traitSB.append(",");
+            traitSB.append(taxonID).append("=").append(count);
+        }
+
+        alignment = new Alignment(seqList, "nucleotide");
+        taxonSet = new TaxonSet(alignment);
+        haplotypeCounts = new TraitSet();
+        haplotypeCounts.initByName(
+                "traitname", "qscounts",
+                "taxa", taxonSet,
+                "value", traitSB.toString());
+
+        newick = randomNewick(random, uniqueHaplotypes);
+    }
+
+    /**
+     * Builds a fresh quasi-species tree from the generated data.
+     * Each benchmark trial gets its own tree so that trials do not share state.
+     *
+     * @return initialised quasi-species tree
+     */
+    public QuasiSpeciesTree newTree() {
+        QuasiSpeciesTree tree = new QuasiSpeciesTreeFromNewick();
+
+        tree.setInputValue("newick", newick);
+        tree.setInputValue("adjustTipHeights", "false");
+        tree.setInputValue("taxonset", taxonSet);
+        tree.setInputValue("haplotypeCounts", haplotypeCounts);
+        tree.setInputValue("data", alignment);
+        tree.initAndValidate();
+
+        return tree;
+    }
+
+    public Alignment getAlignment() {
+        return alignment;
+    }
+
+    /**
+     * Draw a random nucleotide sequence. Sequences of distinct haplotypes
+     * are kept distinct by construction of the tree from unique haplotypes,
+     * with high probability already for a handful of sites.
+     */
+    private static String randomSequence(Random random, int sites) {
+        StringBuilder sb = new StringBuilder(sites);
+        for (int i = 0; i < sites; i++)
+            sb.append(NUCLEOTIDES.charAt(random.nextInt(NUCLEOTIDES.length())));
+        return sb.toString();
+    }
+
+    /**
+     * Draw a random ultrametric tree by merging two random lineages at a time
+     * after exponentially distributed waiting times, as in a coalescent.
+     */
+    private static String randomNewick(Random random, int tips) {
+        List<String> lineages = new ArrayList<>();
+        List<Double> heights = new ArrayList<>();
+        for (int i = 0; i < tips; i++) {
+            lineages.add("t" + i);
+            heights.add(0.0);
+        }
+
+        double time = 0;
+        while (lineages.size() > 1) {
+            int k = lineages.size();
+            time += -Math.log(1.0 - random.nextDouble()) / (k * (k - 1) / 2.0);
+
+            int left = random.nextInt(k);
+            int right = random.nextInt(k - 1);
+            if (right >= left)
+                right++;
+
+            String merged = "(" + lineages.get(left) + ":" + (time - heights.get(left)) + ","
+                    + lineages.get(right) + ":" + (time - heights.get(right)) + ")";
+
+            // remove the higher index first so that the lower one stays valid
+            int first = Math.max(left, right);
+            int second = Math.min(left, right);
+            lineages.remove(first);
+            heights.remove(first);
+            lineages.remove(second);
+            heights.remove(second);
+
+            lineages.add(merged);
+            heights.add(time);
+        }
+        return lineages.get(0) + ":0.0;";
+    }
+}
@@ -8,13 +8,13 @@ import beast.base.evolution.alignment.Alignment;
 import beast.base.evolution.alignment.FilteredAlignment;
 import beast.base.evolution.branchratemodel.BranchRateModel;
 import beast.base.evolution.branchratemodel.StrictClockModel;
-import beast.base.evolution.substitutionmodel.EigenDecomposition;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.TreeInterface;
 import beast.base.evolution.likelihood.LikelihoodCore;
 import beast.base.evolution.likelihood.GenericTreeLikelihood;
 import beast.base.evolution.sitemodel.SiteModel;
 import beast.base.evolution.substitutionmodel.SubstitutionModel;
+import piqmee.likelihood.NoChangeRates;
 import piqmee.tree.QuasiSpeciesNode;
 import piqmee.tree.QuasiSpeciesTree;
 
@@ -70,7 +70,6 @@ public class QuasiSpeciesTreeLikelihood extends GenericTreeLikelihood {
      */
     double[] rates;
     double[] storedRates;
-    double[] tmpevectimesevals;
     /**
      * flag to indicate ascertainment correction should be applied *
      */
@@ -166,7 +165,6 @@ public class QuasiSpeciesTreeLikelihood extends GenericTreeLikelihood {
 
         rates = new double[nStates];
         storedRates = new double [nStates];
-        tmpevectimesevals = new double[nStates * nStates];
         getNoChangeRates(rates);
 
         if (alignment.isAscertained) {
@@ -182,22 +180,7 @@ public class QuasiSpeciesTreeLikelihood extends GenericTreeLikelihood {
      *
      */
     public void getNoChangeRates(double[] rates) {
-        EigenDecomposition eigenDecomposition = substitutionModel.getEigenDecomposition(null);
-        double[] evec = eigenDecomposition.getEigenVectors();
-        double[] eval = eigenDecomposition.getEigenValues();
-        double[] ievc = eigenDecomposition.getInverseEigenVectors();
-        for (int i = 0; i < nStates; i++) {
-            for (int j = 0; j < nStates; j++) {
-                tmpevectimesevals[i * nStates + j] = evec[i * nStates + j] * eval[j];
-            }
-        }
-        for (int i = 0; i < nStates; i++) {
-            rates[i] = 0;
-            for (int j = 0; j < nStates; j++) {
-                rates[i] += tmpevectimesevals[i * nStates + j] * ievc[j * nStates + i];
-            }
-            //            System.out.println(rates[i]);
-        }
+        NoChangeRates.getNoChangeRates(substitutionModel, nStates, rates);
     }
 
     /**
@@ -0,0 +1,93 @@
+package piqmee.distance;
+
+import beast.base.core.Description;
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.distance.Distance;
+
+import java.util.stream.IntStream;
+
+@Description("Same distance as DifferenceCount, computed on bitsets: each taxon is encoded once as one bitset " +
+             "per state over the site patterns, and differences are counted with popcount over 64-bit words. " +
+             "Pattern weights are handled by splitting them into binary digits, one pattern mask per digit.")
+public class BitsetDifferenceCount extends Distance.Base {
+
+    protected StateBitsets bitsets;
+    // weightMasks[k][word]: patterns whose weight has binary digit k set
+    protected long[][] weightMasks;
+
+    @Override
+    public void setPatterns(Alignment patterns) {
+        super.setPatterns(patterns);
+
+        int[] taxa = new int[patterns.getTaxonCount()];
+        for (int i = 0; i < taxa.length; i++)
+            taxa[i] = i;
+        bitsets = new StateBitsets(patterns, taxa);
+
+        int maxWeight = 0;
+        for (int k = 0; k < patterns.getPatternCount(); k++)
+            maxWeight = Math.max(maxWeight, patterns.getPatternWeight(k));
+        weightMasks = new long[32 - Integer.numberOfLeadingZeros(maxWeight)][bitsets.getWordCount()];
+        for (int k = 0; k < patterns.getPatternCount(); k++) {
+            int weight = patterns.getPatternWeight(k);
+            for (int digit = 0; digit < weightMasks.length; digit++) {
+                if ((weight & (1 << digit)) != 0)
+                    weightMasks[digit][k >>> 6] |= 1L << (k & 63);
+            }
+        }
+    }
+
+    /**
+     * Calculate a pairwise distance, as DifferenceCount.pairwiseDistance
+     */
+    @Override
+    public double pairwiseDistance(int taxon1, int taxon2) {
+        long dist = 0;
+        for (int w = 0; w < bitsets.getWordCount(); w++) {
+            long differing = bitsets.differingPatterns(taxon1, taxon2, w);
+            if (differing == 0)
+                continue;
+            for (int digit = 0; digit < weightMasks.length; digit++)
+                dist += ((long) Long.bitCount(differing & weightMasks[digit][w])) << digit;
+        }
+        return dist;
+    }
+
+    /**
+     * Calculate a pairwise difference (0 = identical, 1 = not identical), as DifferenceCount.pairwiseDifference
+     */
+    public double pairwiseDifference(int taxon1, int taxon2, boolean collapseIdenticalUptoMissingData) {
+        if (collapseIdenticalUptoMissingData)
+            return bitsets.isIdenticalUpToMissingData(taxon1, taxon2) ? 0 : 1;
+        for (int w = 0; w < bitsets.getWordCount(); w++) {
+            if (bitsets.differingPatterns(taxon1, taxon2, w) != 0)
+                return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Distances between all pairs of taxa, computed in parallel, in condensed form:
+     * the upper triangle of the distance matrix row by row, i.e. the distance between
+     * taxa i < j is at index condensedIndex(i, j, taxonCount).
+     *
+     * @return condensed distance array of length n * (n - 1) / 2
+     */
+    public double[] pairwiseDistances() {
+        int n = patterns.getTaxonCount();
+        double[] distances = new double[(int) ((long) n * (n - 1) / 2)];
+        IntStream.range(0, n).parallel().forEach(i -> {
+            int offset = condensedIndex(i, i + 1, n);
+            for (int j = i + 1; j < n; j++)
+                distances[offset++] = pairwiseDistance(i, j);
+        });
+        return distances;
+    }
+
+    /**
+     * @return index of the pair of taxa i < j in a condensed distance array over n taxa
+     */
+    public static int condensedIndex(int i, int j, int n) {
+        return (int) ((long) i * n - (long) i * (i + 1) / 2 + (j - i - 1));
+    }
+}
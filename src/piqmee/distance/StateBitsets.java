@@ -0,0 +1,177 @@
+package piqmee.distance;
+
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.datatype.DataType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Bit-sliced encoding of the site patterns of a set of taxa: for every taxon and every
+ * state, a bitset over the patterns marks the patterns in which the taxon's character
+ * can be that state. Unambiguous characters set a single state, ambiguous characters
+ * set all the states they stand for.
+ * Two sequences share a state at a pattern iff the AND of their bitsets is non-zero there,
+ * so sequences can be compared 64 patterns at a time.
+ */
+public class StateBitsets {
+
+    // rows of the encoding, in the order given to the constructor
+    final protected int[] taxa;
+    final protected int stateCount;
+    final protected int patternCount;
+    // number of 64-bit words per state bitset
+    final protected int words;
+    // bits[row][state * words + word]
+    final protected long[][] bits;
+    // unambiguous[row][word]: patterns in which the character of the row is not an ambiguous code
+    final protected long[][] unambiguous;
+    // mask of the patterns in use in each word
+    final protected long[] patternMask;
+
+    /**
+     * @param patterns alignment providing the site patterns
+     * @param taxa     taxon indices (into the patterns) of the sequences to encode
+     */
+    public StateBitsets(Alignment patterns, int[] taxa) {
+        DataType dataType = patterns.getDataType();
+        this.taxa = taxa.clone();
+        stateCount = dataType.getStateCount();
+        patternCount = patterns.getPatternCount();
+        words = (patternCount + 63) / 64;
+
+        patternMask = new long[words];
+        for (int k = 0; k < patternCount; k++)
+            patternMask[k >>> 6] |= 1L << (k & 63);
+
+        // states of each code, looked up once per code rather than once per pattern
+        List<int[]> statesForCode = new ArrayList<>();
+        bits = new long[taxa.length][stateCount * words];
+        unambiguous = new long[taxa.length][words];
+        for (int k = 0; k < patternCount; k++) {
+            int[] pattern = patterns.getPattern(k);
+            long bit = 1L << (k & 63);
+            int word = k >>> 6;
+            for (int row = 0; row < taxa.length; row++) {
+                int code = pattern[taxa[row]];
+                while (statesForCode.size() <= code)
+                    statesForCode.add(null);
+                int[] states = statesForCode.get(code);
+                if (states == null) {
+                    states = dataType.getStatesForCode(code);
+                    statesForCode.set(code, states);
+                }
+                for (int state : states)
+                    bits[row][state * words + word] |= bit;
+                if (!dataType.isAmbiguousCode(code))
+                    unambiguous[row][word] |= bit;
+            }
+        }
+    }
+
+    /**
+     * @return number of encoded sequences
+     */
+    public int getRowCount() {
+        return taxa.length;
+    }
+
+    /**
+     * Equivalent to DifferenceCount.pairwiseDifference(taxa[row1], taxa[row2], true) == 0:
+     * the sequences are identical if at every pattern their characters have at least one state in common.
+     *
+     * @return true if the sequences in rows row1 and row2 are identical up to missing data
+     */
+    public boolean isIdenticalUpToMissingData(int row1, int row2) {
+        long[] bits1 = bits[row1];
+        long[] bits2 = bits[row2];
+        for (int w = 0; w < words; w++) {
+            long common = 0;
+            for (int offset = w; offset < bits1.length; offset += words)
+                common |= bits1[offset] & bits2[offset];
+            if (common != patternMask[w])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Patterns in word w of the bitsets in which the two sequences share no state
+     * while both characters are unambiguous, i.e. the patterns counted by DifferenceCount.pairwiseDistance
+     *
+     * @return bitset of differing patterns
+     */
+    public long differingPatterns(int row1, int row2, int w) {
+        long[] bits1 = bits[row1];
+        long[] bits2 = bits[row2];
+        long common = 0;
+        for (int offset = w; offset < bits1.length; offset += words)
+            common |= bits1[offset] & bits2[offset];
+        return unambiguous[row1][w] & unambiguous[row2][w] & ~common;
+    }
+
+    public int getWordCount() {
+        return words;
+    }
+
+    public int getPatternCount() {
+        return patternCount;
+    }
+
+    /**
+     * Find all pairs of rows that are identical up to missing data and involve at least one candidate row,
+     * comparing the rows in parallel on the common fork-join pool.
+     *
+     * @param candidates rows to compare against all other rows, e.g. the sequences with ambiguous characters
+     * @return pairs {i, j} with i < j
+     */
+    public List<int[]> findIdenticalPairs(boolean[] candidates) {
+        return ForkJoinPool.commonPool().invoke(new IdenticalPairsTask(candidates, 0, taxa.length));
+    }
+
+    /**
+     * Fork-join task comparing the candidate rows in [from, to) against all other rows
+     */
+    private class IdenticalPairsTask extends RecursiveTask<List<int[]>> {
+        private static final long serialVersionUID = 1L;
+        // number of comparisons below which a task is not split further
+        private static final int THRESHOLD = 1 << 14;
+
+        final private boolean[] candidates;
+        final private int from, to;
+
+        IdenticalPairsTask(boolean[] candidates, int from, int to) {
+            this.candidates = candidates;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected List<int[]> compute() {
+            if (to - from > 1 && (long) (to - from) * taxa.length > THRESHOLD) {
+                int mid = (from + to) >>> 1;
+                IdenticalPairsTask left = new IdenticalPairsTask(candidates, from, mid);
+                left.fork();
+                List<int[]> pairs = new IdenticalPairsTask(candidates, mid, to).compute();
+                pairs.addAll(left.join());
+                return pairs;
+            }
+
+            List<int[]> pairs = new ArrayList<>();
+            for (int i = from; i < to; i++) {
+                if (!candidates[i])
+                    continue;
+                for (int j = 0; j < taxa.length; j++) {
+                    // pairs of candidates are only checked once
+                    if (j == i || (candidates[j] && j < i))
+                        continue;
+                    if (isIdenticalUpToMissingData(i, j))
+                        pairs.add(new int[] {Math.min(i, j), Math.max(i, j)});
+                }
+            }
+            return pairs;
+        }
+    }
+}
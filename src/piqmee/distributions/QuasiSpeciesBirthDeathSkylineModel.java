@@ -15,7 +15,6 @@ import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.stream.IntStream;
 
 /**
  *  @author Veronika Boskova created on 26/06/2015
@@ -45,6 +44,40 @@ public class QuasiSpeciesBirthDeathSkylineModel extends BirthDeathSkylineModel {
     int[] nrqsattachments;
     int[] nrqslineages;
     int[] indexes;
+    // incremental bookkeeping for logNumberOfQSTrees: INT holds the internal node heights as last seen,
+    //  INTposition the position of each internal node in indexes, INThaplo the haplotype continuing through it
+    //  and haploChanged flags the haplotypes whose gamma contribution has to be recomputed
+    int[] INTposition;
+    int[] INThaplo;
+    boolean[] haploChanged;
+    boolean sortedTimesValid;
+    // merge buffer for sorting indexes
+    int[] indexBuffer;
+    // stored copies of the sorted order, so that a rejected proposal does not need a re-sort
+    double[] storedINT;
+    double[] storedAllTimes;
+    int[] storedIndexes;
+    int[] storedINTposition;
+    int[] storedINThaplo;
+    boolean storedSortedTimesValid;
+    // runs shorter than this are sorted by insertion before merging
+    private static final int INSERTION_SORT_RUN = 16;
+
+    // lineage-through-time profile for processLastTerm, evaluated at the interval boundaries profileTimes:
+    //  samplingCountAtOrAbove[i] is the number of sampled copies with sampling time >= uniqueSampTimes[i],
+    //  attachmentsAbove[h][j] the number of attachments of haplotype h above profileTimes[j] and
+    //  totalAttachmentsAbove[j] their sum over all haplotypes
+    int[] samplingCountAtOrAbove;
+    double[] profileTimes;
+    double[] storedProfileTimes;
+    int[][] attachmentsAbove;
+    int[][] storedAttachmentsAbove;
+    int[] totalAttachmentsAbove;
+    int[] storedTotalAttachmentsAbove;
+    // haplotypes whose attachmentsAbove row has been swapped with its stored copy since the last store()
+    boolean[] profileRowChanged;
+    int[] profileJournal;
+    int profileJournalSize;
 
     @Override
     public void initAndValidate() {
@@ -83,6 +116,34 @@ public class QuasiSpeciesBirthDeathSkylineModel extends BirthDeathSkylineModel {
         nrqsattachments = new int[allTimes.length];
         nrqslineages = new int[allTimes.length];
         indexes = new int[INT.length];
+        INTposition = new int[INT.length];
+        INThaplo = new int[INT.length];
+        haploChanged = new boolean[treeInput.get().getLeafNodeCount()];
+        sortedTimesValid = false;
+        indexBuffer = new int[INT.length];
+        storedINT = new double[INT.length];
+        storedAllTimes = new double[allTimes.length];
+        storedIndexes = new int[INT.length];
+        storedINTposition = new int[INT.length];
+        storedINThaplo = new int[INT.length];
+        storedSortedTimesValid = false;
+
+        // the sampling times never change, so their contribution to the lineage counts is fixed
+        samplingCountAtOrAbove = new int[uniqueSampTimes.length];
+        for (int i = 0; i < treeInput.get().getLeafNodeCount(); i++) {
+            QuasiSpeciesNode node = (QuasiSpeciesNode) treeInput.get().getNode(i);
+            double[] tipTimes = node.getTipTimesList();
+            int[] tipTimesCount = node.getTipTimesCountList();
+            for (int j = 0; j < tipTimes.length; j++)
+                samplingCountAtOrAbove[findDescending(uniqueSampTimes, tipTimes[j])] += tipTimesCount[j];
+        }
+        for (int i = 1; i < samplingCountAtOrAbove.length; i++)
+            samplingCountAtOrAbove[i] += samplingCountAtOrAbove[i - 1];
+        profileTimes = null;
+        storedProfileTimes = null;
+        profileRowChanged = new boolean[treeInput.get().getLeafNodeCount()];
+        profileJournal = new int[treeInput.get().getLeafNodeCount()];
+        profileJournalSize = 0;
 
         if(SAModel || r!=null)
             throw new IllegalArgumentException("The sampled ancestor model has not been implemented to work with quasispecies model yet");
@@ -185,6 +246,34 @@ public class QuasiSpeciesBirthDeathSkylineModel extends BirthDeathSkylineModel {
      *
      */
     public double logNumberOfQSTrees(TreeInterface tree) {
+        updateTimes(tree);
+        return calculateLogNumberOfQSTrees(tree);
+    }
+
+    /**
+     * Bring the sorted internal node and merged time arrays up to date with the tree
+     *
+     */
+    private void updateTimes(TreeInterface tree) {
+        int nrTips = tree.getLeafNodeCount();
+        int nrINTnodes = tree.getInternalNodeCount();
+
+        // only need to update allTimes if an internal node changed
+        if (!sortedTimesValid) {
+            sortTimes(tree, nrTips, nrINTnodes);
+            // nothing has been computed yet, so every haplotype needs its gamma contribution
+            Arrays.fill(haploChanged, true);
+            sortedTimesValid = true;
+        } else if (tree.somethingIsDirty()) {
+            updateSortedTimes(tree, nrTips, nrINTnodes);
+        }
+    }
+
+    /**
+     * Number of full topologies the QS tree represents, assuming the time arrays are up to date
+     *
+     */
+    private double calculateLogNumberOfQSTrees(TreeInterface tree) {
 
         QuasiSpeciesTree qsTree = (QuasiSpeciesTree) tree;
 
@@ -197,27 +286,7 @@ public class QuasiSpeciesBirthDeathSkylineModel extends BirthDeathSkylineModel {
 
         // times arrays
         int nrTips = tree.getLeafNodeCount();
-        int nrINTnodes = tree.getInternalNodeCount();
-
-        // only need to recalculate allTimes if an internal node changed
-        if (tree.somethingIsDirty()) {
-            // fill time arrays
-            for (int i = nrTips; i < nrTips + nrINTnodes; i++) {
-                // internal node, add its height to INT
-                INT[i - nrTips] = ((tree.getNode(i)).getHeight());
-            }
 
-            // make array of sort indexes for INT --- for checking later if the node belonging to this height has QS passing through
-            // get in descending order (so compare --> -INT)
-            indexes = IntStream.range(0, INT.length).boxed()
-                    .sorted((i, j) -> ((Double) (-INT[i])).compareTo(-INT[j])).mapToInt(ele -> ele).toArray();
-
-            // sort time arrays in descending order
-            //sortListDescending(INT); RRB: INT is not used in sorted form, but allTimes is, so only sort allTimes
-            System.arraycopy(uniqueSampTimes, 0, allTimes, 0, uniqueSampTimes.length);
-            System.arraycopy(INT, 0, allTimes, uniqueSampTimes.length, INT.length);
-            sortListDescending(allTimes);
-        }
         if (logNumberOfQSTrees == null) {
             logNumberOfQSTrees = new double[tree.getExternalNodes().size()];
             storedLogNumberOfQSTrees = new double[logNumberOfQSTrees.length];
@@ -267,6 +336,176 @@ public class QuasiSpeciesBirthDeathSkylineModel extends BirthDeathSkylineModel {
     }
 
 
+    /**
+     * Fill INT with the internal node heights and sort indexes and allTimes from scratch
+     *
+     */
+    private void sortTimes(TreeInterface tree, int nrTips, int nrINTnodes) {
+        // fill time arrays
+        for (int i = nrTips; i < nrTips + nrINTnodes; i++) {
+            // internal node, add its height to INT
+            INT[i - nrTips] = ((tree.getNode(i)).getHeight());
+            INThaplo[i - nrTips] = ((QuasiSpeciesNode) tree.getNode(i)).getContinuingHaploName();
+        }
+
+        // make array of sort indexes for INT --- for checking later if the node belonging to this height has QS passing through
+        // get in descending order
+        sortIndexesDescending();
+        for (int p = 0; p < indexes.length; p++)
+            INTposition[indexes[p]] = p;
+
+        // allTimes in descending order is the merge of the (sorted) sampling times and the sorted internal node times
+        int s = 0;
+        int p = 0;
+        for (int t = 0; t < allTimes.length; t++) {
+            if (p == indexes.length || (s < uniqueSampTimes.length && uniqueSampTimes[s] >= INT[indexes[p]]))
+                allTimes[t] = uniqueSampTimes[s++];
+            else
+                allTimes[t] = INT[indexes[p++]];
+        }
+    }
+
+    /**
+     * Sort indexes by descending INT without allocating: insertion sort of short runs,
+     * followed by a bottom-up merge through indexBuffer. The sort is stable.
+     *
+     */
+    private void sortIndexesDescending() {
+        int n = indexes.length;
+        for (int i = 0; i < n; i++)
+            indexes[i] = i;
+
+        for (int low = 0; low < n; low += INSERTION_SORT_RUN) {
+            int high = Math.min(low + INSERTION_SORT_RUN, n);
+            for (int i = low + 1; i < high; i++) {
+                int index = indexes[i];
+                int j = i - 1;
+                while (j >= low && INT[indexes[j]] < INT[index]) {
+                    indexes[j + 1] = indexes[j];
+                    j--;
+                }
+                indexes[j + 1] = index;
+            }
+        }
+
+        int[] from = indexes;
+        int[] to = indexBuffer;
+        for (int width = INSERTION_SORT_RUN; width < n; width *= 2) {
+            for (int low = 0; low < n; low += 2 * width) {
+                int mid = Math.min(low + width, n);
+                int high = Math.min(low + 2 * width, n);
+                int i = low;
+                int j = mid;
+                for (int k = low; k < high; k++) {
+                    // take from the left run on ties to keep the sort stable
+                    if (j == high || (i < mid && INT[from[i]] >= INT[from[j]]))
+                        to[k] = from[i++];
+                    else
+                        to[k] = from[j++];
+                }
+            }
+            int[] tmp = from;
+            from = to;
+            to = tmp;
+        }
+        if (from != indexes)
+            System.arraycopy(from, 0, indexes, 0, n);
+    }
+
+    /**
+     * Bring indexes and allTimes up to date with the current internal node heights.
+     * Nodes whose height moved are shifted to their new position in place; only when more nodes
+     * moved than an in place update can handle cheaper than a sort, the arrays are sorted again.
+     * The haplotypes continuing through a node that moved or changed haplotype are flagged for recalculation.
+     *
+     */
+    private void updateSortedTimes(TreeInterface tree, int nrTips, int nrINTnodes) {
+        // each in place move costs at most O(n), so beyond ~log2(n) moves a full sort is cheaper
+        int maxMoves = 32 - Integer.numberOfLeadingZeros(nrINTnodes);
+        int moves = 0;
+        for (int i = 0; i < nrINTnodes; i++) {
+            QuasiSpeciesNode node = (QuasiSpeciesNode) tree.getNode(i + nrTips);
+            double height = node.getHeight();
+            int haplo = node.getContinuingHaploName();
+            if (height == INT[i] && haplo == INThaplo[i])
+                continue;
+
+            // the gamma contribution of both the old and the new haplotype through this node changes
+            if (INThaplo[i] != -1)
+                haploChanged[INThaplo[i]] = true;
+            if (haplo != -1)
+                haploChanged[haplo] = true;
+            INThaplo[i] = haplo;
+
+            if (height != INT[i]) {
+                moves++;
+                if (moves <= maxMoves) {
+                    moveInSortedTimes(findDescending(allTimes, INT[i]), height);
+                    moveInIndexes(i, height);
+                } else
+                    INT[i] = height;
+            }
+        }
+        if (moves > maxMoves)
+            sortTimes(tree, nrTips, nrINTnodes);
+    }
+
+    /**
+     * Find the position of value in an array sorted in descending order
+     *
+     */
+    private static int findDescending(double[] array, double value) {
+        int low = 0;
+        int high = array.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (array[mid] > value)
+                low = mid + 1;
+            else if (array[mid] < value)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        throw new RuntimeException("Time " + value + " is not among the sorted times of the tree.");
+    }
+
+    /**
+     * Replace the value at position p of allTimes and shift it to keep allTimes in descending order
+     *
+     */
+    private void moveInSortedTimes(int p, double value) {
+        while (p > 0 && allTimes[p - 1] < value) {
+            allTimes[p] = allTimes[p - 1];
+            p--;
+        }
+        while (p < allTimes.length - 1 && allTimes[p + 1] > value) {
+            allTimes[p] = allTimes[p + 1];
+            p++;
+        }
+        allTimes[p] = value;
+    }
+
+    /**
+     * Set the height of internal node i in INT and shift it to keep indexes in descending order of INT
+     *
+     */
+    private void moveInIndexes(int i, double height) {
+        INT[i] = height;
+        int p = INTposition[i];
+        while (p > 0 && INT[indexes[p - 1]] < height) {
+            indexes[p] = indexes[p - 1];
+            INTposition[indexes[p]] = p;
+            p--;
+        }
+        while (p < indexes.length - 1 && INT[indexes[p + 1]] > height) {
+            indexes[p] = indexes[p + 1];
+            INTposition[indexes[p]] = p;
+            p++;
+        }
+        indexes[p] = i;
+        INTposition[i] = p;
+    }
+
 //     RRB: threading of logNumberOfQSTrees just slows things down
 //     private static ExecutorService exec;
 //     private CountDownLatch countDown;
@@ -314,21 +553,8 @@ public class QuasiSpeciesBirthDeathSkylineModel extends BirthDeathSkylineModel {
 
        	for (int k = start; k < end; k++) {
     		Node node = nodes[k];
-    		boolean isNodesAncestorDirty = false;
-    		if (tree.somethingIsDirty()){
-    		    QuasiSpeciesNode nodetocheck = (QuasiSpeciesNode) node;
-    		    while (nodetocheck.getContinuingHaploName() == node.getNr()){
-    		       if (nodetocheck.isDirty()>0){
-    		           isNodesAncestorDirty = true;
-    		           break;
-                   } else if (!nodetocheck.isRoot()){
-    		           nodetocheck = (QuasiSpeciesNode) nodetocheck.getParent();
-                   } else
-                       break;
-                }
-            }
-
-       		if (isNodesAncestorDirty || ((QuasiSpeciesNode) node).attachmentTimesListChanged()) {
+       		if (haploChanged[node.getNr()] || ((QuasiSpeciesNode) node).attachmentTimesListChanged()) {
+       		    haploChanged[node.getNr()] = false;
                 double gamma = 0;
 	            Arrays.fill(nrqsattachments,0);
 	            Arrays.fill(nrqslineages,0);
@@ -590,6 +816,136 @@ public class QuasiSpeciesBirthDeathSkylineModel extends BirthDeathSkylineModel {
         return count;
     }
 
+    /**
+     * Bring the lineage-through-time profile up to date for the current interval boundaries.
+     * Only the haplotypes whose attachment times changed are recounted, unless the boundaries moved.
+     * Requires the sorted time arrays to be up to date.
+     *
+     */
+    private void updateLineageProfile(TreeInterface tree) {
+        int nrBoundaries = Math.max(totalIntervals - 1, 0);
+        int nrTips = tree.getLeafNodeCount();
+
+        boolean boundariesChanged = false;
+        if (profileTimes == null || profileTimes.length != nrBoundaries) {
+            profileTimes = new double[nrBoundaries];
+            storedProfileTimes = null;
+            attachmentsAbove = new int[nrTips][nrBoundaries];
+            storedAttachmentsAbove = new int[nrTips][nrBoundaries];
+            totalAttachmentsAbove = new int[nrBoundaries];
+            storedTotalAttachmentsAbove = new int[nrBoundaries];
+            Arrays.fill(profileRowChanged, false);
+            profileJournalSize = 0;
+            boundariesChanged = true;
+        }
+        for (int j = 0; j < nrBoundaries; j++) {
+            double time = times[totalIntervals - 1] - times[j];
+            if (profileTimes[j] != time) {
+                profileTimes[j] = time;
+                boundariesChanged = true;
+            }
+        }
+
+        for (int i = 0; i < nrTips; i++) {
+            QuasiSpeciesNode node = (QuasiSpeciesNode) tree.getNode(i);
+            if (boundariesChanged || node.attachmentTimesListChanged())
+                countAttachmentsAbove(i, node.getAttachmentTimesList());
+        }
+    }
+
+    /**
+     * Recount the attachments of haplotype h above each profile time, keeping totalAttachmentsAbove in step
+     *
+     */
+    private void countAttachmentsAbove(int h, double[] attachTimes) {
+        int[] previous;
+        if (profileRowChanged[h]) {
+            previous = attachmentsAbove[h];
+        } else {
+            // keep the row as it was at store() time for restore()
+            int[] tmp = attachmentsAbove[h];
+            attachmentsAbove[h] = storedAttachmentsAbove[h];
+            storedAttachmentsAbove[h] = tmp;
+            previous = tmp;
+            profileRowChanged[h] = true;
+            profileJournal[profileJournalSize++] = h;
+        }
+        int[] row = attachmentsAbove[h];
+        for (int j = 0; j < profileTimes.length; j++) {
+            // attachment times are sorted in descending order, position 0 is the "fake" start of the haplo
+            int low = 1;
+            int high = attachTimes.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (attachTimes[mid] > profileTimes[j])
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            int count = low - 1;
+            totalAttachmentsAbove[j] += count - previous[j];
+            row[j] = count;
+        }
+    }
+
+    /**
+     * @return number of interval boundaries in the lineage-through-time profile, 0 before the first calculation
+     */
+    protected int getProfileSize() {
+        return profileTimes == null ? 0 : profileTimes.length;
+    }
+
+    /**
+     * @return time of interval boundary j of the lineage-through-time profile
+     */
+    protected double getProfileTime(int j) {
+        return profileTimes[j];
+    }
+
+    /**
+     * @return number of lineages at time j of the lineage-through-time profile
+     */
+    protected int getProfileLineageCount(int j) {
+        return lineageCountAtProfileTime(j);
+    }
+
+    /**
+     * Number of lineages at profile time j, equal to lineageCountAtTime(profileTimes[j], tree):
+     * one for the root lineage, plus the internal nodes and attachments above the time,
+     * minus the sampled copies at or above the time.
+     *
+     */
+    private int lineageCountAtProfileTime(int j) {
+        double time = profileTimes[j];
+
+        // internal nodes above time
+        int low = 0;
+        int high = indexes.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (INT[indexes[mid]] > time)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        int count = 1 + low + totalAttachmentsAbove[j];
+
+        // sampled copies at or above time
+        low = 0;
+        high = uniqueSampTimes.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (uniqueSampTimes[mid] >= time)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        if (low > 0)
+            count -= samplingCountAtOrAbove[low - 1];
+
+        return count;
+    }
+
     // calculateTreeLogLikelihood also adapted from Denise's code
     @Override
     public double calculateTreeLogLikelihood(TreeInterface tree) {
@@ -613,6 +969,8 @@ public class QuasiSpeciesBirthDeathSkylineModel extends BirthDeathSkylineModel {
             return Double.NEGATIVE_INFINITY;
         }
 
+        updateTimes(tree);
+        updateTermsParameters();
 
         int index = 0;
         if (times[index] < 0.)
@@ -643,7 +1001,7 @@ public class QuasiSpeciesBirthDeathSkylineModel extends BirthDeathSkylineModel {
 
 
         // factor for all possible QS trees
-        logP += logNumberOfQSTrees(tree);
+        logP += calculateLogNumberOfQSTrees(tree);
         if (Double.isInfinite(logP))
             return logP;
 
@@ -688,30 +1046,111 @@ public class QuasiSpeciesBirthDeathSkylineModel extends BirthDeathSkylineModel {
         return temp;
 	}
 
+	// caching of processFirstNonQSProductTerm() and processMiddleTerm():
+	//  nonQSTerms holds the term of each internal node, computed at height nonQSTermHeights (NaN if not computed yet),
+	//  middleTerm the whole middle product term and termsParameters the rates, rho-sampled tips and times these were computed with
+	double [] nonQSTerms;
+	double [] storedNonQSTerms;
+	double [] nonQSTermHeights;
+	double [] storedNonQSTermHeights;
+	boolean [] nonQSTermFake;
+	boolean [] storedNonQSTermFake;
+	double middleTerm = Double.NaN;
+	double storedMiddleTerm = Double.NaN;
+	double [] termsParameters;
+	double [] storedTermsParameters;
+
+	/**
+	 * Compare birth, psi, Ai, Bi, rho, the rho-sampled tips and times with the values the cached terms
+	 * were computed with. If any of them changed, remember the current values and invalidate all cached terms.
+	 *
+	 */
+	private void updateTermsParameters() {
+		int nrRhoTipFlags = 0;
+		for (int i = 0; i < isRhoTip.size(); i++)
+			nrRhoTipFlags += ((boolean[]) isRhoTip.get(i)).length;
+		int size = birth.length + psi.length + Ai.length + Bi.length + rho.length + nrRhoTipFlags + totalIntervals;
+		if (termsParameters == null || termsParameters.length != size) {
+			termsParameters = new double[size];
+			storedTermsParameters = new double[size];
+			Arrays.fill(termsParameters, Double.NaN);
+			Arrays.fill(storedTermsParameters, Double.NaN);
+		}
+		boolean changed = false;
+		int k = 0;
+		for (double [] values : new double [][] {birth, psi, Ai, Bi, rho}) {
+			for (double value : values) {
+				if (termsParameters[k] != value) {
+					termsParameters[k] = value;
+					changed = true;
+				}
+				k++;
+			}
+		}
+		for (int i = 0; i < isRhoTip.size(); i++) {
+			for (boolean flag : (boolean[]) isRhoTip.get(i)) {
+				double value = flag ? 1.0 : 0.0;
+				if (termsParameters[k] != value) {
+					termsParameters[k] = value;
+					changed = true;
+				}
+				k++;
+			}
+		}
+		for (int i = 0; i < totalIntervals; i++) {
+			if (termsParameters[k] != times[i]) {
+				termsParameters[k] = times[i];
+				changed = true;
+			}
+			k++;
+		}
+		if (changed) {
+			middleTerm = Double.NaN;
+			if (nonQSTermHeights != null)
+				Arrays.fill(nonQSTermHeights, Double.NaN);
+		}
+	}
+
 	private void processFirstNonQSProductTerm(final TreeInterface tree, final int nTips) {
         // first product term in f[T] over all non-QS transmission times (for the tips sampled through time and at times of parameter change)
         // to start with, get array containing possible number of branches the true node can start from
+        if (nonQSTerms == null) {
+            nonQSTerms = new double[tree.getInternalNodeCount()];
+            storedNonQSTerms = new double[nonQSTerms.length];
+            nonQSTermHeights = new double[nonQSTerms.length];
+            storedNonQSTermHeights = new double[nonQSTerms.length];
+            nonQSTermFake = new boolean[nonQSTerms.length];
+            storedNonQSTermFake = new boolean[nonQSTerms.length];
+            Arrays.fill(nonQSTermHeights, Double.NaN);
+            Arrays.fill(storedNonQSTermHeights, Double.NaN);
+        }
+
+        double sum = 0;
         for (int i = 0; i < tree.getInternalNodeCount(); i++) {
             QuasiSpeciesNode node = (QuasiSpeciesNode) tree.getNode(nTips + i);
-            double x = times[totalIntervals - 1] - node.getHeight();
-            final int index = index(x);
+            // only nodes whose height or fake status changed need log_q again
+            //  (all heights are reset to NaN when the rates or times change)
+            if (node.getHeight() != nonQSTermHeights[i] || node.isFake() != nonQSTermFake[i]) {
+                nonQSTermHeights[i] = node.getHeight();
+                nonQSTermFake[i] = node.isFake();
+                if (!node.isFake()) {
+                    double x = times[totalIntervals - 1] - node.getHeight();
+                    final int index = index(x);
+                    nonQSTerms[i] = FastMathLog(birth[index]) + log_q(index, times[index], x);
+                    // term for the Quasi-Species tree likelihood calculation counting possible start branches (gamma)
+                    //int gamma = node.getStartBranchCounts();
+                    //logP += Math.log(gamma);
+                    // NOTE: this is all done in logNumberOfQSTrees() below
+                } else
+                    nonQSTerms[i] = 0;
+            }
             if (!node.isFake()) {
-                double temp = FastMathLog(birth[index]) + log_q(index, times[index], x);
-                logP += temp;
+                sum += nonQSTerms[i];
                 if (printTempResults) System.out.println("1st pwd" +
-                        " = " + temp + "; interval = " + i);
-                if (Double.isInfinite(logP))
-                    return ;
-                // term for the Quasi-Species tree likelihood calculation counting possible start branches (gamma)
-                //int gamma = node.getStartBranchCounts();
-                //logP += Math.log(gamma);
-                // NOTE: this is all done in logNumberOfQSTrees() below
-                if (printTempResults) System.out.println("1st pwd" +
-                        " = " + temp + "; QS start branches = " + node.getID());
-                if (Double.isInfinite(logP))
-                    return ;
+                        " = " + nonQSTerms[i] + "; interval = " + i + "; QS start branches = " + node.getID());
             }
         }
+        logP += sum;
 	}
 
 
@@ -812,6 +1251,32 @@ public class QuasiSpeciesBirthDeathSkylineModel extends BirthDeathSkylineModel {
 			System.arraycopy(Bi, 0, storedBi, 0, Bi.length);
 			System.arraycopy(logNumberOfQSTrees, 0, storedLogNumberOfQSTrees, 0, logNumberOfQSTrees.length);
 		}
+		if (sortedTimesValid) {
+			System.arraycopy(INT, 0, storedINT, 0, INT.length);
+			System.arraycopy(allTimes, 0, storedAllTimes, 0, allTimes.length);
+			System.arraycopy(indexes, 0, storedIndexes, 0, indexes.length);
+			System.arraycopy(INTposition, 0, storedINTposition, 0, INTposition.length);
+			System.arraycopy(INThaplo, 0, storedINThaplo, 0, INThaplo.length);
+		}
+		storedSortedTimesValid = sortedTimesValid;
+		if (nonQSTerms != null) {
+			System.arraycopy(nonQSTerms, 0, storedNonQSTerms, 0, nonQSTerms.length);
+			System.arraycopy(nonQSTermHeights, 0, storedNonQSTermHeights, 0, nonQSTermHeights.length);
+			System.arraycopy(nonQSTermFake, 0, storedNonQSTermFake, 0, nonQSTermFake.length);
+		}
+		if (termsParameters != null)
+			System.arraycopy(termsParameters, 0, storedTermsParameters, 0, termsParameters.length);
+		storedMiddleTerm = middleTerm;
+		if (profileTimes != null) {
+			// accept the recounted rows of the lineage profile
+			for (int i = 0; i < profileJournalSize; i++)
+				profileRowChanged[profileJournal[i]] = false;
+			profileJournalSize = 0;
+			if (storedProfileTimes == null)
+				storedProfileTimes = new double[profileTimes.length];
+			System.arraycopy(profileTimes, 0, storedProfileTimes, 0, profileTimes.length);
+			System.arraycopy(totalAttachmentsAbove, 0, storedTotalAttachmentsAbove, 0, totalAttachmentsAbove.length);
+		}
 		super.store();
 	}
 
@@ -828,12 +1293,57 @@ public class QuasiSpeciesBirthDeathSkylineModel extends BirthDeathSkylineModel {
 		tmp = Bi; Bi = storedBi; storedBi = tmp;
 		
 		tmp = logNumberOfQSTrees; logNumberOfQSTrees = storedLogNumberOfQSTrees; storedLogNumberOfQSTrees = tmp;
+
+		tmp = INT; INT = storedINT; storedINT = tmp;
+
+		tmp = allTimes; allTimes = storedAllTimes; storedAllTimes = tmp;
+
+		int [] itmp = indexes; indexes = storedIndexes; storedIndexes = itmp;
+
+		itmp = INTposition; INTposition = storedINTposition; storedINTposition = itmp;
+
+		itmp = INThaplo; INThaplo = storedINThaplo; storedINThaplo = itmp;
+
+		sortedTimesValid = storedSortedTimesValid;
+
+		if (nonQSTerms != null) {
+			tmp = nonQSTerms; nonQSTerms = storedNonQSTerms; storedNonQSTerms = tmp;
+
+			tmp = nonQSTermHeights; nonQSTermHeights = storedNonQSTermHeights; storedNonQSTermHeights = tmp;
+
+			boolean [] btmp = nonQSTermFake; nonQSTermFake = storedNonQSTermFake; storedNonQSTermFake = btmp;
+		}
+
+		tmp = termsParameters; termsParameters = storedTermsParameters; storedTermsParameters = tmp;
+
+		middleTerm = storedMiddleTerm;
+
+		if (profileTimes != null) {
+			for (int i = 0; i < profileJournalSize; i++) {
+				int h = profileJournal[i];
+				itmp = attachmentsAbove[h]; attachmentsAbove[h] = storedAttachmentsAbove[h]; storedAttachmentsAbove[h] = itmp;
+				profileRowChanged[h] = false;
+			}
+			profileJournalSize = 0;
+
+			itmp = totalAttachmentsAbove; totalAttachmentsAbove = storedTotalAttachmentsAbove; storedTotalAttachmentsAbove = itmp;
+
+			tmp = profileTimes; profileTimes = storedProfileTimes; storedProfileTimes = tmp;
+		}
 				
 		super.restore();
 	}
 	
 	private void processMiddleTerm(final TreeInterface tree, final QuasiSpeciesTree qsTree, final int nTips) {
         // middle product term in f[T]
+        // the tip times never change, so the term only has to be recomputed when the rates or times changed
+        if (!Double.isNaN(middleTerm)) {
+            logP += middleTerm;
+            return;
+        }
+
+        double sum = 0;
+        loop:
         for (int i = 0; i < nTips; i++) {
 
             QuasiSpeciesNode node = (QuasiSpeciesNode) tree.getNode(i);
@@ -851,10 +1361,10 @@ public class QuasiSpeciesBirthDeathSkylineModel extends BirthDeathSkylineModel {
 //                    } else {
 //                        temp = Math.log(psi[index] * (r[index] + (1 - r[index]) * p0(index, times[index], y))) - log_q(index, times[index], y);
 //                    }
-                    logP += temp;
+                    sum += temp;
                     if (printTempResults) System.out.println("2nd PI = " + temp);
-                    if (psi[index] == 0 || Double.isInfinite(logP))
-                        return;
+                    if (psi[index] == 0 || Double.isInfinite(sum))
+                        break loop;
 //                } else {
 //                    if (r[index] != 1) {
 //                        logP += Math.log((1 - r[index])*psi[index]);
@@ -869,13 +1379,16 @@ public class QuasiSpeciesBirthDeathSkylineModel extends BirthDeathSkylineModel {
 //                }
                 }
             }
-        }		
+        }
+        middleTerm = sum;
+        logP += sum;
 	}
 
 
 	private void processLastTerm(final TreeInterface tree, final QuasiSpeciesTree qsTree, final int nTips) {
 
         // last product term in f[T], factorizing from 1 to m //
+        updateLineageProfile(tree);
         double time;
         for (int j = 0; j < totalIntervals; j++) {
             time = j < 1 ? 0 : times[j - 1];
@@ -883,7 +1396,8 @@ public class QuasiSpeciesBirthDeathSkylineModel extends BirthDeathSkylineModel {
 //            if (!SAModel) {
             // changed the number of lineages surviving the next parameter change period done in function lineageCountAtTime
             //  to account for the QS lineages that could be also surviving the parameter change time
-            final int nj = ((j == 0) ? 0 : lineageCountAtTime(times[totalIntervals - 1] - time, tree));
+            //  -- counts are read from the lineage-through-time profile, see lineageCountAtProfileTime
+            final int nj = ((j == 0) ? 0 : lineageCountAtProfileTime(j - 1));
 //            } else {
 //                n[j] = ((j == 0) ? 0 : lineageCountAtTime(times[totalIntervals - 1] - time, tree, k));
 //            }
@@ -0,0 +1,101 @@
+package piqmee.likelihood;
+
+/**
+ * Loops over the pattern x category arrays of accumulated leaf scale factors used by
+ * QuasiSpeciesTreeLikelihood3. The array loops are unrolled by four with independent
+ * accumulators, the form the JIT turns into packed SIMD instructions, and exp is
+ * evaluated by a range-reduced polynomial whose relative error is below
+ * EXP_MAX_RELATIVE_ERROR.
+ */
+public class LeafScaleKernels {
+
+    /** bound on the relative error of exp(x) with respect to Math.exp(x) */
+    public static final double EXP_MAX_RELATIVE_ERROR = 1e-15;
+
+    private static final double LOG2E = 1.4426950408889634;
+    // ln 2 split into a high part with trailing zero bits, so that k * LN2_HI is exact, and the rest
+    private static final double LN2_HI = 6.93147180369123816490e-01;
+    private static final double LN2_LO = 1.90821492927058770002e-10;
+
+    // Taylor coefficients 1/k!, degree 12 leaves a truncation error below 2e-16 for |r| <= ln(2)/2
+    private static final double C2 = 1.0 / 2;
+    private static final double C3 = 1.0 / 6;
+    private static final double C4 = 1.0 / 24;
+    private static final double C5 = 1.0 / 120;
+    private static final double C6 = 1.0 / 720;
+    private static final double C7 = 1.0 / 5040;
+    private static final double C8 = 1.0 / 40320;
+    private static final double C9 = 1.0 / 362880;
+    private static final double C10 = 1.0 / 3628800;
+    private static final double C11 = 1.0 / 39916800;
+    private static final double C12 = 1.0 / 479001600;
+
+    private LeafScaleKernels() {
+    }
+
+    /**
+     * acc[i] += x[i] for i < n
+     */
+    public static void add(double[] acc, double[] x, int n) {
+        int i = 0;
+        for (; i + 3 < n; i += 4) {
+            acc[i] += x[i];
+            acc[i + 1] += x[i + 1];
+            acc[i + 2] += x[i + 2];
+            acc[i + 3] += x[i + 3];
+        }
+        for (; i < n; i++)
+            acc[i] += x[i];
+    }
+
+    /**
+     * acc[i] += x[i] - oldX[i] for i < n
+     */
+    public static void addDifference(double[] acc, double[] x, double[] oldX, int n) {
+        int i = 0;
+        for (; i + 3 < n; i += 4) {
+            acc[i] += x[i] - oldX[i];
+            acc[i + 1] += x[i + 1] - oldX[i + 1];
+            acc[i + 2] += x[i + 2] - oldX[i + 2];
+            acc[i + 3] += x[i + 3] - oldX[i + 3];
+        }
+        for (; i < n; i++)
+            acc[i] += x[i] - oldX[i];
+    }
+
+    /**
+     * out[i] += in[i] * factor for i < n
+     */
+    public static void addScaled(double[] out, int outOffset, double[] in, int inOffset, double factor, int n) {
+        int i = 0;
+        for (; i + 3 < n; i += 4) {
+            out[outOffset + i] += in[inOffset + i] * factor;
+            out[outOffset + i + 1] += in[inOffset + i + 1] * factor;
+            out[outOffset + i + 2] += in[inOffset + i + 2] * factor;
+            out[outOffset + i + 3] += in[inOffset + i + 3] * factor;
+        }
+        for (; i < n; i++)
+            out[outOffset + i] += in[inOffset + i] * factor;
+    }
+
+    /**
+     * Exponential with a relative error below EXP_MAX_RELATIVE_ERROR. Arguments outside
+     * [-708, 709], where the result is subnormal, overflows or is NaN, are passed to Math.exp,
+     * so that underflow to zero is reported exactly as by Math.exp.
+     *
+     * @param x argument
+     * @return e^x
+     */
+    public static double exp(double x) {
+        if (!(x > -708.0 && x < 709.0))
+            return Math.exp(x);
+
+        // x = k ln 2 + r with |r| <= ln(2)/2
+        double k = Math.rint(x * LOG2E);
+        double r = (x - k * LN2_HI) - k * LN2_LO;
+        double p = 1.0 + r * (1.0 + r * (C2 + r * (C3 + r * (C4 + r * (C5 + r * (C6
+                + r * (C7 + r * (C8 + r * (C9 + r * (C10 + r * (C11 + r * C12)))))))))));
+        // 2^k, k being between -1021 and 1023 here
+        return p * Double.longBitsToDouble(((long) k + 1023) << 52);
+    }
+}
@@ -0,0 +1,83 @@
+package piqmee.likelihood;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+
+/**
+ * Startup timing of likelihood back-ends, used to choose the fastest one for the alignment
+ * and tree at hand. Full evaluations recalculate every node of the tree, partial evaluations
+ * recalculate the path from one tip to the root, as after a typical operator move. Each kind
+ * is timed for a number of rounds or until a time budget is spent, whichever comes first.
+ */
+public class LikelihoodCalibration {
+
+    /** time budget in seconds of each kind of evaluation on a back-end */
+    public static final double MAX_SECONDS = 2.0;
+
+    private LikelihoodCalibration() {
+    }
+
+    /**
+     * Time full evaluations of a back-end, with all nodes of the tree marked filthy.
+     *
+     * @param tree       tree the back-end is calculated on
+     * @param likelihood back-end to time
+     * @param rounds     maximal number of evaluations
+     * @return mean time of an evaluation in seconds
+     */
+    public static double timeFullEvaluations(Tree tree, QuasiSpeciesLikelihoodBackend likelihood, int rounds) {
+        warmUp(tree, likelihood);
+        long budget = (long) (MAX_SECONDS * 1e9);
+        long start = System.nanoTime();
+        long time = 0;
+        int done = 0;
+        while (done < rounds && time < budget) {
+            tree.setEverythingDirty(true);
+            likelihood.requiresRecalculation();
+            likelihood.calculateLogP();
+            done++;
+            time = System.nanoTime() - start;
+        }
+        tree.setEverythingDirty(false);
+        return time * 1e-9 / Math.max(done, 1);
+    }
+
+    /**
+     * Time partial evaluations of a back-end: in turn, each tip is marked dirty, so that
+     * the partials from that tip to the root are recalculated.
+     *
+     * @param tree       tree the back-end is calculated on
+     * @param likelihood back-end to time
+     * @param rounds     maximal number of evaluations
+     * @return mean time of an evaluation in seconds
+     */
+    public static double timePartialEvaluations(Tree tree, QuasiSpeciesLikelihoodBackend likelihood, int rounds) {
+        warmUp(tree, likelihood);
+        Node[] nodes = tree.getNodesAsArray();
+        int leafCount = tree.getLeafNodeCount();
+        long budget = (long) (MAX_SECONDS * 1e9);
+        long start = System.nanoTime();
+        long time = 0;
+        int done = 0;
+        while (done < rounds && time < budget) {
+            tree.setEverythingDirty(false);
+            nodes[done % leafCount].makeDirty(Tree.IS_DIRTY);
+            likelihood.requiresRecalculation();
+            likelihood.calculateLogP();
+            done++;
+            time = System.nanoTime() - start;
+        }
+        tree.setEverythingDirty(false);
+        return time * 1e-9 / Math.max(done, 1);
+    }
+
+    /**
+     * The first evaluation fills the partials and lets the JIT compile the core,
+     * so it is not part of the timing.
+     */
+    private static void warmUp(Tree tree, QuasiSpeciesLikelihoodBackend likelihood) {
+        tree.setEverythingDirty(true);
+        likelihood.requiresRecalculation();
+        likelihood.calculateLogP();
+    }
+}
@@ -0,0 +1,101 @@
+package piqmee.likelihood;
+
+import beast.base.evolution.substitutionmodel.EigenDecomposition;
+import beast.base.evolution.substitutionmodel.GTR;
+import beast.base.evolution.substitutionmodel.HKY;
+import beast.base.evolution.substitutionmodel.JukesCantor;
+import beast.base.evolution.substitutionmodel.SubstitutionModel;
+
+/**
+ * Rates of no change of a substitution model, i.e. the diagonal of its normalised rate
+ * matrix Q, which give the probability exp(Q_ii t) that a QS branch does not change state.
+ * For JC, HKY and GTR the diagonal is read off the model parameters directly; for other
+ * models it is assembled from the eigen decomposition, as diag(evec * eval * ievc).
+ */
+public class NoChangeRates {
+
+    private NoChangeRates() {
+    }
+
+    /**
+     * @param substitutionModel substitution model
+     * @param nStates           number of states
+     * @return whether the rates of no change of the model are calculated directly from its parameters
+     */
+    public static boolean hasDirectRates(SubstitutionModel substitutionModel, int nStates) {
+        // exact classes only, subclasses may reinterpret the parameters
+        Class<?> modelClass = substitutionModel.getClass();
+        return nStates == 4 && (modelClass == JukesCantor.class || modelClass == HKY.class || modelClass == GTR.class);
+    }
+
+    /**
+     * Fills rates with the diagonal of the normalised rate matrix of the substitution model.
+     *
+     * @param substitutionModel substitution model
+     * @param nStates           number of states
+     * @param rates             array of length nStates to fill
+     */
+    public static void getNoChangeRates(SubstitutionModel substitutionModel, int nStates, double[] rates) {
+        if (!hasDirectRates(substitutionModel, nStates)) {
+            getNoChangeRates(substitutionModel.getEigenDecomposition(null), nStates, rates);
+            return;
+        }
+        if (substitutionModel instanceof JukesCantor) {
+            for (int i = 0; i < 4; i++) {
+                rates[i] = -1.0;
+            }
+            return;
+        }
+
+        // symmetric exchange rates of the pairs AC, AG, AT, CG, CT and GT
+        double ac, ag, at, cg, ct, gt;
+        if (substitutionModel instanceof HKY) {
+            double kappa = ((HKY) substitutionModel).kappaInput.get().getArrayValue();
+            ac = at = cg = gt = 1.0;
+            ag = ct = kappa;
+        } else {
+            GTR gtr = (GTR) substitutionModel;
+            ac = gtr.rateACInput.get() == null ? 1.0 : gtr.rateACInput.get().getArrayValue();
+            ag = gtr.rateAGInput.get() == null ? 1.0 : gtr.rateAGInput.get().getArrayValue();
+            at = gtr.rateATInput.get() == null ? 1.0 : gtr.rateATInput.get().getArrayValue();
+            cg = gtr.rateCGInput.get() == null ? 1.0 : gtr.rateCGInput.get().getArrayValue();
+            ct = gtr.rateCTInput.get() == null ? 1.0 : gtr.rateCTInput.get().getArrayValue();
+            gt = gtr.rateGTInput.get() == null ? 1.0 : gtr.rateGTInput.get().getArrayValue();
+        }
+        getNoChangeRates(substitutionModel.getFrequencies(), ac, ag, at, cg, ct, gt, rates);
+    }
+
+    /**
+     * Diagonal of the rate matrix of a time-reversible nucleotide model, normalised to
+     * one expected substitution per unit time as in BEAST.
+     */
+    static void getNoChangeRates(double[] freqs, double ac, double ag, double at, double cg, double ct, double gt,
+                                 double[] rates) {
+        // total rate away from each state
+        double a = ac * freqs[1] + ag * freqs[2] + at * freqs[3];
+        double c = ac * freqs[0] + cg * freqs[2] + ct * freqs[3];
+        double g = ag * freqs[0] + cg * freqs[1] + gt * freqs[3];
+        double t = at * freqs[0] + ct * freqs[1] + gt * freqs[2];
+        double norm = freqs[0] * a + freqs[1] * c + freqs[2] * g + freqs[3] * t;
+        rates[0] = -a / norm;
+        rates[1] = -c / norm;
+        rates[2] = -g / norm;
+        rates[3] = -t / norm;
+    }
+
+    /**
+     * Fills rates with the diagonal of evec * diag(eval) * ievc.
+     */
+    public static void getNoChangeRates(EigenDecomposition eigenDecomposition, int nStates, double[] rates) {
+        double[] evec = eigenDecomposition.getEigenVectors();
+        double[] eval = eigenDecomposition.getEigenValues();
+        double[] ievc = eigenDecomposition.getInverseEigenVectors();
+        for (int i = 0; i < nStates; i++) {
+            double rate = 0;
+            for (int j = 0; j < nStates; j++) {
+                rate += evec[i * nStates + j] * eval[j] * ievc[j * nStates + i];
+            }
+            rates[i] = rate;
+        }
+    }
+}
@@ -128,7 +128,6 @@ public class QuasiSpeciesBeagleTreeLikelihood3 extends QuasiSpeciesTreeLikelihoo
 
         rates = new double[m_nStateCount];
         storedRates = new double [m_nStateCount];
-        tmpevectimesevals = new double[m_nStateCount * m_nStateCount];
         getNoChangeRates(rates);
         
     	matrices = new double[matrixSize * categoryCount];
@@ -584,7 +583,7 @@ public class QuasiSpeciesBeagleTreeLikelihood3 extends QuasiSpeciesTreeLikelihoo
      * check state for changed variables and update temp results if necessary *
      */
     @Override
-    protected boolean requiresRecalculation() {
+    public boolean requiresRecalculation() {
         hasDirt = Tree.IS_CLEAN;
         
         double[] categoryRates = siteModel.getCategoryRates(null);
@@ -684,6 +683,12 @@ public class QuasiSpeciesBeagleTreeLikelihood3 extends QuasiSpeciesTreeLikelihoo
      */
     @Override
     public double calculateLogP() {
+        // the rates of no change only depend on the substitution model,
+        // otherwise those of the current state are kept (and stored and restored with it)
+        if (siteModel.isDirtyCalculation() && substitutionModelIsDirty()) {
+            getNoChangeRates(rates);
+        }
+
         if (patternLogLikelihoods == null) {
             patternLogLikelihoods = new double[patternCount];
         }
@@ -1301,6 +1306,21 @@ public class QuasiSpeciesBeagleTreeLikelihood3 extends QuasiSpeciesTreeLikelihoo
     protected Beagle beagle;
     public Beagle getBeagle() {return beagle;}
 
+    /**
+     * Free the BEAGLE instance of a back-end that is not used.
+     */
+    @Override
+    public void release() {
+        if (beagle != null) {
+            try {
+                beagle.finalize();
+            } catch (Throwable e) {
+                Log.warning.println("Could not free the BEAGLE instance: " + e.getMessage());
+            }
+            beagle = null;
+        }
+    }
+
     /**
      * Flag to specify that the substitution model has changed
      */
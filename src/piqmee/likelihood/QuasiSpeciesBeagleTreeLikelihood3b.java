@@ -134,7 +134,6 @@ public class QuasiSpeciesBeagleTreeLikelihood3b extends QuasiSpeciesTreeLikeliho
 
         rates = new double[m_nStateCount];
         storedRates = new double [m_nStateCount];
-        tmpevectimesevals = new double[m_nStateCount * m_nStateCount];
         getNoChangeRates(rates);
 
         scale = new double[patternCount];
@@ -584,7 +583,7 @@ public class QuasiSpeciesBeagleTreeLikelihood3b extends QuasiSpeciesTreeLikeliho
      * check state for changed variables and update temp results if necessary *
      */
     @Override
-    protected boolean requiresRecalculation() {
+    public boolean requiresRecalculation() {
         hasDirt = Tree.IS_CLEAN;
         
         double[] categoryRates = siteModel.getCategoryRates(null);
@@ -683,6 +682,11 @@ public class QuasiSpeciesBeagleTreeLikelihood3b extends QuasiSpeciesTreeLikeliho
      */
     @Override
     public double calculateLogP() {
+        // the rates of no change only depend on the substitution model,
+        // otherwise those of the current state are kept (and stored and restored with it)
+        if (siteModel.isDirtyCalculation() && substitutionModelIsDirty()) {
+            getNoChangeRates(rates);
+        }
 
         if (patternLogLikelihoods == null) {
             patternLogLikelihoods = new double[patternCount];
@@ -3,16 +3,103 @@ package piqmee.likelihood;
 import beast.base.core.Description;
 import beast.base.evolution.likelihood.BeerLikelihoodCore;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 /**
  *  @author Veronika Boskova created on 03/03/17
  */
 @Description("quasispecies likelihood core")
 public class QuasiSpeciesBeerLikelihoodCore extends BeerLikelihoodCore {
 
+    // number of threads the pattern range is split across; 1 means everything runs on the calling thread
+    protected int threadCount = 1;
+    // worker threads for all but the first block of patterns, which the calling thread does itself
+    protected ExecutorService patternExecutor;
+
+    // partials of a pattern whose largest entry at a node falls below this are rescaled at that node
+    protected double rescalingThreshold = 1.0E-100;
+    // log scaling factors summed over the subtree below each node, double buffered with the partials,
+    // so that the log scaling factor of a pattern is read at the root instead of summed over all nodes
+    protected double[][][] accumulatedScalingFactors;
+    // root node of the last calculation at the origin, which holds the scaling factors of the whole tree
+    protected int rootNodeIndex = -1;
+
     public QuasiSpeciesBeerLikelihoodCore(int nrOfStates) {
         super (nrOfStates);
     } // c'tor
 
+    /**
+     * Part of the QS pruning restricted to a block of patterns.
+     * Blocks never share patterns, so they can be calculated concurrently.
+     */
+    protected interface PatternBlock {
+        void calculate(int patternStart, int patternEnd);
+    }
+
+    /**
+     * Sets the number of threads the patterns are split across. Each pattern is
+     * calculated exactly as in the single-threaded core, so the partials do not
+     * depend on the number of threads.
+     *
+     * @param threadCount number of threads, values below 2 switch threading off
+     */
+    public void setThreadCount(int threadCount) {
+        if (patternExecutor != null) {
+            patternExecutor.shutdown();
+            patternExecutor = null;
+        }
+        this.threadCount = Math.max(threadCount, 1);
+        if (this.threadCount > 1) {
+            patternExecutor = Executors.newFixedThreadPool(this.threadCount - 1, r -> {
+                Thread thread = new Thread(r, "QuasiSpeciesBeerLikelihoodCore");
+                // do not keep BEAST alive once the analysis is done
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    /**
+     * Calculates the block over the whole pattern range, split into one chunk per thread.
+     *
+     * @param block part of the pruning to calculate
+     */
+    protected void calculatePatternBlocks(PatternBlock block) {
+        if (patternExecutor == null || nrOfPatterns < 2 * threadCount) {
+            block.calculate(0, nrOfPatterns);
+            return;
+        }
+
+        int blockSize = (nrOfPatterns + threadCount - 1) / threadCount;
+        List<Future<?>> futures = new ArrayList<>(threadCount - 1);
+        for (int start = blockSize; start < nrOfPatterns; start += blockSize) {
+            final int patternStart = start;
+            final int patternEnd = Math.min(start + blockSize, nrOfPatterns);
+            futures.add(patternExecutor.submit(() -> block.calculate(patternStart, patternEnd)));
+        }
+        block.calculate(0, blockSize);
+
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
     /**
      * QS OWN FUNCTION
      */
@@ -37,13 +124,19 @@ public class QuasiSpeciesBeerLikelihoodCore extends BeerLikelihoodCore {
      * @param originPartials   probability vector at origin (of length nrOfStates * nrOfPatterns)
      */
     public void calculateOriginTipPartials(int nodeIndex1, int child1QS, int nodeCount, double[] originPartials) {
+        calculatePatternBlocks((patternStart, patternEnd) ->
+                calculateOriginTipPartials(nodeIndex1, child1QS, nodeCount, originPartials, patternStart, patternEnd));
+    }
+
+    protected void calculateOriginTipPartials(int nodeIndex1, int child1QS, int nodeCount, double[] originPartials,
+                                              int patternStart, int patternEnd) {
         // tip has a state
         if (states[nodeIndex1] != null){
             calculateOriginTipPruning(
                     states[nodeIndex1],
                     matrices[currentMatrixIndex[nodeIndex1]][nodeIndex1],
                     matrices[currentMatrixIndex[nodeCount+nodeIndex1]][nodeCount+nodeIndex1],
-                    originPartials,child1QS);
+                    originPartials,child1QS, patternStart, patternEnd);
         }
         // tip has partials
         else {
@@ -51,7 +144,7 @@ public class QuasiSpeciesBeerLikelihoodCore extends BeerLikelihoodCore {
                     partials[currentPartialsIndex[nodeIndex1]][nodeIndex1],
                     matrices[currentMatrixIndex[nodeIndex1]][nodeIndex1],
                     matrices[currentMatrixIndex[nodeCount+nodeIndex1]][nodeCount+nodeIndex1],
-                    originPartials, child1QS);
+                    originPartials, child1QS, patternStart, patternEnd);
         }
     }
 
@@ -63,21 +156,26 @@ public class QuasiSpeciesBeerLikelihoodCore extends BeerLikelihoodCore {
      * @param matrices1aboveQSstart transition probability matrix from node above QS start to QS start for QS passing through the tip (child 1)
      * @param originPartials        probability vector at origin (of length nrOfStates * nrOfPatterns)
      * @param child1QS              QS passing through parent tip (child 1)
+     * @param patternStart          first pattern to calculate
+     * @param patternEnd            pattern after the last one to calculate
      */
     protected void calculateOriginTipPruning(int[] stateIndex, double[] matricesQS1, double[] matrices1aboveQSstart,
-                                             double[] originPartials, int child1QS){
+                                             double[] originPartials, int child1QS,
+                                             int patternStart, int patternEnd){
 
         double tmp, sum;
 
         // v keeps track of the pattern we are about to calculate
-        int v = 0;
+        int v;
 
         for (int l = 0; l < nrOfMatrices; l++) {
 
             // w keeps track of the state the internal node evolves from
             int w = l * matrixSize;
+            // v starts at the first pattern of the block in this category
+            v = (l * nrOfPatterns + patternStart) * nrOfStates;
 
-            for (int k = 0; k < nrOfPatterns; k++) {
+            for (int k = patternStart; k < patternEnd; k++) {
                 // note down the state at the tip
                 int state = stateIndex[k];
 
@@ -118,21 +216,26 @@ public class QuasiSpeciesBeerLikelihoodCore extends BeerLikelihoodCore {
      * @param matrices1aboveQSstart transition probability matrix from node above QS start to QS start for QS passing through the tip (child 1)
      * @param originPartials        probability vector at origin (of length nrOfStates * nrOfPatterns)
      * @param child1QS              QS passing through parent tip (child 1)
+     * @param patternStart          first pattern to calculate
+     * @param patternEnd            pattern after the last one to calculate
      */
     protected void calculateOriginTipPruning(double[] partials1, double[] matricesQS1, double[] matrices1aboveQSstart,
-                                             double[] originPartials, int child1QS){
+                                             double[] originPartials, int child1QS,
+                                             int patternStart, int patternEnd){
 
         double tmp, sum;
 
         // v keeps track of the pattern we are about to calculate
-        int v = 0;
+        int v;
 
         for (int l = 0; l < nrOfMatrices; l++) {
 
             // w keeps track of the state the internal node evolves from
             int w = l * matrixSize;
+            // v starts at the first pattern of the block in this category
+            v = (l * nrOfPatterns + patternStart) * nrOfStates;
 
-            for (int k = 0; k < nrOfPatterns; k++) {
+            for (int k = patternStart; k < patternEnd; k++) {
                 // note down the state at the tip
 
                 for (int i = 0; i < nrOfStates; i++) {
@@ -164,16 +267,23 @@ public class QuasiSpeciesBeerLikelihoodCore extends BeerLikelihoodCore {
      * @param originPartials    probability vector at origin (of length nrOfStates * nrOfPatterns)
      */
     public void calculateOriginRootPartials(int rootNodeIndex, int rootQS, int nodeCount, double[] originPartials) {
+        this.rootNodeIndex = rootNodeIndex;
+        calculatePatternBlocks((patternStart, patternEnd) ->
+                calculateOriginRootPartials(rootNodeIndex, rootQS, nodeCount, originPartials, patternStart, patternEnd));
+    }
+
+    protected void calculateOriginRootPartials(int rootNodeIndex, int rootQS, int nodeCount, double[] originPartials,
+                                               int patternStart, int patternEnd) {
         if (rootQS == -1) {
             calculateOriginRootPruning(null, partials[currentPartialsIndex[rootNodeIndex]][rootNodeIndex],
                     matrices[currentMatrixIndex[rootNodeIndex]][rootNodeIndex],
                     null,
-                    originPartials, rootQS);
+                    originPartials, rootQS, patternStart, patternEnd);
         } else {
             calculateOriginRootPruning(states[rootQS], partials[currentPartialsIndex[rootNodeIndex]][rootNodeIndex],
                     matrices[currentMatrixIndex[rootNodeIndex]][rootNodeIndex],
                     matrices[currentMatrixIndex[nodeCount + rootQS]][nodeCount + rootQS],
-                    originPartials, rootQS);
+                    originPartials, rootQS, patternStart, patternEnd);
         }
     }
 
@@ -185,12 +295,15 @@ public class QuasiSpeciesBeerLikelihoodCore extends BeerLikelihoodCore {
      * @param matricesRoot      transition probability matrix from origin to root
      * @param originPartials    probability vector at origin (of length nrOfStates * nrOfPatterns)
      * @param rootQS            QS passing through parent node
+     * @param patternStart      first pattern to calculate
+     * @param patternEnd        pattern after the last one to calculate
      */
     protected void calculateOriginRootPruning(int[] stateIndexRoot, double[] partialsRoot, double[] matricesRoot, double[] matricesRootaboveQSstart,
-                                              double[] originPartials, int rootQS) {
+                                              double[] originPartials, int rootQS,
+                                              int patternStart, int patternEnd) {
 
         // v keeps track of the pattern we are about to calculate
-        int v = 0;
+        int v;
 
         // there is no QS arising above the root
         if (rootQS==-1 || stateIndexRoot == null){
@@ -199,8 +312,10 @@ public class QuasiSpeciesBeerLikelihoodCore extends BeerLikelihoodCore {
 
                 // w keeps track of the state the internal node evolves from
                 int w = l * matrixSize;
+                // v starts at the first pattern of the block in this category
+                v = (l * nrOfPatterns + patternStart) * nrOfStates;
 
-                for (int k = 0; k < nrOfPatterns; k++) {
+                for (int k = patternStart; k < patternEnd; k++) {
 
                     calculateOriginRootPruningHelperNoQSorUnknownState(partialsRoot, matricesRoot, originPartials, w, v);
 
@@ -216,8 +331,10 @@ public class QuasiSpeciesBeerLikelihoodCore extends BeerLikelihoodCore {
 
                 // w keeps track of the state the internal node evolves from
                 int w = l * matrixSize;
+                // v starts at the first pattern of the block in this category
+                v = (l * nrOfPatterns + patternStart) * nrOfStates;
 
-                for (int k = 0; k < nrOfPatterns; k++) {
+                for (int k = patternStart; k < patternEnd; k++) {
                     // note down the states at the tips belonging to QS passing through root
                     int rootState = stateIndexRoot[k];
 
@@ -296,13 +413,16 @@ public class QuasiSpeciesBeerLikelihoodCore extends BeerLikelihoodCore {
      * @param child1QS              QS passing through child 1
      * @param child2QS              QS passing through child 2
      * @param parentQS              QS passing through parent node
+     * @param patternStart          first pattern to calculate
+     * @param patternEnd            pattern after the last one to calculate
      */
     protected void calculateStatesStatesPruning(int[] stateIndex1, double[] matricesQS1, double[] matrices1aboveQSstart,
                                                 int[] stateIndex2, double[] matricesQS2, double[] matrices2aboveQSstart,
-                                                double[] partials3, int child1QS, int child2QS, int parentQS) {
+                                                double[] partials3, int child1QS, int child2QS, int parentQS,
+                                                int patternStart, int patternEnd) {
 
         // v keeps track of the pattern we are about to calculate
-        int v = 0;
+        int v;
 
         // both children have the QS start on the branch leading to the tip
         if (parentQS==-1){
@@ -311,8 +431,10 @@ public class QuasiSpeciesBeerLikelihoodCore extends BeerLikelihoodCore {
 
                 // w keeps track of the state the internal node evolves from
                 int w = l * matrixSize;
+                // v starts at the first pattern of the block in this category
+                v = (l * nrOfPatterns + patternStart) * nrOfStates;
 
-                for (int k = 0; k < nrOfPatterns; k++) {
+                for (int k = patternStart; k < patternEnd; k++) {
                     // note down the states at the tips
                     int state1 = stateIndex1[k];
                     int state2 = stateIndex2[k];
@@ -353,8 +475,10 @@ public class QuasiSpeciesBeerLikelihoodCore extends BeerLikelihoodCore {
 
                     // w keeps track of the state the internal node evolves from
                     int w = l * matrixSize;
+                    // v starts at the first pattern of the block in this category
+                    v = (l * nrOfPatterns + patternStart) * nrOfStates;
 
-                    for (int k = 0; k < nrOfPatterns; k++) {
+                    for (int k = patternStart; k < patternEnd; k++) {
                         // note down the states at the tips
                         int state1 = stateIndex1[k];
                         int state2 = stateIndex2[k];
@@ -393,8 +517,10 @@ public class QuasiSpeciesBeerLikelihoodCore extends BeerLikelihoodCore {
 
                     // w keeps track of the state the internal node evolves from
                     int w = l * matrixSize;
+                    // v starts at the first pattern of the block in this category
+                    v = (l * nrOfPatterns + patternStart) * nrOfStates;
 
-                    for (int k = 0; k < nrOfPatterns; k++) {
+                    for (int k = patternStart; k < patternEnd; k++) {
                         // note down the states at the tips
                         int state1 = stateIndex1[k];
                         int state2 = stateIndex2[k];
@@ -655,13 +781,16 @@ public class QuasiSpeciesBeerLikelihoodCore extends BeerLikelihoodCore {
      * @param child1QS              QS passing through child 1
      * @param child2QS              QS passing through child 2
      * @param parentQS              QS passing through parent node
+     * @param patternStart          first pattern to calculate
+     * @param patternEnd            pattern after the last one to calculate
      */
     protected void calculateStatesPartialsPruning(int[] stateIndex1, double[] matricesQS1, double[] matrices1aboveQSstart,
                                                   int[] stateIndex2, double[] partials2, double[] matrices2, double[] matrices2aboveQSstart,
-                                                  double[] partials3, int child1QS, int child2QS, int parentQS) {
+                                                  double[] partials3, int child1QS, int child2QS, int parentQS,
+                                                  int patternStart, int patternEnd) {
 
         // v keeps track of the pattern we are about to calculate
-        int v = 0;
+        int v;
 
         // both children have the QS start on the branch leading from the parent to the child or below
         if (parentQS==-1){
@@ -672,8 +801,10 @@ public class QuasiSpeciesBeerLikelihoodCore extends BeerLikelihoodCore {
 
                     // w keeps track of the state the internal node evolves from
                     int w = l * matrixSize;
+                    // v starts at the first pattern of the block in this category
+                    v = (l * nrOfPatterns + patternStart) * nrOfStates;
 
-                    for (int k = 0; k < nrOfPatterns; k++) {
+                    for (int k = patternStart; k < patternEnd; k++) {
                         // note down the states at the tips (tip being true tip or tip belonging to QS passing through child2)
                         int state1 = stateIndex1[k];
                         int state2 = stateIndex2[k];
@@ -712,8 +843,10 @@ public class QuasiSpeciesBeerLikelihoodCore extends BeerLikelihoodCore {
 
                     // w keeps track of the state the internal node evolves from
                     int w = l * matrixSize;
+                    // v starts at the first pattern of the block in this category
+                    v = (l * nrOfPatterns + patternStart) * nrOfStates;
 
-                    for (int k = 0; k < nrOfPatterns; k++) {
+                    for (int k = patternStart; k < patternEnd; k++) {
                         // note down the states at the tips (tip being true tip or tip belonging to QS passing through child2)
                         int state1 = stateIndex1[k];
 
@@ -744,8 +877,10 @@ public class QuasiSpeciesBeerLikelihoodCore extends BeerLikelihoodCore {
 
                     // w keeps track of the state the internal node evolves from
                     int w = l * matrixSize;
+                    // v starts at the first pattern of the block in this category
+                    v = (l * nrOfPatterns + patternStart) * nrOfStates;
 
-                    for (int k = 0; k < nrOfPatterns; k++) {
+                    for (int k = patternStart; k < patternEnd; k++) {
                         // note down the states at the tips (tip being true tip or tip belonging to QS passing through child2)
                         int state1 = stateIndex1[k];
                         int state2 = stateIndex2[k];
@@ -786,8 +921,10 @@ public class QuasiSpeciesBeerLikelihoodCore extends BeerLikelihoodCore {
 
                         // w keeps track of the state the internal node evolves from
                         int w = l * matrixSize;
+                        // v starts at the first pattern of the block in this category
+                        v = (l * nrOfPatterns + patternStart) * nrOfStates;
 
-                        for (int k = 0; k < nrOfPatterns; k++) {
+                        for (int k = patternStart; k < patternEnd; k++) {
                             // note down the states at the tips (tip being true tip or tip belonging to QS passing through child2)
                             int state1 = stateIndex1[k];
                             int state2 = stateIndex2[k];
@@ -826,8 +963,10 @@ public class QuasiSpeciesBeerLikelihoodCore extends BeerLikelihoodCore {
 
                         // w keeps track of the state the internal node evolves from
                         int w = l * matrixSize;
+                        // v starts at the first pattern of the block in this category
+                        v = (l * nrOfPatterns + patternStart) * nrOfStates;
 
-                        for (int k = 0; k < nrOfPatterns; k++) {
+                        for (int k = patternStart; k < patternEnd; k++) {
                             // note down the states at the tips (tip being true tip or tip belonging to QS passing through child2)
                             int state1 = stateIndex1[k];
 
@@ -1246,15 +1385,18 @@ public class QuasiSpeciesBeerLikelihoodCore extends BeerLikelihoodCore {
      * @param child1QS              QS passing through child 1
      * @param child2QS              QS passing through child 2
      * @param parentQS              QS passing through parent node
+     * @param patternStart          first pattern to calculate
+     * @param patternEnd            pattern after the last one to calculate
      */
     protected void calculatePartialsPartialsPruning(int[] stateIndex1, double[] partials1, double[] matrices1, double[] matrices1aboveQSstart,
                                                     int[] stateIndex2, double[] partials2, double[] matrices2, double[] matrices2aboveQSstart,
-                                                    double[] partials3, int child1QS, int child2QS, int parentQS, int nodeIndex1, int nodeIndex2) {
+                                                    double[] partials3, int child1QS, int child2QS, int parentQS, int nodeIndex1, int nodeIndex2,
+                                                    int patternStart, int patternEnd) {
 
         double sum1, sum2, tmp1, tmp2;
 
         // v keeps track of the pattern we are about to calculate
-        int v = 0;
+        int v;
 
         // both children have the QS start on the branch leading from the parent to the child or below
         if (parentQS==-1){
@@ -1268,8 +1410,10 @@ public class QuasiSpeciesBeerLikelihoodCore extends BeerLikelihoodCore {
 
                         // w keeps track of the state the internal node evolves from
                         int w = l * matrixSize;
+                        // v starts at the first pattern of the block in this category
+                        v = (l * nrOfPatterns + patternStart) * nrOfStates;
 
-                        for (int k = 0; k < nrOfPatterns; k++) {
+                        for (int k = patternStart; k < patternEnd; k++) {
                             // note down the states at the tips belonging to QS passing through child1/child2
                             int state1 = stateIndex1[k];
                             int state2 = stateIndex2[k];
@@ -1308,8 +1452,10 @@ public class QuasiSpeciesBeerLikelihoodCore extends BeerLikelihoodCore {
 
                         // w keeps track of the state the internal node evolves from
                         int w = l * matrixSize;
+                        // v starts at the first pattern of the block in this category
+                        v = (l * nrOfPatterns + patternStart) * nrOfStates;
 
-                        for (int k = 0; k < nrOfPatterns; k++) {
+                        for (int k = patternStart; k < patternEnd; k++) {
 
                             // check if both of the child nodes is a tip
                             if (nodeIndex1 == child1QS && nodeIndex2 == child2QS) {
@@ -1362,8 +1508,10 @@ public class QuasiSpeciesBeerLikelihoodCore extends BeerLikelihoodCore {
 
                         // w keeps track of the state the internal node evolves from
                         int w = l * matrixSize;
+                        // v starts at the first pattern of the block in this category
+                        v = (l * nrOfPatterns + patternStart) * nrOfStates;
 
-                        for (int k = 0; k < nrOfPatterns; k++) {
+                        for (int k = patternStart; k < patternEnd; k++) {
                             // note down the states at the tips belonging to QS passing through child1/child2
                             int state1 = stateIndex1[k];
 
@@ -1391,8 +1539,10 @@ public class QuasiSpeciesBeerLikelihoodCore extends BeerLikelihoodCore {
 
                         // w keeps track of the state the internal node evolves from
                         int w = l * matrixSize;
+                        // v starts at the first pattern of the block in this category
+                        v = (l * nrOfPatterns + patternStart) * nrOfStates;
 
-                        for (int k = 0; k < nrOfPatterns; k++) {
+                        for (int k = patternStart; k < patternEnd; k++) {
 
                             // check if the child node 1 is a tip
                             if (nodeIndex1 == child1QS) {
@@ -1427,8 +1577,10 @@ public class QuasiSpeciesBeerLikelihoodCore extends BeerLikelihoodCore {
 
                         // w keeps track of the state the internal node evolves from
                         int w = l * matrixSize;
+                        // v starts at the first pattern of the block in this category
+                        v = (l * nrOfPatterns + patternStart) * nrOfStates;
 
-                        for (int k = 0; k < nrOfPatterns; k++) {
+                        for (int k = patternStart; k < patternEnd; k++) {
                             // note down the states at the tips belonging to QS passing through child1/child2
                             int state2 = stateIndex2[k];
 
@@ -1456,8 +1608,10 @@ public class QuasiSpeciesBeerLikelihoodCore extends BeerLikelihoodCore {
 
                         // w keeps track of the state the internal node evolves from
                         int w = l * matrixSize;
+                        // v starts at the first pattern of the block in this category
+                        v = (l * nrOfPatterns + patternStart) * nrOfStates;
 
-                        for (int k = 0; k < nrOfPatterns; k++) {
+                        for (int k = patternStart; k < patternEnd; k++) {
 
                             // check if the child node 2 is a tip
                             if (nodeIndex2 == child2QS) {
@@ -1488,8 +1642,10 @@ public class QuasiSpeciesBeerLikelihoodCore extends BeerLikelihoodCore {
 
                     // w keeps track of the state the internal node evolves from
                     int w = l * matrixSize;
+                    // v starts at the first pattern of the block in this category
+                    v = (l * nrOfPatterns + patternStart) * nrOfStates;
 
-                    for (int k = 0; k < nrOfPatterns; k++) {
+                    for (int k = patternStart; k < patternEnd; k++) {
                         // note down the states at the tips belonging to QS passing through child1/child2
                         calculatePartialsPartialsPruningHelperBothQSbelowBothUnknownState(partials1, matrices1,
                                                                                           partials2, matrices2,
@@ -1516,8 +1672,10 @@ public class QuasiSpeciesBeerLikelihoodCore extends BeerLikelihoodCore {
 
                             // w keeps track of the state the internal node evolves from
                             int w = l * matrixSize;
+                            // v starts at the first pattern of the block in this category
+                            v = (l * nrOfPatterns + patternStart) * nrOfStates;
 
-                            for (int k = 0; k < nrOfPatterns; k++) {
+                            for (int k = patternStart; k < patternEnd; k++) {
                                 // note down the states at the tips belonging to QS passing through child1/child2
                                 int state1 = stateIndex1[k];
                                 int state2 = stateIndex2[k];
@@ -1558,8 +1716,10 @@ public class QuasiSpeciesBeerLikelihoodCore extends BeerLikelihoodCore {
 
                             // w keeps track of the state the internal node evolves from
                             int w = l * matrixSize;
+                            // v starts at the first pattern of the block in this category
+                            v = (l * nrOfPatterns + patternStart) * nrOfStates;
 
-                            for (int k = 0; k < nrOfPatterns; k++) {
+                            for (int k = patternStart; k < patternEnd; k++) {
 
                                 // check if both of the child nodes is a tip
                                 if (nodeIndex1 == child1QS && nodeIndex2 == child2QS) {
@@ -1608,8 +1768,10 @@ public class QuasiSpeciesBeerLikelihoodCore extends BeerLikelihoodCore {
 
                             // w keeps track of the state the internal node evolves from
                             int w = l * matrixSize;
+                            // v starts at the first pattern of the block in this category
+                            v = (l * nrOfPatterns + patternStart) * nrOfStates;
 
-                            for (int k = 0; k < nrOfPatterns; k++) {
+                            for (int k = patternStart; k < patternEnd; k++) {
                                 // note down the states at the tips belonging to QS passing through child1/child2
                                 int state2 = stateIndex2[k];
 
@@ -1633,8 +1795,10 @@ public class QuasiSpeciesBeerLikelihoodCore extends BeerLikelihoodCore {
 
                             // w keeps track of the state the internal node evolves from
                             int w = l * matrixSize;
+                            // v starts at the first pattern of the block in this category
+                            v = (l * nrOfPatterns + patternStart) * nrOfStates;
 
-                            for (int k = 0; k < nrOfPatterns; k++) {
+                            for (int k = patternStart; k < patternEnd; k++) {
 
                                 // check if the child node 2 is a tip
                                 if (nodeIndex2 == child2QS) {
@@ -1669,8 +1833,10 @@ public class QuasiSpeciesBeerLikelihoodCore extends BeerLikelihoodCore {
 
                             // w keeps track of the state the internal node evolves from
                             int w = l * matrixSize;
+                            // v starts at the first pattern of the block in this category
+                            v = (l * nrOfPatterns + patternStart) * nrOfStates;
 
-                            for (int k = 0; k < nrOfPatterns; k++) {
+                            for (int k = patternStart; k < patternEnd; k++) {
                                 // note down the states at the tips belonging to QS passing through child1/child2
                                 int state1 = stateIndex1[k];
                                 int state2 = stateIndex2[k];
@@ -1709,8 +1875,10 @@ public class QuasiSpeciesBeerLikelihoodCore extends BeerLikelihoodCore {
 
                             // w keeps track of the state the internal node evolves from
                             int w = l * matrixSize;
+                            // v starts at the first pattern of the block in this category
+                            v = (l * nrOfPatterns + patternStart) * nrOfStates;
 
-                            for (int k = 0; k < nrOfPatterns; k++) {
+                            for (int k = patternStart; k < patternEnd; k++) {
 
                                 // check if both of the child nodes is a tip
                                 if (nodeIndex1 == child1QS && nodeIndex2 == child2QS) {
@@ -1759,8 +1927,10 @@ public class QuasiSpeciesBeerLikelihoodCore extends BeerLikelihoodCore {
 
                             // w keeps track of the state the internal node evolves from
                             int w = l * matrixSize;
+                            // v starts at the first pattern of the block in this category
+                            v = (l * nrOfPatterns + patternStart) * nrOfStates;
 
-                            for (int k = 0; k < nrOfPatterns; k++) {
+                            for (int k = patternStart; k < patternEnd; k++) {
                                 // note down the states at the tips belonging to QS passing through child1/child2
                                 int state1 = stateIndex1[k];
 
@@ -1788,8 +1958,10 @@ public class QuasiSpeciesBeerLikelihoodCore extends BeerLikelihoodCore {
 
                             // w keeps track of the state the internal node evolves from
                             int w = l * matrixSize;
+                            // v starts at the first pattern of the block in this category
+                            v = (l * nrOfPatterns + patternStart) * nrOfStates;
 
-                            for (int k = 0; k < nrOfPatterns; k++) {
+                            for (int k = patternStart; k < patternEnd; k++) {
 
                                 // check if the child node 1 is a tip
                                 if (nodeIndex1 == child1QS) {
@@ -2204,24 +2376,108 @@ public class QuasiSpeciesBeerLikelihoodCore extends BeerLikelihoodCore {
      * @param nodeCount  total count of the true nodes in the tree
      */
     public void calculateQSPartials(int nodeIndex1, int nodeIndex2, int nodeIndex3, int child1QS, int child2QS, int parentQS, int nodeCount) {
+        calculatePatternBlocks((patternStart, patternEnd) -> {
+            calculateQSPartials(nodeIndex1, nodeIndex2, nodeIndex3, child1QS, child2QS, parentQS, nodeCount,
+                    patternStart, patternEnd);
+            if (useScaling) {
+                scaleAndAccumulatePartials(nodeIndex1, nodeIndex2, nodeIndex3, patternStart, patternEnd);
+            }
+        });
+    }
+
+    /**
+     * Rescales the partials of the patterns that are about to underflow at a node and
+     * adds the log scaling factors of the node to those accumulated below its children.
+     * Patterns above the threshold are left as they are, with a log scaling factor of 0,
+     * so the rescaling stays local to the nodes and patterns that need it.
+     *
+     * @param nodeIndex1 the 'child 1' node
+     * @param nodeIndex2 the 'child 2' node
+     * @param nodeIndex3 the 'parent' node
+     */
+    protected void scaleAndAccumulatePartials(int nodeIndex1, int nodeIndex2, int nodeIndex3, int patternStart, int patternEnd) {
+        final double[] partials3 = partials[currentPartialsIndex[nodeIndex3]][nodeIndex3];
+        final double[] scaling3 = scalingFactors[currentPartialsIndex[nodeIndex3]][nodeIndex3];
+        final double[] accumulated1 = accumulatedScalingFactors[currentPartialsIndex[nodeIndex1]][nodeIndex1];
+        final double[] accumulated2 = accumulatedScalingFactors[currentPartialsIndex[nodeIndex2]][nodeIndex2];
+        final double[] accumulated3 = accumulatedScalingFactors[currentPartialsIndex[nodeIndex3]][nodeIndex3];
+        final int matrixStride = nrOfPatterns * nrOfStates;
+
+        for (int k = patternStart; k < patternEnd; k++) {
+            double scaleFactor = 0.0;
+            for (int l = 0; l < nrOfMatrices; l++) {
+                int v = l * matrixStride + k * nrOfStates;
+                for (int i = 0; i < nrOfStates; i++) {
+                    if (partials3[v + i] > scaleFactor) {
+                        scaleFactor = partials3[v + i];
+                    }
+                }
+            }
+            double logScaleFactor = 0.0;
+            // a pattern with only zero partials has likelihood 0 and is left unscaled
+            if (scaleFactor > 0.0 && scaleFactor < rescalingThreshold) {
+                for (int l = 0; l < nrOfMatrices; l++) {
+                    int v = l * matrixStride + k * nrOfStates;
+                    for (int i = 0; i < nrOfStates; i++) {
+                        partials3[v + i] /= scaleFactor;
+                    }
+                }
+                logScaleFactor = Math.log(scaleFactor);
+            }
+            scaling3[k] = logScaleFactor;
+            accumulated3[k] = logScaleFactor + accumulated1[k] + accumulated2[k];
+        }
+    }
+
+    /**
+     * Sets the value below which the largest partial of a pattern at a node is rescaled
+     * while scaling is on. Values above 1 rescale every node and pattern.
+     *
+     * @param rescalingThreshold threshold, 1E-100 by default
+     */
+    public void setRescalingThreshold(double rescalingThreshold) {
+        this.rescalingThreshold = rescalingThreshold;
+    }
+
+    @Override
+    public void setUseScaling(double scale) {
+        super.setUseScaling(scale);
+        if (useScaling) {
+            accumulatedScalingFactors = new double[2][nrOfNodes][nrOfPatterns];
+        }
+    }
+
+    /**
+     * @return the log scaling factor of a pattern, accumulated over the whole tree at the root
+     */
+    @Override
+    public double getLogScalingFactor(int patternIndex) {
+        if (!useScaling || rootNodeIndex < 0) {
+            return 0.0;
+        }
+        return accumulatedScalingFactors[currentPartialsIndex[rootNodeIndex]][rootNodeIndex][patternIndex];
+    }
+
+    protected void calculateQSPartials(int nodeIndex1, int nodeIndex2, int nodeIndex3, int child1QS, int child2QS, int parentQS, int nodeCount,
+                                       int patternStart, int patternEnd) {
         if (states[nodeIndex1] != null) {
             if (states[nodeIndex2] != null) {
                 calculateStatesStatesPruning(
                         states[nodeIndex1],matrices[currentMatrixIndex[nodeIndex1]][nodeIndex1],matrices[currentMatrixIndex[nodeCount+nodeIndex1]][nodeCount+nodeIndex1],
                         states[nodeIndex2],matrices[currentMatrixIndex[nodeIndex2]][nodeIndex2],matrices[currentMatrixIndex[nodeCount+nodeIndex2]][nodeCount+nodeIndex2],
-                        partials[currentPartialsIndex[nodeIndex3]][nodeIndex3],child1QS,child2QS,parentQS);
+                        partials[currentPartialsIndex[nodeIndex3]][nodeIndex3],child1QS,child2QS,parentQS,patternStart,patternEnd);
             } else {
                 if (child2QS == -1){
                     calculateStatesPartialsPruning(
                         states[nodeIndex1],matrices[currentMatrixIndex[nodeIndex1]][nodeIndex1],matrices[currentMatrixIndex[nodeCount+nodeIndex1]][nodeCount+nodeIndex1],
                         null,partials[currentPartialsIndex[nodeIndex2]][nodeIndex2],matrices[currentMatrixIndex[nodeIndex2]][nodeIndex2],null,
-                        partials[currentPartialsIndex[nodeIndex3]][nodeIndex3],child1QS,child2QS,parentQS);
+                        partials[currentPartialsIndex[nodeIndex3]][nodeIndex3],child1QS,child2QS,parentQS,patternStart,patternEnd);
                 }
                 else {
                     calculateStatesPartialsPruning(
                         states[nodeIndex1],matrices[currentMatrixIndex[nodeIndex1]][nodeIndex1],matrices[currentMatrixIndex[nodeCount+nodeIndex1]][nodeCount+nodeIndex1],
                         states[child2QS],partials[currentPartialsIndex[nodeIndex2]][nodeIndex2],matrices[currentMatrixIndex[nodeIndex2]][nodeIndex2],matrices[currentMatrixIndex[nodeCount+child2QS]][nodeCount+child2QS],
-                        partials[currentPartialsIndex[nodeIndex3]][nodeIndex3],child1QS,child2QS,parentQS);
+                        partials[currentPartialsIndex[nodeIndex3]][nodeIndex3],child1QS,child2QS,parentQS,patternStart,patternEnd);
                 }
             }
         } else {
@@ -2230,45 +2486,41 @@ public class QuasiSpeciesBeerLikelihoodCore extends BeerLikelihoodCore {
                     calculateStatesPartialsPruning(
                         states[nodeIndex2],matrices[currentMatrixIndex[nodeIndex2]][nodeIndex2],matrices[currentMatrixIndex[nodeCount+nodeIndex2]][nodeCount+nodeIndex2],
                         null,partials[currentPartialsIndex[nodeIndex1]][nodeIndex1],matrices[currentMatrixIndex[nodeIndex1]][nodeIndex1],null,
-                        partials[currentPartialsIndex[nodeIndex3]][nodeIndex3],child2QS,child1QS,parentQS);
+                        partials[currentPartialsIndex[nodeIndex3]][nodeIndex3],child2QS,child1QS,parentQS,patternStart,patternEnd);
                 }
                 else{
                     calculateStatesPartialsPruning(
                         states[nodeIndex2],matrices[currentMatrixIndex[nodeIndex2]][nodeIndex2],matrices[currentMatrixIndex[nodeCount+nodeIndex2]][nodeCount+nodeIndex2],
                         states[child1QS],partials[currentPartialsIndex[nodeIndex1]][nodeIndex1],matrices[currentMatrixIndex[nodeIndex1]][nodeIndex1],matrices[currentMatrixIndex[nodeCount+child1QS]][nodeCount+child1QS],
-                        partials[currentPartialsIndex[nodeIndex3]][nodeIndex3],child2QS,child1QS,parentQS);
+                        partials[currentPartialsIndex[nodeIndex3]][nodeIndex3],child2QS,child1QS,parentQS,patternStart,patternEnd);
                 }
             } else {
                 if (child1QS == -1 && child2QS == -1){
                     calculatePartialsPartialsPruning(
                         null,partials[currentPartialsIndex[nodeIndex1]][nodeIndex1],matrices[currentMatrixIndex[nodeIndex1]][nodeIndex1],null,
                         null,partials[currentPartialsIndex[nodeIndex2]][nodeIndex2],matrices[currentMatrixIndex[nodeIndex2]][nodeIndex2],null,
-                        partials[currentPartialsIndex[nodeIndex3]][nodeIndex3],child1QS,child2QS,parentQS,nodeIndex1,nodeIndex2);
+                        partials[currentPartialsIndex[nodeIndex3]][nodeIndex3],child1QS,child2QS,parentQS,nodeIndex1,nodeIndex2,patternStart,patternEnd);
                 }
                 else if (child1QS == -1){
                     calculatePartialsPartialsPruning(
                         null,partials[currentPartialsIndex[nodeIndex1]][nodeIndex1],matrices[currentMatrixIndex[nodeIndex1]][nodeIndex1],null,
                         states[child2QS],partials[currentPartialsIndex[nodeIndex2]][nodeIndex2],matrices[currentMatrixIndex[nodeIndex2]][nodeIndex2],matrices[currentMatrixIndex[nodeCount+child2QS]][nodeCount+child2QS],
-                        partials[currentPartialsIndex[nodeIndex3]][nodeIndex3],child1QS,child2QS,parentQS,nodeIndex1,nodeIndex2);
+                        partials[currentPartialsIndex[nodeIndex3]][nodeIndex3],child1QS,child2QS,parentQS,nodeIndex1,nodeIndex2,patternStart,patternEnd);
                 }
                 else if (child2QS == -1){
                     calculatePartialsPartialsPruning(
                         states[child1QS],partials[currentPartialsIndex[nodeIndex1]][nodeIndex1],matrices[currentMatrixIndex[nodeIndex1]][nodeIndex1],matrices[currentMatrixIndex[nodeCount+child1QS]][nodeCount+child1QS],
                         null,partials[currentPartialsIndex[nodeIndex2]][nodeIndex2],matrices[currentMatrixIndex[nodeIndex2]][nodeIndex2],null,
-                        partials[currentPartialsIndex[nodeIndex3]][nodeIndex3],child1QS,child2QS,parentQS,nodeIndex1,nodeIndex2);
+                        partials[currentPartialsIndex[nodeIndex3]][nodeIndex3],child1QS,child2QS,parentQS,nodeIndex1,nodeIndex2,patternStart,patternEnd);
                 }
                 else{
                     calculatePartialsPartialsPruning(
                         states[child1QS],partials[currentPartialsIndex[nodeIndex1]][nodeIndex1],matrices[currentMatrixIndex[nodeIndex1]][nodeIndex1],matrices[currentMatrixIndex[nodeCount+child1QS]][nodeCount+child1QS],
                         states[child2QS],partials[currentPartialsIndex[nodeIndex2]][nodeIndex2],matrices[currentMatrixIndex[nodeIndex2]][nodeIndex2],matrices[currentMatrixIndex[nodeCount+child2QS]][nodeCount+child2QS],
-                        partials[currentPartialsIndex[nodeIndex3]][nodeIndex3],child1QS,child2QS,parentQS,nodeIndex1,nodeIndex2);
+                        partials[currentPartialsIndex[nodeIndex3]][nodeIndex3],child1QS,child2QS,parentQS,nodeIndex1,nodeIndex2,patternStart,patternEnd);
                 }
             }
         }
-
-        if (useScaling) {
-            scalePartials(nodeIndex3);
-        }
     }
     
     @Override
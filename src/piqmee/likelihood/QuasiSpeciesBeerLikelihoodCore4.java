@@ -1,5 +1,9 @@
 package piqmee.likelihood;
 
+/**
+ * Quasispecies likelihood core for nucleotide data, with the loops over the
+ * 4 states of the QS pruning unrolled.
+ */
 public class QuasiSpeciesBeerLikelihoodCore4 extends QuasiSpeciesBeerLikelihoodCore {
 
 	public QuasiSpeciesBeerLikelihoodCore4(int nrOfStates) {
@@ -1353,7 +1357,112 @@ public class QuasiSpeciesBeerLikelihoodCore4 extends QuasiSpeciesBeerLikelihoodC
         }
     }
 
-	
-	
-	
+    /**
+     * Calculates partial likelihood at origin if tree has only one tip with states.
+     *
+     * @param stateIndex            alignment at the tip (child 1)
+     * @param matricesQS1           transition probability matrix from parent to the tip (child 1) - if the node is a tip, it holds the probability that the sequence does not change from the tip to the start of the haplo
+     * @param matrices1aboveQSstart transition probability matrix from node above QS start to QS start for QS passing through the tip (child 1)
+     * @param originPartials        probability vector at origin (of length nrOfStates * nrOfPatterns)
+     * @param child1QS              QS passing through parent tip (child 1)
+     * @param patternStart          first pattern to calculate
+     * @param patternEnd            pattern after the last one to calculate
+     */
+    @Override
+    protected void calculateOriginTipPruning(int[] stateIndex, double[] matricesQS1, double[] matrices1aboveQSstart,
+                                             double[] originPartials, int child1QS,
+                                             int patternStart, int patternEnd){
+
+        double tmp;
+
+        for (int l = 0; l < nrOfMatrices; l++) {
+
+            // w keeps track of the state the internal node evolves from
+            int w = l * matrixSize;
+            // v keeps track of the pattern we are about to calculate
+            int v = (l * nrOfPatterns + patternStart) * 4;
+
+            for (int k = patternStart; k < patternEnd; k++) {
+                // note down the state at the tip
+                int state = stateIndex[k];
+
+                // the child has a state
+                if (state < 4) {
+                    // P(QS start -> QS tip)
+                    tmp = matricesQS1[w + 4 * state + state];
+                    final int s = w + state;
+                    originPartials[v    ] = tmp * matrices1aboveQSstart[s];
+                    originPartials[v + 1] = tmp * matrices1aboveQSstart[s + 4];
+                    originPartials[v + 2] = tmp * matrices1aboveQSstart[s + 4 * 2];
+                    originPartials[v + 3] = tmp * matrices1aboveQSstart[s + 4 * 3];
+                } else {
+                    // the alignment at node has a gap or unknown state so treat it as unknown
+                    final double tmp0 = matricesQS1[w];
+                    final double tmp1 = matricesQS1[w + 5];
+                    final double tmp2 = matricesQS1[w + 10];
+                    final double tmp3 = matricesQS1[w + 15];
+                    for (int i = 0; i < 4; i++) {
+                        final int s = w + 4 * i;
+                        originPartials[v + i] = tmp0 * matrices1aboveQSstart[s]
+                                              + tmp1 * matrices1aboveQSstart[s + 1]
+                                              + tmp2 * matrices1aboveQSstart[s + 2]
+                                              + tmp3 * matrices1aboveQSstart[s + 3];
+                    }
+                }
+
+                v += 4;
+
+            }
+        }
+    }
+
+    /**
+     * Calculates partial likelihood at origin if tree has only one tip with partials.
+     *
+     * @param partials1             partials at the tip (child 1)
+     * @param matricesQS1           transition probability matrix from parent to the tip (child 1) - if the node is a tip, it holds the probability that the sequence does not change from the tip to the start of the haplo
+     * @param matrices1aboveQSstart transition probability matrix from node above QS start to QS start for QS passing through the tip (child 1)
+     * @param originPartials        probability vector at origin (of length nrOfStates * nrOfPatterns)
+     * @param child1QS              QS passing through parent tip (child 1)
+     * @param patternStart          first pattern to calculate
+     * @param patternEnd            pattern after the last one to calculate
+     */
+    @Override
+    protected void calculateOriginTipPruning(double[] partials1, double[] matricesQS1, double[] matrices1aboveQSstart,
+                                             double[] originPartials, int child1QS,
+                                             int patternStart, int patternEnd){
+
+        for (int l = 0; l < nrOfMatrices; l++) {
+
+            // w keeps track of the state the internal node evolves from
+            int w = l * matrixSize;
+            // v keeps track of the pattern we are about to calculate
+            int v = (l * nrOfPatterns + patternStart) * 4;
+
+            // P(QS start -> QS tip) does not depend on the pattern
+            final double tmp0 = matricesQS1[w];
+            final double tmp1 = matricesQS1[w + 5];
+            final double tmp2 = matricesQS1[w + 10];
+            final double tmp3 = matricesQS1[w + 15];
+
+            for (int k = patternStart; k < patternEnd; k++) {
+                // since state at QS tip is unknown, take into account all the possibilities
+                final double p0 = partials1[v] * tmp0;
+                final double p1 = partials1[v + 1] * tmp1;
+                final double p2 = partials1[v + 2] * tmp2;
+                final double p3 = partials1[v + 3] * tmp3;
+                for (int i = 0; i < 4; i++) {
+                    final int s = w + 4 * i;
+                    originPartials[v + i] = p0 * matrices1aboveQSstart[s]
+                                          + p1 * matrices1aboveQSstart[s + 1]
+                                          + p2 * matrices1aboveQSstart[s + 2]
+                                          + p3 * matrices1aboveQSstart[s + 3];
+                }
+
+                v += 4;
+
+            }
+        }
+    }
+
 }
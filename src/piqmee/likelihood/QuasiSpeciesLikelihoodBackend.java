@@ -0,0 +1,31 @@
+package piqmee.likelihood;
+
+/**
+ * Back-end of QuasiSpeciesLikelihoodEngine: a quasi-species tree likelihood implementation
+ * that is driven by the engine instead of by the state, i.e. the engine forwards the
+ * CalculationNode calls it receives.
+ */
+public interface QuasiSpeciesLikelihoodBackend {
+
+    /**
+     * @return log likelihood of the current state
+     */
+    double calculateLogP();
+
+    /**
+     * Check which parts of the model changed since the last store, as CalculationNode.requiresRecalculation.
+     *
+     * @return whether the likelihood has to be recalculated
+     */
+    boolean requiresRecalculation();
+
+    void store();
+
+    void restore();
+
+    /**
+     * Release resources, e.g. worker threads, of a back-end that is not used.
+     */
+    default void release() {
+    }
+}
@@ -0,0 +1,197 @@
+package piqmee.likelihood;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import beast.base.core.BEASTInterface;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Log;
+import beast.base.evolution.likelihood.GenericTreeLikelihood;
+import beast.base.evolution.tree.Tree;
+
+@Description("Calculates the probability of sequence data on a quasi-species tree with one of " +
+        "several back-ends: the serial or threaded Java likelihood core, or BEAGLE, which does not scale " +
+        "partials and is therefore not used with scaling=\"always\". " +
+        "By default every available back-end is timed at startup and the fastest one is used.")
+public class QuasiSpeciesLikelihoodEngine extends GenericTreeLikelihood {
+
+    public enum Backend {auto, java, threaded, beagle}
+
+    final public Input<Backend> backendInput = new Input<>("backend",
+            "back-end computing the likelihood, one of " + Arrays.toString(Backend.values()) +
+                    " (default auto, i.e. the fastest available one)", Backend.auto, Backend.values());
+    final public Input<Integer> threadsInput = new Input<>("threads",
+            "number of threads of the threaded back-end (default 0, i.e. the number of processors)", 0);
+    final public Input<Boolean> useAmbiguities = new Input<>("useAmbiguities",
+            "flag to indicate that sites containing ambiguous states should be handled instead of ignored (the default)", false);
+    final public Input<QuasiSpeciesTreeLikelihood.Scaling> scalingInput = new Input<>("scaling",
+            "type of scaling to use, one of " + Arrays.toString(QuasiSpeciesTreeLikelihood.Scaling.values()) +
+                    ". If not specified, the -beagle_scaling flag is used.",
+            QuasiSpeciesTreeLikelihood.Scaling._default, QuasiSpeciesTreeLikelihood.Scaling.values());
+
+    // number of full and of partial evaluations timed for each back-end when choosing automatically
+    static final int CALIBRATION_ROUNDS = 200;
+
+    protected QuasiSpeciesLikelihoodBackend backend;
+    protected Backend backendType;
+    protected int backendThreads = 1;
+
+    @Override
+    public void initAndValidate() {
+        // back-ends to try with their thread counts; the threaded one with 2, 4, ... threads up to the maximum
+        List<Backend> candidates = new ArrayList<>();
+        List<Integer> candidateThreads = new ArrayList<>();
+        if (backendInput.get() == Backend.auto) {
+            candidates.add(Backend.java);
+            candidateThreads.add(1);
+            for (int threads = 2; threads < 2 * getThreadCount(); threads *= 2) {
+                candidates.add(Backend.threaded);
+                candidateThreads.add(Math.min(threads, getThreadCount()));
+            }
+            candidates.add(Backend.beagle);
+            candidateThreads.add(1);
+        } else {
+            candidates.add(backendInput.get());
+            candidateThreads.add(backendInput.get() == Backend.threaded ? getThreadCount() : 1);
+        }
+
+        Tree tree = (Tree) treeInput.get();
+        double bestTime = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < candidates.size(); i++) {
+            Backend candidate = candidates.get(i);
+            int threads = candidateThreads.get(i);
+            QuasiSpeciesLikelihoodBackend likelihood = createBackend(candidate, threads);
+            if (likelihood == null) {
+                if (backendInput.get() != Backend.auto)
+                    throw new IllegalArgumentException("The " + candidate + " back-end is not available.");
+                Log.info.println(getClass().getSimpleName() + "(" + getID() + "): " + candidate + " back-end not available");
+                continue;
+            }
+            // the engine forwards the CalculationNode calls, so the back-end is taken out of the model graph
+            detach((BEASTInterface) likelihood);
+            if (candidates.size() == 1) {
+                backend = likelihood;
+                backendType = candidate;
+                backendThreads = threads;
+                break;
+            }
+
+            double fullTime = LikelihoodCalibration.timeFullEvaluations(tree, likelihood, CALIBRATION_ROUNDS);
+            double partialTime = LikelihoodCalibration.timePartialEvaluations(tree, likelihood, CALIBRATION_ROUNDS);
+            Log.info.println(getClass().getSimpleName() + "(" + getID() + "): " + describe(candidate, threads) + " "
+                    + String.format("%.3f", fullTime * 1e3) + " ms per full and "
+                    + String.format("%.3f", partialTime * 1e3) + " ms per partial evaluation");
+            if (fullTime + partialTime < bestTime) {
+                if (backend != null)
+                    backend.release();
+                bestTime = fullTime + partialTime;
+                backend = likelihood;
+                backendType = candidate;
+                backendThreads = threads;
+            } else {
+                likelihood.release();
+            }
+        }
+        if (backend == null)
+            throw new IllegalArgumentException("No likelihood back-end could be initialised.");
+
+        Log.info.println(getClass().getSimpleName() + "(" + getID() + ") uses the " + describe(backendType, backendThreads));
+    }
+
+    private static String describe(Backend type, int threads) {
+        return type + " back-end" + (type == Backend.threaded ? " with " + threads + " threads" : "");
+    }
+
+    /**
+     * @return the back-end in use
+     */
+    public Backend getBackend() {
+        return backendType;
+    }
+
+    /**
+     * @return the number of threads of the back-end in use
+     */
+    public int getBackendThreads() {
+        return backendThreads;
+    }
+
+    int getThreadCount() {
+        return threadsInput.get() > 0 ? threadsInput.get() : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Create and initialise a back-end on the inputs of the engine.
+     *
+     * @return the back-end, null if it is not available
+     */
+    QuasiSpeciesLikelihoodBackend createBackend(Backend type, int threads) {
+        switch (type) {
+            case java:
+            case threaded:
+                QuasiSpeciesTreeLikelihood javaLikelihood = new QuasiSpeciesTreeLikelihood();
+                javaLikelihood.initByName(
+                        "data", dataInput.get(), "tree", treeInput.get(), "siteModel", siteModelInput.get(),
+                        "branchRateModel", branchRateModelInput.get(), "useAmbiguities", useAmbiguities.get(),
+                        "scaling", scalingInput.get(), "threads", threads);
+                return javaLikelihood;
+            case beagle:
+                if (scalingInput.get() == QuasiSpeciesTreeLikelihood.Scaling.always) {
+                    // QuasiSpeciesBeagleTreeLikelihood3 scaling does not work properly
+                    return null;
+                }
+                QuasiSpeciesBeagleTreeLikelihood3 beagleLikelihood = new QuasiSpeciesBeagleTreeLikelihood3();
+                try {
+                    beagleLikelihood.initByName(
+                            "data", dataInput.get(), "tree", treeInput.get(), "siteModel", siteModelInput.get(),
+                            "branchRateModel", branchRateModelInput.get(), "useAmbiguities", useAmbiguities.get(),
+                            "scaling", QuasiSpeciesTreeLikelihood3.Scaling.none);
+                } catch (Exception e) {
+                    // no BEAGLE library could be loaded
+                    detach(beagleLikelihood);
+                    return null;
+                }
+                if (beagleLikelihood.getBeagle() == null) {
+                    detach(beagleLikelihood);
+                    return null;
+                }
+                return beagleLikelihood;
+            default:
+                throw new IllegalArgumentException("Unknown back-end " + type);
+        }
+    }
+
+    /**
+     * Remove a back-end from the outputs of its inputs, so that the state does not
+     * store, restore or check it on its own.
+     */
+    static void detach(BEASTInterface likelihood) {
+        for (BEASTInterface input : likelihood.listActiveBEASTObjects())
+            input.getOutputs().remove(likelihood);
+    }
+
+    @Override
+    public double calculateLogP() {
+        logP = backend.calculateLogP();
+        return logP;
+    }
+
+    @Override
+    protected boolean requiresRecalculation() {
+        return backend.requiresRecalculation();
+    }
+
+    @Override
+    public void store() {
+        backend.store();
+        super.store();
+    }
+
+    @Override
+    public void restore() {
+        backend.restore();
+        super.restore();
+    }
+}
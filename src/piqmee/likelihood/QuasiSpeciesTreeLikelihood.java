@@ -4,11 +4,11 @@ import beast.base.core.Description;
 import beast.base.core.Input;
 import beast.base.inference.State;
 import beast.base.core.Log;
+import beast.base.inference.CalculationNode;
 import beast.base.evolution.alignment.Alignment;
 import beast.base.evolution.alignment.FilteredAlignment;
 import beast.base.evolution.branchratemodel.BranchRateModel;
 import beast.base.evolution.branchratemodel.StrictClockModel;
-import beast.base.evolution.substitutionmodel.EigenDecomposition;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.TreeInterface;
 import beast.base.evolution.likelihood.LikelihoodCore;
@@ -26,12 +26,15 @@ import java.util.*;
 @Description("Calculates the probability of sequence data on a beast.piqmee.tree " +
         "given a site and substitution model using a variant of the 'peeling algorithm'. " +
         "For details, see Felsenstein, Joseph (1981). Evolutionary trees from DNA sequences: a maximum likelihood approach. J Mol Evol 17 (6): 368-376.")
-public class QuasiSpeciesTreeLikelihood extends GenericTreeLikelihood {
+public class QuasiSpeciesTreeLikelihood extends GenericTreeLikelihood implements QuasiSpeciesLikelihoodBackend {
 
     final public Input<Boolean> useAmbiguities = new Input<>("useAmbiguities", "flag to indicate that sites containing ambiguous states should be handled instead of ignored (the default)", false);
     final public Input<Boolean> useTipLikelihoods = new Input<>("useTipLikelihoods", "flag to indicate that partial likelihoods are provided at the tips", false);
     public static enum Scaling {none, always, _default};
     final public Input<Scaling> scaling = new Input<>("scaling", "type of scaling to use, one of " + Arrays.toString(Scaling.values()) + ". If not specified, the -beagle_scaling flag is used.", Scaling._default, Scaling.values());
+    final public Input<Integer> threadsInput = new Input<>("threads", "number of threads the site patterns are split across when calculating the partials (default 1, i.e. single threaded)", 1);
+    final public Input<Integer> matrixCacheSizeInput = new Input<>("matrixCacheSize", "number of transition probability matrices kept for reuse by branches with the same length and rate (default 1024). " +
+            "Only used with the time-homogeneous JukesCantor, HKY, GTR and GeneralSubstitutionModel, set to 0 to switch off.", 1024);
 
 //    public Input<RealParameter> origin =
 //            new Input<RealParameter>("origin", "The time from origin to last sample (must be larger than tree height)", (RealParameter) null, Input.Validate.REQUIRED);
@@ -65,12 +68,15 @@ public class QuasiSpeciesTreeLikelihood extends GenericTreeLikelihood {
      * Memory for transition probabilities.
      */
     double[] probabilities;
+    /**
+     * Transition probability matrices shared by branches with the same length and rate, null if disabled.
+     */
+    protected TransitionMatrixCache matrixCache;
     /**
      * Memory for substitution rates QS.
      */
     double[] rates;
     double[] storedRates;
-    double[] tmpevectimesevals;
     /**
      * flag to indicate ascertainment correction should be applied *
      */
@@ -139,15 +145,19 @@ public class QuasiSpeciesTreeLikelihood extends GenericTreeLikelihood {
         storedBranchLengths = new double[nodeCount+leafNodeCount];
 
         int patterns = alignment.getPatternCount();
-        if (nStates == 4) {
-            likelihoodCore = new QuasiSpeciesBeerLikelihoodCore4(nStates);
-        } else {
-            likelihoodCore = new QuasiSpeciesBeerLikelihoodCore(nStates);
+        // release the worker threads of a core from an earlier initialisation
+        if (likelihoodCore != null) {
+            ((QuasiSpeciesBeerLikelihoodCore) likelihoodCore).setThreadCount(1);
         }
+        likelihoodCore = createLikelihoodCore(nStates);
+        ((QuasiSpeciesBeerLikelihoodCore) likelihoodCore).setThreadCount(threadsInput.get());
 
         String className = getClass().getSimpleName();
 
         Log.info.println(className + "(" + getID() + ") uses " + likelihoodCore.getClass().getSimpleName());
+        if (threadsInput.get() > 1) {
+            Log.info.println("  splitting site patterns across " + threadsInput.get() + " threads");
+        }
         Log.info.println("  " + alignment.toString(true));
         // print startup messages via Log.print*
 
@@ -158,17 +168,22 @@ public class QuasiSpeciesTreeLikelihood extends GenericTreeLikelihood {
         }
 
         initCore();
+        if (scaling.get().equals(Scaling.always)) {
+            likelihoodCore.setUseScaling(SCALE);
+        }
 
         patternLogLikelihoods = new double[patterns];
         rootPartials = new double[patterns * nStates * siteModel.getCategoryCount()];
         originPartials = new double[patterns * nStates];
         matrixSize = (nStates + 1) * (nStates + 1);
         probabilities = new double[(nStates + 1) * (nStates + 1)];
+        // the cache is only correct for models whose matrices depend on the branch length times rate alone
+        matrixCache = matrixCacheSizeInput.get() > 0 && TransitionMatrixCache.isTimeHomogeneous(substitutionModel)
+                ? new TransitionMatrixCache(matrixCacheSizeInput.get(), nStates * nStates) : null;
         Arrays.fill(probabilities, 1.0);
 
         rates = new double[nStates];
         storedRates = new double [nStates];
-        tmpevectimesevals = new double[nStates * nStates];
         getNoChangeRates(rates);
 
         if (alignment.isAscertained) {
@@ -184,24 +199,27 @@ public class QuasiSpeciesTreeLikelihood extends GenericTreeLikelihood {
      *
      */
     public void getNoChangeRates(double[] rates) {
-        EigenDecomposition eigenDecomposition = substitutionModel.getEigenDecomposition(null);
-        double[] evec = eigenDecomposition.getEigenVectors();
-        double[] eval = eigenDecomposition.getEigenValues();
-        double[] ievc = eigenDecomposition.getInverseEigenVectors();
-        for (int i = 0; i < nStates; i++) {
-            for (int j = 0; j < nStates; j++) {
-                tmpevectimesevals[i * nStates + j] = evec[i * nStates + j] * eval[j];
-            }
-        }
-        for (int i = 0; i < nStates; i++) {
-            rates[i] = 0;
-            for (int j = 0; j < nStates; j++) {
-                rates[i] += tmpevectimesevals[i * nStates + j] * ievc[j * nStates + i];
-            }
-            //            System.out.println(rates[i]);
+        NoChangeRates.getNoChangeRates(substitutionModel, nStates, rates);
+    }
+
+    /**
+     * Transition probabilities of the substitution model, through the matrix cache if enabled.
+     */
+    protected void getTransitionProbabilities(Node node, double startTime, double endTime, double rate, double[] matrix) {
+        if (matrixCache != null) {
+            matrixCache.getTransitionProbabilities(substitutionModel, node, startTime, endTime, rate, matrix);
+        } else {
+            substitutionModel.getTransitionProbabilities(node, startTime, endTime, rate, matrix);
         }
     }
 
+    /**
+     * @return whether the substitution model changed, conservatively true if it is not a CalculationNode
+     */
+    boolean substitutionModelIsDirty() {
+        return !(substitutionModel instanceof CalculationNode) || ((CalculationNode) substitutionModel).isDirtyCalculation();
+    }
+
     /**
      * Determine indices of rootProbabilities that need to be updated
      * // due to sites being invariant. If none of the sites are invariant,
@@ -347,10 +365,8 @@ public class QuasiSpeciesTreeLikelihood extends GenericTreeLikelihood {
      *
      * @return the log likelihood.
      */
-    double m_fScale = 1.01;
-    int m_nScale = 0;
-    int X = 100;
-    boolean startScaling = false;
+    // any value other than 1.0 switches scaling on in the likelihood core
+    static final double SCALE = 1.01;
 
     @Override
     public double calculateLogP() {
@@ -360,8 +376,13 @@ public class QuasiSpeciesTreeLikelihood extends GenericTreeLikelihood {
         }
         final TreeInterface tree = treeInput.get();
 
-        if (siteModel.isDirtyCalculation())
+        // the rates of no change and the transition matrices only depend on the substitution model,
+        // otherwise those of the current state are kept (and stored and restored with it)
+        if (siteModel.isDirtyCalculation() && substitutionModelIsDirty()) {
             getNoChangeRates(rates);
+            if (matrixCache != null)
+                matrixCache.invalidate();
+        }
 
         try {
             if (traverse((QuasiSpeciesNode) tree.getRoot()) != QuasiSpeciesTree.IS_CLEAN)
@@ -370,22 +391,11 @@ public class QuasiSpeciesTreeLikelihood extends GenericTreeLikelihood {
         catch (ArithmeticException e) {
             return Double.NEGATIVE_INFINITY;
         }
-        m_nScale++;
-        if (scaling.get().equals(Scaling._default) && m_nScale > X && likelihoodCore.getUseScaling()) {
-            System.err.println("Switch off scaling");
-            likelihoodCore.setUseScaling(1.0);
-            likelihoodCore.unstore();
-            hasDirt = QuasiSpeciesTree.IS_FILTHY;
-            X *= 2;
-            traverse((QuasiSpeciesNode) tree.getRoot());
-            calcLogP();
-            return logP;
-        } else if (logP == Double.NEGATIVE_INFINITY && m_fScale < 10 && !scaling.get().equals(Scaling.none)) { // && !m_likelihoodCore.getUseScaling()) {
-            startScaling = true;
-            m_nScale = 0;
-            m_fScale *= 1.01;
-            Log.warning.println("Turning on scaling to prevent numeric instability " + m_fScale);
-            likelihoodCore.setUseScaling(m_fScale);
+        if (logP == Double.NEGATIVE_INFINITY && !likelihoodCore.getUseScaling() && !scaling.get().equals(Scaling.none)) {
+            // the core rescales only the nodes and patterns that underflow, so once switched on
+            // scaling stays on, and the tree is recalculated in full only this once
+            Log.warning.println("Turning on scaling to prevent numeric instability");
+            likelihoodCore.setUseScaling(SCALE);
             likelihoodCore.unstore();
             hasDirt = QuasiSpeciesTree.IS_FILTHY;
             traverse((QuasiSpeciesNode) tree.getRoot());
@@ -416,7 +426,7 @@ public class QuasiSpeciesTreeLikelihood extends GenericTreeLikelihood {
      * check state for changed variables and update temp results if necessary *
      */
     @Override
-    protected boolean requiresRecalculation() {
+    public boolean requiresRecalculation() {
         if (beagle != null) {
             return beagle.requiresRecalculation();
         }
@@ -437,9 +447,14 @@ public class QuasiSpeciesTreeLikelihood extends GenericTreeLikelihood {
         return treeInput.get().somethingIsDirty();
     }
 
+    @Override
+    public void release() {
+        if (likelihoodCore != null)
+            ((QuasiSpeciesBeerLikelihoodCore) likelihoodCore).setThreadCount(1);
+    }
+
     @Override
     public void store() {
-        startScaling = false;
         if (beagle != null) {
             beagle.store();
             super.store();
@@ -448,6 +463,9 @@ public class QuasiSpeciesTreeLikelihood extends GenericTreeLikelihood {
         if (likelihoodCore != null) {
             likelihoodCore.store();
         }
+        if (matrixCache != null) {
+            matrixCache.store();
+        }
         super.store();
         System.arraycopy(branchLengths, 0, storedBranchLengths, 0, branchLengths.length);
         System.arraycopy(rates, 0, storedRates, 0, rates.length);
@@ -455,14 +473,8 @@ public class QuasiSpeciesTreeLikelihood extends GenericTreeLikelihood {
 
     @Override
     public void restore() {
-        if (startScaling) {
-            startScaling = false;
-            m_fScale = 1.0;
-            m_nScale = 0;
-            Log.warning.println("Restoring: Turning off scaling");
-            likelihoodCore.setUseScaling(m_fScale);
-        }
-
+        // scaling switched on during a rejected proposal stays on: the stored partials
+        // were calculated without it and have log scaling factors 0
         if (beagle != null) {
             beagle.restore();
             super.restore();
@@ -471,6 +483,9 @@ public class QuasiSpeciesTreeLikelihood extends GenericTreeLikelihood {
         if (likelihoodCore != null) {
             likelihoodCore.restore();
         }
+        if (matrixCache != null) {
+            matrixCache.restore();
+        }
         super.restore();
         double[] tmp = branchLengths;
         branchLengths = storedBranchLengths;
@@ -556,10 +571,10 @@ public class QuasiSpeciesTreeLikelihood extends GenericTreeLikelihood {
                 for (int i = 0; i < siteModel.getCategoryCount(); i++) {
                     final double jointBranchRate = siteModel.getRateForCategory(i, toyNode) * partBranchRate;
                     if (parent != null)
-                        substitutionModel.getTransitionProbabilities(null, parent.getHeight(), firstBranchingTime, jointBranchRate, probabilities);
+                        getTransitionProbabilities(null, parent.getHeight(), firstBranchingTime, jointBranchRate, probabilities);
                     else
 //                    substitutionModel.getTransitionProbabilities(null, originHeight, firstBranchingTime, jointBranchRate, probabilities);
-                        substitutionModel.getTransitionProbabilities(null, firstBranchingTime, firstBranchingTime, jointBranchRate, probabilities);
+                        getTransitionProbabilities(null, firstBranchingTime, firstBranchingTime, jointBranchRate, probabilities);
                     likelihoodCore.setNodeMatrix(nodeCount + haploNr, i, probabilities);
                 }
                 update |= Tree.IS_DIRTY;
@@ -590,7 +605,7 @@ public class QuasiSpeciesTreeLikelihood extends GenericTreeLikelihood {
             likelihoodCore.setNodeMatrixForUpdate(nodeIndex);
             for (int i = 0; i < siteModel.getCategoryCount(); i++) {
                 final double jointBranchRate = siteModel.getRateForCategory(i, node) * branchRate;
-                substitutionModel.getTransitionProbabilities(node, parent.getHeight(), node.getHeight(), jointBranchRate, probabilities);
+                getTransitionProbabilities(node, parent.getHeight(), node.getHeight(), jointBranchRate, probabilities);
                 likelihoodCore.setNodeMatrix(nodeIndex, i, probabilities);
             }
             update |= Tree.IS_DIRTY;
@@ -602,7 +617,7 @@ public class QuasiSpeciesTreeLikelihood extends GenericTreeLikelihood {
             for (int i = 0; i < siteModel.getCategoryCount(); i++) {
                 final double jointBranchRate = siteModel.getRateForCategory(i, node) * branchRate;
 //                substitutionModel.getTransitionProbabilities(node, originHeight, node.getHeight(), jointBranchRate, probabilities);
-                substitutionModel.getTransitionProbabilities(node, node.getHeight(), node.getHeight(), jointBranchRate, probabilities);
+                getTransitionProbabilities(node, node.getHeight(), node.getHeight(), jointBranchRate, probabilities);
                 likelihoodCore.setNodeMatrix(nodeIndex, i, probabilities);
             }
             update |= Tree.IS_DIRTY;
@@ -637,10 +652,7 @@ public class QuasiSpeciesTreeLikelihood extends GenericTreeLikelihood {
                     likelihoodCore.setNodeStatesForUpdate(nodeIndex);
 
                 if (siteModel.integrateAcrossCategories()) {
-                    //if (nStates == 4)
-                    //    ((QuasiSpeciesBeerLikelihoodCore4) likelihoodCore).calculateQSPartials(childNum1, childNum2, nodeIndex, child1QS, child2QS, child1parentQS, nodeCount);
-                    //else
-                        ((QuasiSpeciesBeerLikelihoodCore) likelihoodCore).calculateQSPartials(childNum1, childNum2, nodeIndex, child1QS, child2QS, child1parentQS, nodeCount);
+                    ((QuasiSpeciesBeerLikelihoodCore) likelihoodCore).calculateQSPartials(childNum1, childNum2, nodeIndex, child1QS, child2QS, child1parentQS, nodeCount);
                 } else {
                     throw new RuntimeException("Error TreeLikelihood 632: Site categories not supported");
                     //m_pLikelihoodCore->calculatePartials(childNum1, childNum2, nodeNum, siteCategories);
@@ -673,17 +685,11 @@ public class QuasiSpeciesTreeLikelihood extends GenericTreeLikelihood {
 //                    else {
                         // include the root-orig branch!!!
 
-                        //if (nStates == 4)
-                        //    ((QuasiSpeciesBeerLikelihoodCore4)likelihoodCore).calculateOriginRootPartials(nodeIndex, child1parentQS, nodeCount, rootPartials);
-                        //else
-                            ((QuasiSpeciesBeerLikelihoodCore)likelihoodCore).calculateOriginRootPartials(nodeIndex, child1parentQS, nodeCount, rootPartials);
+                        ((QuasiSpeciesBeerLikelihoodCore)likelihoodCore).calculateOriginRootPartials(nodeIndex, child1parentQS, nodeCount, rootPartials);
 
                         // integrate over all possible site categories the sites can be in
                         final double[] proportions = siteModel.getCategoryProportions(node);
-                        //if (nStates == 4)
-                        //    ((QuasiSpeciesBeerLikelihoodCore4)likelihoodCore).integratePartials(rootPartials, proportions, originPartials);
-                        //else
-                            ((QuasiSpeciesBeerLikelihoodCore)likelihoodCore).integratePartials(rootPartials, proportions, originPartials);
+                        ((QuasiSpeciesBeerLikelihoodCore)likelihoodCore).integratePartials(rootPartials, proportions, originPartials);
 
                         if (constantPattern != null) { // && !SiteModel.g_bUseOriginal) {
                             proportionInvariant = siteModel.getProportionInvariant();
@@ -709,17 +715,11 @@ public class QuasiSpeciesTreeLikelihood extends GenericTreeLikelihood {
 
                 final int child1parentQS = ((QuasiSpeciesNode) node).getContinuingHaploName();
 
-                //if (nStates == 4)
-                //    ((QuasiSpeciesBeerLikelihoodCore4)likelihoodCore).calculateOriginTipPartials(nodeIndex, child1parentQS, nodeCount, rootPartials);
-                //else
-                    ((QuasiSpeciesBeerLikelihoodCore)likelihoodCore).calculateOriginTipPartials(nodeIndex, child1parentQS, nodeCount, rootPartials);
+                ((QuasiSpeciesBeerLikelihoodCore)likelihoodCore).calculateOriginTipPartials(nodeIndex, child1parentQS, nodeCount, rootPartials);
 
                 // integrate over all possible site categories the sites can be in
                 final double[] proportions = siteModel.getCategoryProportions(node);
-                //if (nStates == 4)
-                //    ((QuasiSpeciesBeerLikelihoodCore4)likelihoodCore).integratePartials(rootPartials, proportions, originPartials);
-                //else
-                    ((QuasiSpeciesBeerLikelihoodCore)likelihoodCore).integratePartials(rootPartials, proportions, originPartials);
+                ((QuasiSpeciesBeerLikelihoodCore)likelihoodCore).integratePartials(rootPartials, proportions, originPartials);
 
                 if (constantPattern != null) { // && !SiteModel.g_bUseOriginal) {
                     proportionInvariant = siteModel.getProportionInvariant();
@@ -791,4 +791,19 @@ public class QuasiSpeciesTreeLikelihood extends GenericTreeLikelihood {
 
         return subsetData;
     }
-}
\ No newline at end of file
+
+    /**
+     * Create the likelihood core, the unrolled nucleotide core for 4 states
+     * and the generic core otherwise.
+     *
+     * @param nStates number of states of the data type
+     * @return likelihood core for the QS pruning
+     */
+    protected QuasiSpeciesBeerLikelihoodCore createLikelihoodCore(int nStates) {
+        if (nStates == 4) {
+            return new QuasiSpeciesBeerLikelihoodCore4(nStates);
+        } else {
+            return new QuasiSpeciesBeerLikelihoodCore(nStates);
+        }
+    }
+}
@@ -9,6 +9,7 @@ import java.util.Random;
 
 import beast.base.core.Description;
 import beast.base.core.Input;
+import beast.base.inference.CalculationNode;
 import beast.base.inference.State;
 import beast.base.core.Log;
 import beast.base.evolution.alignment.Alignment;
@@ -20,7 +21,6 @@ import beast.base.evolution.likelihood.BeerLikelihoodCore4;
 import beast.base.evolution.likelihood.GenericTreeLikelihood;
 import beast.base.evolution.likelihood.LikelihoodCore;
 import beast.base.evolution.sitemodel.SiteModel;
-import beast.base.evolution.substitutionmodel.EigenDecomposition;
 import beast.base.evolution.substitutionmodel.SubstitutionModel;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
@@ -30,7 +30,7 @@ import piqmee.tree.QuasiSpeciesTree;
 
 @Description("Calculates the probability of sequence data on a beast.piqmee.tree " +
         "given a site and substitution model using a variant of the 'peeling algorithm'. ")
-public class QuasiSpeciesTreeLikelihood3 extends GenericTreeLikelihood {
+public class QuasiSpeciesTreeLikelihood3 extends GenericTreeLikelihood implements QuasiSpeciesLikelihoodBackend {
 	
 	// TODO: this input is ignored, but required by junit test. Needs fixing.
 	final public Input<Boolean> useAmbiguities = new Input<>("useAmbiguities", "flag to indicate that sites containing ambiguous states should be handled instead of ignored (the default)", false);
@@ -39,6 +39,15 @@ public class QuasiSpeciesTreeLikelihood3 extends GenericTreeLikelihood {
     public static enum Scaling {none, always, _default};
     final public Input<Scaling> scalingInput = new Input<>("scaling", "type of scaling to use, one of " + Arrays.toString(Scaling.values()) + ". If not specified, the -beagle_scaling flag is used.", Scaling._default, Scaling.values());
 
+    public static enum Backend {auto, java, beagle};
+    final public Input<Backend> backendInput = new Input<>("backend", "likelihood core to use when not scaling, one of " + Arrays.toString(Backend.values()) + " (default auto, i.e. the fastest available one as timed at startup). " +
+    		"Timing only takes place when BEAGLE is available and takes up to " + (int) (4 * LikelihoodCalibration.MAX_SECONDS) + " seconds at startup, " +
+    		"set to java or beagle to skip it.", Backend.auto, Backend.values());
+    final public Input<Integer> matrixCacheSizeInput = new Input<>("matrixCacheSize", "number of transition probability matrices kept for reuse by branches with the same length and rate (default 1024). " +
+    		"Only used with the time-homogeneous JukesCantor, HKY, GTR and GeneralSubstitutionModel, set to 0 to switch off.", 1024);
+    final public Input<Integer> calibrationRoundsInput = new Input<>("calibrationRounds", "number of full and of partial evaluations timed on each likelihood core when choosing automatically. " +
+    		"Each kind of evaluation is timed for at most " + LikelihoodCalibration.MAX_SECONDS + " seconds per core. If 0, BEAGLE is used whenever it is available.", 200);
+
 
     /**
      * calculation engine *
@@ -94,6 +103,8 @@ public class QuasiSpeciesTreeLikelihood3 extends GenericTreeLikelihood {
     protected double[] storedAccumulatedLogLeafScaleFactors;
     protected double[] accumulatedLeafScaleFactors;
     protected double [] scale, storedScale;
+    // number of patterns whose leaf scale factors are computed and integrated together
+    static final int PATTERN_BLOCK_SIZE = 256;
 
     protected int[] leafIndex;
     protected int[] storedLeafIndex;
@@ -106,7 +117,10 @@ public class QuasiSpeciesTreeLikelihood3 extends GenericTreeLikelihood {
     protected double[] probabilities;
     protected double[] rates;
     protected double[] storedRates;
-    protected double[] tmpevectimesevals;
+    /**
+     * Transition probability matrices shared by branches with the same length and rate, null if disabled.
+     */
+    protected TransitionMatrixCache matrixCache;
 
     protected int nStates;
     
@@ -142,7 +156,7 @@ public class QuasiSpeciesTreeLikelihood3 extends GenericTreeLikelihood {
         else
             alignment = dataInput.get();
         beagleLikelihood = null;
-    	if (!scalingInput.get().equals(Scaling.always)) {
+    	if (!scalingInput.get().equals(Scaling.always) && backendInput.get() != Backend.java) {
     		beagleLikelihood = new QuasiSpeciesBeagleTreeLikelihood3();
         	try {
         		beagleLikelihood.initByName(
@@ -157,6 +171,9 @@ public class QuasiSpeciesTreeLikelihood3 extends GenericTreeLikelihood {
 	            // No Beagle instance was found, so we use the good old java likelihood core
 	        	beagleLikelihood = null;
 	    	}
+        	if (beagleLikelihood == null && backendInput.get() == Backend.beagle) {
+        		throw new IllegalArgumentException("The beagle back-end is not available.");
+        	}
 		}
         // tolerance = toleranceInput.get();
         nodeCount = treeInput.get().getNodeCount();
@@ -202,6 +219,9 @@ public class QuasiSpeciesTreeLikelihood3 extends GenericTreeLikelihood {
         matrixSize = (nStates + 1) * (nStates + 1);
         probabilities = new double[(nStates + 1) * (nStates + 1)];
         Arrays.fill(probabilities, 1.0);
+        // the cache is only correct for models whose matrices depend on the branch length times rate alone
+        matrixCache = matrixCacheSizeInput.get() > 0 && TransitionMatrixCache.isTimeHomogeneous(substitutionModel)
+                ? new TransitionMatrixCache(matrixCacheSizeInput.get(), nStates * nStates) : null;
 
         if (alignment.isAscertained) {
             useAscertainedSitePatterns = true;
@@ -220,10 +240,47 @@ public class QuasiSpeciesTreeLikelihood3 extends GenericTreeLikelihood {
 
         rates = new double[nStates];
         storedRates = new double [nStates];
-        tmpevectimesevals = new double[nStates * nStates];
         getNoChangeRates(rates);
 
     	useScaleFactors = scalingInput.get().equals(Scaling.always);
+
+    	chooseCore();
+    }
+
+    /**
+     * When BEAGLE is available and the back-end is chosen automatically, time full and
+     * partial evaluations with BEAGLE and with the Java core and keep the faster one.
+     * While scaling, the Java core is used regardless.
+     */
+    void chooseCore() {
+    	String className = getClass().getSimpleName();
+    	if (beagleLikelihood == null || backendInput.get() != Backend.auto || calibrationRoundsInput.get() <= 0) {
+            Log.info.println(className + "(" + getID() + ") uses the " + (beagleLikelihood != null ? "beagle" : "java") + " back-end");
+    		return;
+    	}
+    	int rounds = calibrationRoundsInput.get();
+    	Tree tree = (Tree) treeInput.get();
+    	QuasiSpeciesBeagleTreeLikelihood3 beagle = beagleLikelihood;
+    	double beagleFull = LikelihoodCalibration.timeFullEvaluations(tree, beagle, rounds);
+    	double beaglePartial = LikelihoodCalibration.timePartialEvaluations(tree, beagle, rounds);
+    	// without the BEAGLE instance this likelihood evaluates with the Java core
+    	beagleLikelihood = null;
+    	double javaFull = LikelihoodCalibration.timeFullEvaluations(tree, this, rounds);
+    	double javaPartial = LikelihoodCalibration.timePartialEvaluations(tree, this, rounds);
+        Log.info.println(className + "(" + getID() + "): beagle back-end " + String.format("%.3f", beagleFull * 1e3)
+        		+ " ms per full and " + String.format("%.3f", beaglePartial * 1e3) + " ms per partial evaluation");
+        Log.info.println(className + "(" + getID() + "): java back-end " + String.format("%.3f", javaFull * 1e3)
+        		+ " ms per full and " + String.format("%.3f", javaPartial * 1e3) + " ms per partial evaluation");
+
+    	if (beagleFull + beaglePartial <= javaFull + javaPartial) {
+    		beagleLikelihood = beagle;
+    	} else {
+    		// the unused instance is no longer checked, stored and restored by the state
+    		QuasiSpeciesLikelihoodEngine.detach(beagle);
+    		beagle.release();
+    	}
+        Log.info.println(className + "(" + getID() + ") uses the " + (beagleLikelihood != null ? "beagle" : "java")
+        		+ " back-end, override with backend=\"java\" or backend=\"beagle\"");
     }
 
     
@@ -280,6 +337,24 @@ public class QuasiSpeciesTreeLikelihood3 extends GenericTreeLikelihood {
         return subsetData;
     }
     
+    /**
+     * Transition probabilities of the substitution model, through the matrix cache if enabled.
+     */
+    protected void getTransitionProbabilities(Node node, double startTime, double endTime, double rate, double[] matrix) {
+        if (matrixCache != null) {
+            matrixCache.getTransitionProbabilities(substitutionModel, node, startTime, endTime, rate, matrix);
+        } else {
+            substitutionModel.getTransitionProbabilities(node, startTime, endTime, rate, matrix);
+        }
+    }
+
+    /**
+     * @return whether the substitution model changed, conservatively true if it is not a CalculationNode
+     */
+    boolean substitutionModelIsDirty() {
+        return !(substitutionModel instanceof CalculationNode) || ((CalculationNode) substitutionModel).isDirtyCalculation();
+    }
+
     protected LikelihoodCore createLikelihoodCore(int nStates) {
         if (nStates == 4) {
             return new BeerLikelihoodCore4();
@@ -437,10 +512,10 @@ public class QuasiSpeciesTreeLikelihood3 extends GenericTreeLikelihood {
      * @return the log likelihood.
      */
     double scaleFactor = 1.0;
-    double storedScaleFactor = 1.0;
-    int m_nScale = 0;
-    int X = 100;
-    boolean startScaling = false;
+    // scale factor of the core once scaling is on; any value other than 1.0 switches it on
+    static final double SCALE = 1.01;
+    // set while the Java core has taken over from BEAGLE but has not stored a state of its own
+    boolean javaCoreStale = false;
 
     @Override
     public double calculateLogP() {
@@ -450,12 +525,28 @@ public class QuasiSpeciesTreeLikelihood3 extends GenericTreeLikelihood {
             if (Double.isFinite(logP) || scalingInput.get().equals(Scaling.none)) {
             	return logP;
             }
+            // BEAGLE underflowed: from now on the Java core with scaling is used,
+            // starting from a full calculation since it did not follow the state so far
+            Log.warning.println("Turning on scaling to prevent numeric instability");
+            startScaling();
+            javaCoreStale = true;
+        }
+        if (javaCoreStale) {
             hasDirt = Tree.IS_FILTHY;
             getNoChangeRates(rates);
+            // the substitution model may have changed while BEAGLE was used
+            if (matrixCache != null) {
+            	matrixCache.invalidate();
+            }
         }
         
-        if (siteModel.isDirtyCalculation()) {
+        // the rates of no change and the transition matrices only depend on the substitution model,
+        // otherwise those of the current state are kept (and stored and restored with it)
+        if (siteModel.isDirtyCalculation() && substitutionModelIsDirty()) {
             getNoChangeRates(rates);
+            if (matrixCache != null) {
+            	matrixCache.invalidate();
+            }
         }
         
         final TreeInterface tree = treeInput.get();
@@ -467,23 +558,11 @@ public class QuasiSpeciesTreeLikelihood3 extends GenericTreeLikelihood {
         catch (ArithmeticException e) {
         	return Double.NEGATIVE_INFINITY;
         }
-        m_nScale++;
-        if (logP > 0 || (likelihoodCore.getUseScaling() && m_nScale > X)) {
-//            System.err.println("Switch off scaling");
-//            m_likelihoodCore.setUseScaling(1.0);
-//            m_likelihoodCore.unstore();
-//            m_nHasDirt = Tree.IS_FILTHY;
-//            X *= 2;
-//            traverse(tree.getRoot());
-//            calcLogP();
-//            return logP;
-        } else if (logP == Double.NEGATIVE_INFINITY && scaleFactor < 10 && !scalingInput.get().equals(Scaling.none)) { // && !m_likelihoodCore.getUseScaling()) {
-        	startScaling = true;
-        	useScaleFactors = true;
-            m_nScale = 0;
-            scaleFactor *= 1.01;
-            Log.warning.println("Turning on scaling to prevent numeric instability " + scaleFactor);
-            likelihoodCore.setUseScaling(scaleFactor);
+        if (logP == Double.NEGATIVE_INFINITY && scaleFactor == 1.0 && !scalingInput.get().equals(Scaling.none)) {
+            // the core rescales only the nodes and patterns that underflow, so once switched on
+            // scaling stays on, and the tree is recalculated in full only this once
+            Log.warning.println("Turning on scaling to prevent numeric instability");
+            startScaling();
             likelihoodCore.unstore();
             System.arraycopy(storedLeafIndex, 0, leafIndex, 0, leafIndex.length);
             hasDirt = Tree.IS_FILTHY;
@@ -495,6 +574,12 @@ public class QuasiSpeciesTreeLikelihood3 extends GenericTreeLikelihood {
         return logP;
     }
 
+    private void startScaling() {
+        scaleFactor = SCALE;
+        useScaleFactors = true;
+        likelihoodCore.setUseScaling(scaleFactor);
+    }
+
     void calcLogP() {
     	
     	accumulateLogLeafScale();
@@ -535,6 +620,8 @@ public class QuasiSpeciesTreeLikelihood3 extends GenericTreeLikelihood {
     
     /**
      * Integrates partials across categories.
+     * Patterns are processed in blocks: the leaf scale factors of a block are computed
+     * and applied to its partials while they are still in cache.
      *
      * @param inPartials  the array of partials to be integrated
      * @param proportions the proportions of sites in each category
@@ -542,70 +629,61 @@ public class QuasiSpeciesTreeLikelihood3 extends GenericTreeLikelihood {
      */
 	protected void integratePartials(double[] inPartials, double[] proportions, double[] outPartials, 
 			final int nrOfPatterns, final int nrOfMatrices) {
-		
-		int n = accumulatedLogLeafScaleFactors.length;    	
-		boolean hasZero = false; // deals with underflows of Math.exp
-		if (!useScaleFactors) {
-			for (int k = 0; k < n; k++) {
-				accumulatedLeafScaleFactors[k] = Math.exp(accumulatedLogLeafScaleFactors[k]);
-				if (accumulatedLeafScaleFactors[k] == 0) {
-					hasZero = true;
-					break;
+
+		for (int start = 0; start < nrOfPatterns; start += PATTERN_BLOCK_SIZE) {
+			final int end = Math.min(start + PATTERN_BLOCK_SIZE, nrOfPatterns);
+			calcLeafScaleFactors(start, end, nrOfPatterns, nrOfMatrices);
+
+			Arrays.fill(outPartials, start * nStates, end * nStates, 0.0);
+			for (int l = 0; l < nrOfMatrices; l++) {
+				int u = start * nStates;
+				int v = (l * nrOfPatterns + start) * nStates;
+				int w = l * nrOfPatterns + start;
+				for (int k = start; k < end; k++) {
+					LeafScaleKernels.addScaled(outPartials, u, inPartials, v,
+							proportions[l] * accumulatedLeafScaleFactors[w], nStates);
+					u += nStates;
+					v += nStates;
+					w++;
 				}
 			}
 		}
-		if (hasZero || useScaleFactors) {
-			for (int k = 0; k < nrOfPatterns; k++) {
-				double max = accumulatedLogLeafScaleFactors[k];
-				int r = k;
-		        for (int l = 1; l < nrOfMatrices; l++) {
-		        	r += nrOfPatterns;
-		        	max = Math.max(max, accumulatedLogLeafScaleFactors[r]);
-		        }
-		        scale[k] = max;
-			}
-			int w = 0;
-	        for (int l = 0; l < nrOfMatrices; l++) {
-	        	for (int k = 0; k < nrOfPatterns; k++) {
-	        		accumulatedLeafScaleFactors[w] = Math.exp(accumulatedLogLeafScaleFactors[w] - scale[k]);
-	        		w++;
-	        	}
+    }
+
+	/**
+	 * Exponentiate the accumulated log leaf scale factors of patterns start to end-1.
+	 * The factors of a pattern are taken relative to their maximum over the categories,
+	 * recorded in scale[], when scaling is used or when one of them underflows;
+	 * otherwise scale[] is 0 for the pattern.
+	 */
+	private void calcLeafScaleFactors(final int start, final int end, final int nrOfPatterns, final int nrOfMatrices) {
+		for (int k = start; k < end; k++) {
+			double patternScale = useScaleFactors ? maxLogLeafScale(k, nrOfPatterns, nrOfMatrices) : 0.0;
+			if (!expLeafScale(k, patternScale, nrOfPatterns, nrOfMatrices)) {
+				// deals with underflows of exp
+				patternScale = maxLogLeafScale(k, nrOfPatterns, nrOfMatrices);
+				expLeafScale(k, patternScale, nrOfPatterns, nrOfMatrices);
 			}
+			scale[k] = patternScale;
 		}
-        
-        
-        int u = 0;
-        int v = 0;
-        int w = 0;
-        for (int k = 0; k < nrOfPatterns; k++) {
-
-            for (int i = 0; i < nStates; i++) {
-                outPartials[u] = inPartials[v] * proportions[0]  * accumulatedLeafScaleFactors[w];
-//                System.out.println(outPartials[u] +"="+ inPartials[v] +" * "+ proportions[0]  +" * "+ accumulatedLeafScaleFactors[w]);
-                u++;
-                v++;
-            }
-            w++;
-        }
-
-
-        for (int l = 1; l < nrOfMatrices; l++) {
-            u = 0;
+	}
 
-            for (int k = 0; k < nrOfPatterns; k++) {
+	private double maxLogLeafScale(final int k, final int nrOfPatterns, final int nrOfMatrices) {
+		double max = accumulatedLogLeafScaleFactors[k];
+		for (int w = k + nrOfPatterns; w < nrOfMatrices * nrOfPatterns; w += nrOfPatterns)
+			max = Math.max(max, accumulatedLogLeafScaleFactors[w]);
+		return max;
+	}
 
-                for (int i = 0; i < nStates; i++) {
-                    outPartials[u] += inPartials[v] * proportions[l] * accumulatedLeafScaleFactors[w];
-//                    System.out.println(outPartials[u] +"="+ inPartials[v] +" * "+ proportions[l]  +" * "+ accumulatedLeafScaleFactors[w]);
-                    u++;
-                    v++;
-                }
-                w++;
-            }
-//            System.out.println();
-        }
-//        System.out.println();
-    }
+	/** @return false if a factor underflowed to zero */
+	private boolean expLeafScale(final int k, final double patternScale, final int nrOfPatterns, final int nrOfMatrices) {
+		boolean hasZero = false;
+		for (int w = k; w < nrOfMatrices * nrOfPatterns; w += nrOfPatterns) {
+			accumulatedLeafScaleFactors[w] = LeafScaleKernels.exp(accumulatedLogLeafScaleFactors[w] - patternScale);
+			hasZero |= accumulatedLeafScaleFactors[w] == 0;
+		}
+		return !hasZero;
+	}
     
 	public void calculateLogLikelihoods(double[] partials, double[] frequencies, double[] outLogLikelihoods,
 			final int nrOfPatterns) {
@@ -632,22 +710,7 @@ public class QuasiSpeciesTreeLikelihood3 extends GenericTreeLikelihood {
      *
      */
     public void getNoChangeRates(double[] rates) {
-        EigenDecomposition eigenDecomposition = substitutionModel.getEigenDecomposition(null);
-        double[] evec = eigenDecomposition.getEigenVectors();
-        double[] eval = eigenDecomposition.getEigenValues();
-        double[] ievc = eigenDecomposition.getInverseEigenVectors();
-        for (int i = 0; i < nStates ; i++) {
-            for (int j = 0; j < nStates; j++) {
-                tmpevectimesevals[i * nStates + j] = evec[i * nStates + j] * eval[j];
-            }
-        }
-        for (int i = 0; i < nStates; i++) {
-            rates[i] = 0;
-            for (int j = 0; j < nStates; j++) {
-                rates[i] += tmpevectimesevals[i * nStates + j] * ievc[j * nStates + i];
-            }
-            //            System.out.println(rates[i]);
-        }
+        NoChangeRates.getNoChangeRates(substitutionModel, nStates, rates);
     }
     
     /* Assumes there IS a branch rate model as opposed to traverse() */
@@ -707,7 +770,7 @@ public class QuasiSpeciesTreeLikelihood3 extends GenericTreeLikelihood {
         	double firstBranchingTime = ((QuasiSpeciesNode)node).getFirstBranchingTime();
             for (int i = 0; i < siteModel.getCategoryCount(); i++) {
                 final double jointBranchRate = siteModel.getRateForCategory(i, node) * branchRate;
-                substitutionModel.getTransitionProbabilities(node, parent.getHeight(), firstBranchingTime, jointBranchRate, probabilities);
+                getTransitionProbabilities(node, parent.getHeight(), firstBranchingTime, jointBranchRate, probabilities);
 //                for (int j = 0; j < matrixSize; j++) {
 //                	probabilities[j] *= scaleFactor;
 //                }
@@ -818,21 +881,15 @@ public class QuasiSpeciesTreeLikelihood3 extends GenericTreeLikelihood {
 			// recalc from scratch
 			Arrays.fill(accumulatedLogLeafScaleFactors, 0.0);
 			for (int j = 0; j < leafNodeCount; j++) {
-				double [] x = leafLogScaleFactors[leafIndex[j]][j];
-				for (int i = 0; i < n; i++) {
-					accumulatedLogLeafScaleFactors[i] += x[i];
-				}
+				LeafScaleKernels.add(accumulatedLogLeafScaleFactors, leafLogScaleFactors[leafIndex[j]][j], n);
 			}
 			
 		} else {
 			// calc delta
 			for (int j = 0; j < leafNodeCount; j++) {
 				if (leafIndex[j] != storedLeafIndex[j]) {
-					double [] x = leafLogScaleFactors[leafIndex[j]][j];
-					double [] oldX = leafLogScaleFactors[storedLeafIndex[j]][j];
-					for (int i = 0; i < n; i++) {
-						accumulatedLogLeafScaleFactors[i] += x[i] - oldX[i];
-					}
+					LeafScaleKernels.addDifference(accumulatedLogLeafScaleFactors,
+							leafLogScaleFactors[leafIndex[j]][j], leafLogScaleFactors[storedLeafIndex[j]][j], n);
 				}
 			}
 		}
@@ -858,7 +915,7 @@ public class QuasiSpeciesTreeLikelihood3 extends GenericTreeLikelihood {
      * check state for changed variables and update temp results if necessary *
      */
     @Override
-    protected boolean requiresRecalculation() {
+    public boolean requiresRecalculation() {
         if (beagleLikelihood != null && scaleFactor == 1.0) {
             return beagleLikelihood.requiresRecalculation();
         }
@@ -887,8 +944,7 @@ public class QuasiSpeciesTreeLikelihood3 extends GenericTreeLikelihood {
 
     @Override
     public void store() {
-    	storedScaleFactor = scaleFactor;
-    	startScaling = false;
+    	javaCoreStale = false;
         if (beagleLikelihood  != null && scaleFactor == 1.0) {
         	beagleLikelihood.store();
             super.store();
@@ -897,6 +953,9 @@ public class QuasiSpeciesTreeLikelihood3 extends GenericTreeLikelihood {
         if (likelihoodCore != null) {
             likelihoodCore.store();
         }
+        if (matrixCache != null) {
+        	matrixCache.store();
+        }
         super.store();
         if (branchLengths != null) {
         	System.arraycopy(branchLengths, 0, storedBranchLengths, 0, branchLengths.length);
@@ -909,23 +968,24 @@ public class QuasiSpeciesTreeLikelihood3 extends GenericTreeLikelihood {
 
     @Override
     public void restore() {
-    	scaleFactor = storedScaleFactor;
-    	if (startScaling) {
-    		startScaling = false;
-    		scaleFactor = 1.0;
-        	useScaleFactors = false;
-            m_nScale = 0;
-            Log.warning.println("Restoring: Turning off scaling");
-            likelihoodCore.setUseScaling(scaleFactor);
-    	}
+    	// scaling switched on during a rejected proposal stays on: the stored partials
+    	// were calculated without it and have log scaling factors 0
         if (beagleLikelihood != null && scaleFactor == 1.0) {
         	beagleLikelihood.restore();
             super.restore();
             return;
         }
+        if (javaCoreStale) {
+        	// nothing to go back to, the next evaluation recalculates the Java core in full
+            super.restore();
+            return;
+        }
         if (likelihoodCore != null) {
             likelihoodCore.restore();
         }
+        if (matrixCache != null) {
+        	matrixCache.restore();
+        }
         super.restore();
         double[] tmp;
         if (branchLengths != null) {
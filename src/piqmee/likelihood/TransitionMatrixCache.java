@@ -0,0 +1,251 @@
+package piqmee.likelihood;
+
+import java.util.Arrays;
+
+import beast.base.evolution.substitutionmodel.GTR;
+import beast.base.evolution.substitutionmodel.GeneralSubstitutionModel;
+import beast.base.evolution.substitutionmodel.HKY;
+import beast.base.evolution.substitutionmodel.JukesCantor;
+import beast.base.evolution.substitutionmodel.SubstitutionModel;
+import beast.base.evolution.tree.Node;
+
+/**
+ * Bounded least recently used cache of the transition probability matrices of a
+ * time-homogeneous substitution model, keyed by the expected number of substitutions
+ * (startTime - endTime) * rate, which is all such a matrix depends on. Branches with the
+ * same length and rate, e.g. the branches of duplicate tips under a strict clock, share
+ * one matrix exponentiation. Only models known to be time-homogeneous are cached, see
+ * isTimeHomogeneous.
+ *
+ * The cache is invalidated when the substitution model changes. An invalidation keeps the
+ * entries of the stored state, so that they are back after restore.
+ */
+public class TransitionMatrixCache {
+
+    private final int capacity;
+    private final int matrixSize;
+
+    private Table matrices;
+    private Table storedMatrices;
+    private boolean invalidatedSinceStore = false;
+
+    private long hits, misses;
+
+    /**
+     * @param capacity   maximal number of matrices kept
+     * @param matrixSize length of a transition probability matrix
+     */
+    public TransitionMatrixCache(int capacity, int matrixSize) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity of the transition matrix cache should be positive, not " + capacity);
+        }
+        this.capacity = capacity;
+        this.matrixSize = matrixSize;
+        matrices = new Table();
+        storedMatrices = new Table();
+    }
+
+    /**
+     * @param substitutionModel substitution model
+     * @return whether the transition probabilities of the model only depend on (startTime - endTime) * rate
+     */
+    public static boolean isTimeHomogeneous(SubstitutionModel substitutionModel) {
+        // exact classes only, subclasses may depend on the node or the times
+        Class<?> modelClass = substitutionModel.getClass();
+        return modelClass == JukesCantor.class || modelClass == HKY.class || modelClass == GTR.class
+                || modelClass == GeneralSubstitutionModel.class;
+    }
+
+    /**
+     * Fills matrix with the transition probabilities of the substitution model, from the
+     * cache if a matrix for the same expected number of substitutions was calculated before.
+     * Arguments are those of SubstitutionModel.getTransitionProbabilities.
+     */
+    public void getTransitionProbabilities(SubstitutionModel substitutionModel, Node node,
+                                           double startTime, double endTime, double rate, double[] matrix) {
+        long key = Double.doubleToLongBits((startTime - endTime) * rate);
+        double[] cached = matrices.get(key);
+        if (cached != null) {
+            hits++;
+            System.arraycopy(cached, 0, matrix, 0, matrixSize);
+            return;
+        }
+        misses++;
+        substitutionModel.getTransitionProbabilities(node, startTime, endTime, rate, matrix);
+        System.arraycopy(matrix, 0, matrices.put(key), 0, matrixSize);
+    }
+
+    /**
+     * Drops the matrices of the current substitution model, to be called when it changed.
+     */
+    public void invalidate() {
+        if (!invalidatedSinceStore) {
+            // keep the matrices of the stored state for restore
+            Table tmp = storedMatrices;
+            storedMatrices = matrices;
+            matrices = tmp;
+            invalidatedSinceStore = true;
+        }
+        matrices.clear();
+    }
+
+    public void store() {
+        if (invalidatedSinceStore) {
+            storedMatrices.clear();
+            invalidatedSinceStore = false;
+        }
+    }
+
+    public void restore() {
+        if (invalidatedSinceStore) {
+            Table tmp = storedMatrices;
+            storedMatrices = matrices;
+            matrices = tmp;
+            storedMatrices.clear();
+            invalidatedSinceStore = false;
+        }
+    }
+
+    public int size() {
+        return matrices.size;
+    }
+
+    public long getHitCount() {
+        return hits;
+    }
+
+    public long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Open addressing hash table with linear probing from the bits of the expected number of
+     * substitutions to the entries, which are kept in a doubly linked list from the most to
+     * the least recently used one. The entries and their matrices are reused after eviction.
+     */
+    private class Table {
+        static final int EMPTY = -1;
+
+        // entry index of each slot, at most half of the slots are used
+        final int[] slots;
+        final int mask;
+        final int shift;
+
+        final long[] keys = new long[capacity];
+        final double[][] values = new double[capacity][];
+        final int[] previous = new int[capacity];
+        final int[] next = new int[capacity];
+        int head = EMPTY, tail = EMPTY;
+        int size = 0;
+
+        Table() {
+            int bits = 32 - Integer.numberOfLeadingZeros(2 * capacity - 1);
+            slots = new int[1 << bits];
+            mask = slots.length - 1;
+            shift = 64 - bits;
+            Arrays.fill(slots, EMPTY);
+        }
+
+        int home(long key) {
+            // Fibonacci hashing, the high bits of the product are the best mixed
+            return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+        }
+
+        int find(long key) {
+            int slot = home(key);
+            while (slots[slot] != EMPTY) {
+                if (keys[slots[slot]] == key)
+                    return slot;
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        double[] get(long key) {
+            int entry = slots[find(key)];
+            if (entry == EMPTY)
+                return null;
+            moveToHead(entry);
+            return values[entry];
+        }
+
+        /**
+         * Add an entry for a key that is not in the table, evicting the least recently used one if full.
+         *
+         * @return the matrix of the entry, to be filled in
+         */
+        double[] put(long key) {
+            int entry;
+            if (size < capacity) {
+                entry = size++;
+                if (values[entry] == null)
+                    values[entry] = new double[matrixSize];
+            } else {
+                entry = tail;
+                removeSlot(find(keys[entry]));
+                unlink(entry);
+            }
+            keys[entry] = key;
+            slots[find(key)] = entry;
+            previous[entry] = EMPTY;
+            next[entry] = head;
+            if (head != EMPTY)
+                previous[head] = entry;
+            head = entry;
+            if (tail == EMPTY)
+                tail = entry;
+            return values[entry];
+        }
+
+        void clear() {
+            if (size > 0) {
+                Arrays.fill(slots, EMPTY);
+                head = tail = EMPTY;
+                size = 0;
+            }
+        }
+
+        private void moveToHead(int entry) {
+            if (entry == head)
+                return;
+            unlink(entry);
+            previous[entry] = EMPTY;
+            next[entry] = head;
+            previous[head] = entry;
+            head = entry;
+        }
+
+        private void unlink(int entry) {
+            if (previous[entry] != EMPTY)
+                next[previous[entry]] = next[entry];
+            else
+                head = next[entry];
+            if (next[entry] != EMPTY)
+                previous[next[entry]] = previous[entry];
+            else
+                tail = previous[entry];
+        }
+
+        /**
+         * Empty a slot and shift back the entries of the probe sequence behind it,
+         * so that lookups need no deletion markers.
+         */
+        private void removeSlot(int slot) {
+            int j = slot;
+            while (true) {
+                j = (j + 1) & mask;
+                int entry = slots[j];
+                if (entry == EMPTY)
+                    break;
+                int home = home(keys[entry]);
+                // the entry can stay if its home lies cyclically in (slot, j]
+                boolean stays = slot <= j ? (slot < home && home <= j) : (slot < home || home <= j);
+                if (!stays) {
+                    slots[slot] = entry;
+                    slot = j;
+                }
+            }
+            slots[slot] = EMPTY;
+        }
+    }
+}
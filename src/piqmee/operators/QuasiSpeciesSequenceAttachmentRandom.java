@@ -1,7 +1,6 @@
 package piqmee.operators;
 
 import beast.base.core.Description;
-import beast.base.evolution.tree.Node;
 import piqmee.tree.QuasiSpeciesNode;
 import piqmee.tree.QuasiSpeciesTree;
 import beast.base.util.Randomizer;
@@ -45,34 +44,18 @@ public class QuasiSpeciesSequenceAttachmentRandom extends QuasiSpeciesTreeOperat
         // weighted by the number of events (i.e. count of each haplotype)
         int event = Randomizer.nextInt(qsTree.getTotalAttachmentCounts());
 
-        QuasiSpeciesNode node = null;
-
-        // index for the attachment time chosen to change
-        int changeIdx = -1;
-
         // find the haplotype and the sequence position corresponding to the event number
-        // backward search...
-        for (Node thisNode : qsTree.getExternalNodes()) {
-            int tempHaploCount = qsTree.getHaplotypeCounts(thisNode) - 1;
-            if (event < tempHaploCount) {
-                node = (QuasiSpeciesNode) thisNode;
-                // change index is event +1 as our arrays are 1-#haplotype repetition instances
-                // and position 0 in the array is the haplotype starting point
-                // NOTE: haplotype starting time changes by another operator QuasiSpeciesHaplotypeStartRandom
-                changeIdx = event + 1;
-                break;
-            }
-            event -= tempHaploCount;
-        }
-
-        // if we did not assign the node at this stage, throw exception
-        if (node == null)
-            throw new IllegalStateException("Event selection loop fell through!");
+        // by binary search on the prefix sums of the haplotype counts
+        QuasiSpeciesNode node = qsTree.getAttachmentEventNode(event);
+        // change index is between 1 and #haplotype repetition instances - 1,
+        // as position 0 in the array is the haplotype starting point
+        // NOTE: haplotype starting time changes by another operator QuasiSpeciesHaplotypeStartRandom
+        int changeIdx = qsTree.getAttachmentEventIndex(event);
 
         // reposition the event (i.e. haplotype sequence changeIdx attachment time)
         double tmin, tmax;
         int tminIdx, tmaxIdx;
-        double[] tempqstimes = node.getAttachmentTimesList().clone();
+        double[] tempqstimes = node.getAttachmentTimesList();
         double[] temptiptimes = node.getTipTimesList();
         int[] temptiptimescount = node.getTipTimesCountList();
         double toldQSstart = tempqstimes[0];
@@ -179,7 +162,8 @@ public class QuasiSpeciesSequenceAttachmentRandom extends QuasiSpeciesTreeOperat
 //            nodeonaway=(QuasiSpeciesNode)nodeonaway.getParent();
 //        }
         // if we moved the first attachment time, then move also the QS start appropriately
-        // generic move of the 1st attachment time
+        // generic move of the 1st attachment time: the QS start is the new first attachment time,
+        // i.e. either the moved time or the time that was second before the move
         if (changeIdx==1){
             if (tmaxIdx == 0){
                 tnewQSstart = tnew;
@@ -187,31 +171,16 @@ public class QuasiSpeciesSequenceAttachmentRandom extends QuasiSpeciesTreeOperat
             else{
                 tnewQSstart = tempqstimes[2];
             }
-            tempqstimes[0] = tnewQSstart;
         }
         // creation of new 1st attachment time
         else if (tmaxIdx==0){
             tnewQSstart = tnew;
-            tempqstimes[0] = tnewQSstart;
         }
 
-        node.setNewtimeofchangedcopy(tnew);
-        node.setOldtimeofchangedcopy(tempqstimes[changeIdx]);
-        tempqstimes[changeIdx]=tnew;
-        if (changeIdx > tmaxIdx){
-            for (int i=changeIdx; i>tmaxIdx+1; i--){
-                double swaptime = tempqstimes[i];
-                tempqstimes[i] = tempqstimes[i-1];
-                tempqstimes[i-1] = swaptime;
-            }
-        } else {
-            for (int i=changeIdx; i<tmaxIdx; i++){
-                double swaptime = tempqstimes[i];
-                tempqstimes[i] = tempqstimes[i+1];
-                tempqstimes[i+1] = swaptime;
-            }
-        }
-        node.setAttachmentTimesList(tempqstimes);
+        // reposition the attachment time in place, into the interval below tmaxIdx
+        node.moveAttachmentTime(changeIdx, tnew);
+        if (tnewQSstart != -1)
+            node.setAttachmentTime(0, tnewQSstart);
 
         // account for the fact that we are changing the QS start
         if (tnewQSstart != -1){
@@ -2,7 +2,6 @@ package piqmee.operators;
 
 import beast.base.core.Description;
 import beast.base.core.Input;
-import beast.base.evolution.tree.Node;
 import piqmee.tree.QuasiSpeciesNode;
 import piqmee.tree.QuasiSpeciesTree;
 import beast.base.util.Randomizer;
@@ -47,28 +46,12 @@ public class QuasiSpeciesSequenceAttachmentUniform extends QuasiSpeciesTreeOpera
         // weighted by the number of events (i.e. count of each haplotype)
         int event = Randomizer.nextInt(qsTree.getTotalAttachmentCounts());
 
-        QuasiSpeciesNode node = null;
-
-        // index for the attachment time chosen to change
-        int changeIdx = -1;
-
         // find the haplotype and the sequence position corresponding to the event number
-        // backward search...
-        for (Node thisNode : qsTree.getExternalNodes()) {
-            int tempHaploCount = qsTree.getHaplotypeCounts(thisNode) - 1;
-            if (event < tempHaploCount) {
-                node = (QuasiSpeciesNode) thisNode;
-                // change index is event +1 as our arrays are 1-#haplotype repetition instances
-                // and position 0 in the array is the haplotype starting point
-                changeIdx = event + 1;
-                break;
-            }
-            event -= tempHaploCount;
-        }
-
-        // if we did not assign the node at this stage, throw exception
-        if (node == null)
-            throw new IllegalStateException("Event selection loop fell through!");
+        // by binary search on the prefix sums of the haplotype counts
+        QuasiSpeciesNode node = qsTree.getAttachmentEventNode(event);
+        // change index is between 1 and #haplotype repetition instances - 1,
+        // as position 0 in the array is the haplotype starting point
+        int changeIdx = qsTree.getAttachmentEventIndex(event);
 
         // If we want to move the root of a haplotype only - make this one to be the changeIdx
         // Instead of index changeIdx between 2-#haplotype repetition instance, just change
@@ -78,7 +61,7 @@ public class QuasiSpeciesSequenceAttachmentUniform extends QuasiSpeciesTreeOpera
 
         // reposition the event (i.e. haplotype sequence changeIdx attachment time)
         double tmin, tmax;
-        double[] tempqstimes = node.getAttachmentTimesList().clone();
+        double[] tempqstimes = node.getAttachmentTimesList();
         double[] temptiptimes = node.getTipTimesList();
         int[] temptiptimescount = node.getTipTimesCountList();
 
@@ -135,15 +118,12 @@ public class QuasiSpeciesSequenceAttachmentUniform extends QuasiSpeciesTreeOpera
                                             // (1-u)*tmin + u*tmax-u*(tmax-tmin)-tmin=0 ???
                                             // indeed tmin-u*tmin+u*tmax-u*tmax+u*tmin-tmin=0
 
+        // the new time lies between the neighbouring attachment times, so the move keeps the index
         double told = tempqstimes[changeIdx];
-        tempqstimes[changeIdx] = tnew;
+        node.moveAttachmentTime(changeIdx, tnew);
         if (changeIdx == 1){
-            tempqstimes[0] = tnew;
+            node.setAttachmentTime(0, tnew);
         }
-        node.setNewtimeofchangedcopy(tnew);
-        node.setOldtimeofchangedcopy(told);
-
-        node.setAttachmentTimesList(tempqstimes);
 
         // account for the fact that we are changing the QS start
         if (changeIdx == 1){
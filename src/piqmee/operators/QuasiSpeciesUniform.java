@@ -74,7 +74,7 @@ public class QuasiSpeciesUniform extends QuasiSpeciesTreeOperator {
         // find if there is QS passing through the node
         int haplo = node.getContinuingHaploName();
         if (haplo != -1 && ((QuasiSpeciesNode) qsTree.getNode(haplo)).getAttachmentTimesList().length > 1){
-            double[] tempqstimes = ((QuasiSpeciesNode) qsTree.getNode(haplo)).getAttachmentTimesList().clone();
+            double[] tempqstimes = ((QuasiSpeciesNode) qsTree.getNode(haplo)).getAttachmentTimesList();
 
             for (int i = 1; i < tempqstimes.length; i++){
                 if (tempqstimes[i] > oldValue)
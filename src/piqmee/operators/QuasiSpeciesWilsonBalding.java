@@ -31,6 +31,8 @@ public class QuasiSpeciesWilsonBalding extends QuasiSpeciesTreeOperator {
             "Root height proposal parameter", Validate.REQUIRED);
     private double alpha;
 
+    private WilsonBaldingPairIndex pairIndex;
+
     @Override
     public void initAndValidate() {
         super.initAndValidate();
@@ -41,6 +43,8 @@ public class QuasiSpeciesWilsonBalding extends QuasiSpeciesTreeOperator {
         if (qsTree.getLeafNodeCount() < 3)
             throw new IllegalStateException("Tree is too small for"
                     + " QuasiSpeciesWilsonBalding operator.");
+
+        pairIndex = new WilsonBaldingPairIndex(qsTree, false);
     }
 
     /**
@@ -53,7 +57,9 @@ public class QuasiSpeciesWilsonBalding extends QuasiSpeciesTreeOperator {
 
         // count number of pairs valid for WB (may not be the same back and forth
         // without root moves)
-        int numberofpairs = countValidPairsForWB();
+        pairIndex.update();
+        pairIndex.store();
+        int numberofpairs = pairIndex.getPairCount();
 
         // Select source node:
         Node srcNode;
@@ -442,7 +448,8 @@ public class QuasiSpeciesWilsonBalding extends QuasiSpeciesTreeOperator {
 
         // count number of pairs valid for WB (may not be the same back and forth
         // without root moves)
-        int numberofpairsback = countValidPairsForWB();
+        pairIndex.update(srcNode, srcNodeP, srcNodeS, destNode);
+        int numberofpairsback = pairIndex.getPairCount();
 
         if (numberofpairs != numberofpairsback) {
             logHastingsRatio += Math.log(numberofpairs);
@@ -520,25 +527,10 @@ public class QuasiSpeciesWilsonBalding extends QuasiSpeciesTreeOperator {
         return false;
     }
 
-    /**
-     * Function to count how many valid source and destination node pairs there are
-     * for wilson-balding operator
-     *
-     */
-    private int countValidPairsForWB() {
-        int count = 0;
-        for (int i = 0; i < qsTree.getNodeCount(); i++) {
-            for (int j = i + 1; j < qsTree.getNodeCount(); j++) {
-                Node srcNode = qsTree.getNode(i);
-                Node destNode = qsTree.getNode(j);
-                if (!invalidSrcNode(srcNode) && !invalidDestNode(srcNode, destNode))
-                    count += 1;
-                srcNode = qsTree.getNode(j);
-                destNode = qsTree.getNode(i);
-                if (!invalidSrcNode(srcNode) && !invalidDestNode(srcNode, destNode))
-                    count += 1;
-            }
-        }
-        return count;
+    @Override
+    public void reject(int reason) {
+        // undo the changes of the rejected move, so that the next update finds the index in sync
+        pairIndex.restore();
+        super.reject(reason);
     }
 }
\ No newline at end of file
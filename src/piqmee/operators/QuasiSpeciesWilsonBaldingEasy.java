@@ -24,6 +24,8 @@ public class QuasiSpeciesWilsonBaldingEasy extends QuasiSpeciesTreeOperator{
             "Root height proposal parameter", Input.Validate.REQUIRED);
     private double alpha;
 
+    private WilsonBaldingPairIndex pairIndex;
+
     @Override
     public void initAndValidate(){
         super.initAndValidate();
@@ -34,6 +36,8 @@ public class QuasiSpeciesWilsonBaldingEasy extends QuasiSpeciesTreeOperator{
         if (qsTree.getLeafNodeCount() < 3)
             throw new IllegalArgumentException("Tree is too small for"
                     +" QuasiSpeciesWilsonBaldingEasy operator.");
+
+        pairIndex = new WilsonBaldingPairIndex(qsTree, true);
     }
 
     /**
@@ -45,7 +49,9 @@ public class QuasiSpeciesWilsonBaldingEasy extends QuasiSpeciesTreeOperator{
     public double proposal() {
 
         // count number of pairs valid for WB (may not be the same back and forth without root moves)
-        int numberofpairs = countValidPairsForWBEasy();
+        pairIndex.update();
+        pairIndex.store();
+        int numberofpairs = pairIndex.getPairCount();
 
         // Select source node:
         Node srcNode;
@@ -276,7 +282,8 @@ public class QuasiSpeciesWilsonBaldingEasy extends QuasiSpeciesTreeOperator{
         }
 
         // count number of pairs valid for WB (may not be the same back and forth without root moves)
-        int numberofpairsback = countValidPairsForWBEasy();
+        pairIndex.update();
+        int numberofpairsback = pairIndex.getPairCount();
 
         if (numberofpairs != numberofpairsback){
             logHastingsRatio += Math.log(numberofpairs);
@@ -352,28 +359,10 @@ public class QuasiSpeciesWilsonBaldingEasy extends QuasiSpeciesTreeOperator{
         return false;
     }
 
-    /**
-     * Function to count how many valid source and destination node pairs there are for wilson-balding operator
-     *
-     */
-    private int countValidPairsForWBEasy() {
-        int count = 0;
-        for (int i = 0; i < qsTree.getNodeCount(); i++) {
-            for (int j = i + 1; j < qsTree.getNodeCount(); j++) {
-                Node srcNode = qsTree.getNode(i);
-                Node destNode = qsTree.getNode(j);
-                if (!invalidSrcNode(srcNode) && !invalidDestNode(srcNode, destNode)
-                        && ((QuasiSpeciesNode) srcNode).getContinuingHaploName() == ((QuasiSpeciesNode) srcNode).getHaploAboveName()
-                        )
-                    count += 1;
-                srcNode = qsTree.getNode(j);
-                destNode = qsTree.getNode(i);
-                if (!invalidSrcNode(srcNode) && !invalidDestNode(srcNode, destNode)
-                        && ((QuasiSpeciesNode) srcNode).getContinuingHaploName() == ((QuasiSpeciesNode) srcNode).getHaploAboveName()
-                        )
-                    count += 1;
-            }
-        }
-        return count;
+    @Override
+    public void reject(int reason) {
+        // undo the changes of the rejected move, so that the next update finds the index in sync
+        pairIndex.restore();
+        super.reject(reason);
     }
 }
\ No newline at end of file
@@ -0,0 +1,343 @@
+package piqmee.operators;
+
+import beast.base.evolution.tree.Node;
+import piqmee.tree.QuasiSpeciesNode;
+import piqmee.tree.QuasiSpeciesTree;
+
+import java.util.Arrays;
+
+/**
+ * Maintained count of the (source, destination) node pairs valid for the Wilson-Balding moves.
+ *
+ * A source node s is valid if neither s nor its parent is the root (and, for the easy move,
+ * if the haplotype continuing at s is the haplotype above s). A destination node d is valid for s
+ * if it is not the root, the parent of d is above s, and d is neither s, its sister nor its parent.
+ * The number of valid pairs is therefore the number of pairs (s, d) with s a valid source,
+ * d a non-root node and height(parent(d)) > height(s), minus per source the excluded
+ * s, sister and parent that satisfy the height condition.
+ *
+ * The first term is kept up to date on two sorted arrays, one of the source heights and
+ * one of the parent heights of the destinations: changing the key of a single node changes
+ * the count by the number of keys of the other array above or below it (a binary search).
+ * Per node, the keys are cached and compared with the tree, so that only nodes whose
+ * keys actually changed are touched; on many changes, e.g. after a tree scale, the arrays
+ * are rebuilt by sorting instead. Changes made since store() are journaled and undone
+ * by restore().
+ */
+public class WilsonBaldingPairIndex {
+
+    final private QuasiSpeciesTree qsTree;
+    final private boolean sourceHaploMustContinue;
+    final private int nodeCount;
+
+    // per node number: height of the node if it is a valid source, NaN otherwise
+    final private double[] sourceKey;
+    // per node number: height of the parent if the node is not the root, NaN otherwise
+    final private double[] destinationKey;
+    // per node number: number of destinations excluded for the node as source that satisfy the height condition
+    final private int[] excludedCount;
+
+    final private double[] sortedSources;
+    private int sourceCount;
+    final private double[] sortedDestinations;
+    private int destinationCount;
+
+    // number of pairs of a source and a destination with destination key above the source key
+    private long dominatingPairs;
+    private long excludedPairs;
+    private boolean initialised;
+
+    // journal of the nodes whose keys changed since store()
+    final private int[] journal;
+    private int journalSize;
+    final private boolean[] journaled;
+    final private double[] journalSourceKey;
+    final private double[] journalDestinationKey;
+    final private int[] journalExcludedCount;
+
+    // scratch list of changed nodes for update()
+    final private int[] changedNodes;
+
+    /**
+     * @param qsTree                  tree on which the Wilson-Balding move operates
+     * @param sourceHaploMustContinue true for the easy move, i.e. when the haplotype continuing
+     *                                at the source node has to be the one above it
+     */
+    public WilsonBaldingPairIndex(QuasiSpeciesTree qsTree, boolean sourceHaploMustContinue) {
+        this.qsTree = qsTree;
+        this.sourceHaploMustContinue = sourceHaploMustContinue;
+        nodeCount = qsTree.getNodeCount();
+
+        sourceKey = new double[nodeCount];
+        destinationKey = new double[nodeCount];
+        excludedCount = new int[nodeCount];
+        sortedSources = new double[nodeCount];
+        sortedDestinations = new double[nodeCount];
+
+        journal = new int[nodeCount];
+        journaled = new boolean[nodeCount];
+        journalSourceKey = new double[nodeCount];
+        journalDestinationKey = new double[nodeCount];
+        journalExcludedCount = new int[nodeCount];
+
+        changedNodes = new int[nodeCount];
+    }
+
+    /**
+     * @return number of valid (source, destination) pairs
+     */
+    public int getPairCount() {
+        return (int) (dominatingPairs - excludedPairs);
+    }
+
+    /**
+     * Bring the index up to date with the whole tree.
+     * Each node is compared with its cached keys in constant time,
+     * only changed nodes are updated.
+     */
+    public void update() {
+        if (!initialised) {
+            for (int nr = 0; nr < nodeCount; nr++)
+                setKeys(nr, getSourceKey(nr), getDestinationKey(nr), getExcludedCount(nr));
+            rebuild();
+            initialised = true;
+            return;
+        }
+
+        int changed = 0;
+        for (int nr = 0; nr < nodeCount; nr++) {
+            if (keysChanged(nr))
+                changedNodes[changed++] = nr;
+        }
+        if (isManyChanges(changed)) {
+            for (int k = 0; k < changed; k++) {
+                int nr = changedNodes[k];
+                setKeys(nr, getSourceKey(nr), getDestinationKey(nr), getExcludedCount(nr));
+            }
+            rebuild();
+        } else {
+            for (int k = 0; k < changed; k++)
+                updateNode(changedNodes[k]);
+        }
+    }
+
+    /**
+     * Bring the index up to date after a subtree was pruned and regrafted
+     * next to the given nodes: the keys of a node depend on its parent and
+     * grandparent, so the given nodes and their children are updated.
+     *
+     * @param nodes nodes whose parent or parent height changed
+     */
+    public void update(Node... nodes) {
+        for (Node node : nodes) {
+            updateNode(node.getNr());
+            for (Node child : node.getChildren())
+                updateNode(child.getNr());
+        }
+    }
+
+    /**
+     * Start journaling changes, to be undone by restore().
+     */
+    public void store() {
+        for (int k = 0; k < journalSize; k++)
+            journaled[journal[k]] = false;
+        journalSize = 0;
+    }
+
+    /**
+     * Undo the changes since the last store().
+     */
+    public void restore() {
+        boolean manyChanges = isManyChanges(journalSize);
+        for (int k = 0; k < journalSize; k++) {
+            int nr = journal[k];
+            journaled[nr] = false;
+            if (manyChanges) {
+                sourceKey[nr] = journalSourceKey[nr];
+                destinationKey[nr] = journalDestinationKey[nr];
+                excludedCount[nr] = journalExcludedCount[nr];
+            } else
+                applyKeys(nr, journalSourceKey[nr], journalDestinationKey[nr], journalExcludedCount[nr]);
+        }
+        journalSize = 0;
+        if (manyChanges)
+            rebuild();
+    }
+
+    // beyond about log2(n) changed nodes, sorting all keys is cheaper than shifting them one by one
+    private boolean isManyChanges(int changed) {
+        return changed > 32 - Integer.numberOfLeadingZeros(nodeCount);
+    }
+
+    private boolean keysChanged(int nr) {
+        return !sameKey(sourceKey[nr], getSourceKey(nr))
+                || !sameKey(destinationKey[nr], getDestinationKey(nr))
+                || excludedCount[nr] != getExcludedCount(nr);
+    }
+
+    private void updateNode(int nr) {
+        if (!keysChanged(nr))
+            return;
+        journalKeys(nr);
+        applyKeys(nr, getSourceKey(nr), getDestinationKey(nr), getExcludedCount(nr));
+    }
+
+    private static boolean sameKey(double key1, double key2) {
+        return Double.doubleToLongBits(key1) == Double.doubleToLongBits(key2);
+    }
+
+    private double getSourceKey(int nr) {
+        Node node = qsTree.getNode(nr);
+        if (node.isRoot() || node.getParent().isRoot())
+            return Double.NaN;
+        if (sourceHaploMustContinue
+                && ((QuasiSpeciesNode) node).getContinuingHaploName() != ((QuasiSpeciesNode) node).getHaploAboveName())
+            return Double.NaN;
+        return node.getHeight();
+    }
+
+    private double getDestinationKey(int nr) {
+        Node node = qsTree.getNode(nr);
+        return node.isRoot() ? Double.NaN : node.getParent().getHeight();
+    }
+
+    private int getExcludedCount(int nr) {
+        if (Double.isNaN(getSourceKey(nr)))
+            return 0;
+        Node node = qsTree.getNode(nr);
+        double height = node.getHeight();
+        Node parent = node.getParent();
+        int count = 0;
+        // the node itself and its sister share the parent
+        if (parent.getHeight() > height)
+            count += 2;
+        if (parent.getParent().getHeight() > height)
+            count += 1;
+        return count;
+    }
+
+    // record the keys of a node, to be followed by rebuild()
+    private void setKeys(int nr, double source, double destination, int excluded) {
+        journalKeys(nr);
+        sourceKey[nr] = source;
+        destinationKey[nr] = destination;
+        excludedCount[nr] = excluded;
+    }
+
+    // change the keys of a node and update the sorted arrays and counts incrementally
+    private void applyKeys(int nr, double source, double destination, int excluded) {
+        if (!sameKey(sourceKey[nr], source)) {
+            if (!Double.isNaN(sourceKey[nr])) {
+                sourceCount = remove(sortedSources, sourceCount, sourceKey[nr]);
+                dominatingPairs -= countAbove(sortedDestinations, destinationCount, sourceKey[nr]);
+            }
+            if (!Double.isNaN(source)) {
+                dominatingPairs += countAbove(sortedDestinations, destinationCount, source);
+                sourceCount = insert(sortedSources, sourceCount, source);
+            }
+            sourceKey[nr] = source;
+        }
+
+        if (!sameKey(destinationKey[nr], destination)) {
+            if (!Double.isNaN(destinationKey[nr])) {
+                destinationCount = remove(sortedDestinations, destinationCount, destinationKey[nr]);
+                dominatingPairs -= countBelow(sortedSources, sourceCount, destinationKey[nr]);
+            }
+            if (!Double.isNaN(destination)) {
+                dominatingPairs += countBelow(sortedSources, sourceCount, destination);
+                destinationCount = insert(sortedDestinations, destinationCount, destination);
+            }
+            destinationKey[nr] = destination;
+        }
+
+        excludedPairs += excluded - excludedCount[nr];
+        excludedCount[nr] = excluded;
+    }
+
+    private void journalKeys(int nr) {
+        if (journaled[nr])
+            return;
+        journaled[nr] = true;
+        journal[journalSize++] = nr;
+        journalSourceKey[nr] = sourceKey[nr];
+        journalDestinationKey[nr] = destinationKey[nr];
+        journalExcludedCount[nr] = excludedCount[nr];
+    }
+
+    // rebuild the sorted arrays and counts from the per node keys
+    private void rebuild() {
+        sourceCount = 0;
+        destinationCount = 0;
+        excludedPairs = 0;
+        for (int nr = 0; nr < nodeCount; nr++) {
+            if (!Double.isNaN(sourceKey[nr]))
+                sortedSources[sourceCount++] = sourceKey[nr];
+            if (!Double.isNaN(destinationKey[nr]))
+                sortedDestinations[destinationCount++] = destinationKey[nr];
+            excludedPairs += excludedCount[nr];
+        }
+        Arrays.sort(sortedSources, 0, sourceCount);
+        Arrays.sort(sortedDestinations, 0, destinationCount);
+
+        // merge: for each source, count the destinations strictly above it
+        dominatingPairs = 0;
+        int d = 0;
+        for (int s = 0; s < sourceCount; s++) {
+            while (d < destinationCount && sortedDestinations[d] <= sortedSources[s])
+                d++;
+            dominatingPairs += destinationCount - d;
+        }
+    }
+
+    // number of keys strictly above the value
+    private static int countAbove(double[] sorted, int size, double value) {
+        return size - upperBound(sorted, size, value);
+    }
+
+    // number of keys strictly below the value
+    private static int countBelow(double[] sorted, int size, double value) {
+        return lowerBound(sorted, size, value);
+    }
+
+    // first index with a key >= value
+    private static int lowerBound(double[] sorted, int size, double value) {
+        int low = 0, high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid] < value)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    // first index with a key > value
+    private static int upperBound(double[] sorted, int size, double value) {
+        int low = 0, high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid] <= value)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    private static int insert(double[] sorted, int size, double value) {
+        int position = upperBound(sorted, size, value);
+        System.arraycopy(sorted, position, sorted, position + 1, size - position);
+        sorted[position] = value;
+        return size + 1;
+    }
+
+    private static int remove(double[] sorted, int size, double value) {
+        int position = lowerBound(sorted, size, value);
+        if (position == size || sorted[position] != value)
+            throw new IllegalStateException("Key " + value + " missing from the Wilson-Balding pair index.");
+        System.arraycopy(sorted, position + 1, sorted, position, size - position - 1);
+        return size - 1;
+    }
+}
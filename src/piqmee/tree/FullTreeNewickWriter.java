@@ -0,0 +1,168 @@
+package piqmee.tree;
+
+import beast.base.evolution.tree.Node;
+
+import java.util.Arrays;
+
+/**
+ * Writes the fully expanded tree of a quasi-species tree, with one tip for every
+ * sampled sequence, as Newick straight from the attachment time arrays.
+ * Unlike QuasiSpeciesTree.getFullTree() no tree or node objects are built:
+ * the duplicates attaching to a branch are nested into the string while the
+ * branch is written, so one writer can be kept by a logger and reused every sample.
+ *
+ * Original tips keep their taxon IDs, the duplicate attaching at attachment time
+ * index i of haplotype ID is labelled ID_i. As in the operators' validity checks,
+ * the lowest attachment times carry the most recent sampling times.
+ */
+public class FullTreeNewickWriter {
+
+    // haplotype (tip node number) whose duplicates attach to the branch above each node, -1 if none
+    private int[] branchHaplo = new int[0];
+    // tree being written
+    private QuasiSpeciesTree tree;
+
+    /**
+     * @param tree quasi-species tree to expand
+     * @return Newick string of the expanded tree, without the trailing ';'
+     */
+    public String toNewick(QuasiSpeciesTree tree) {
+        StringBuilder sb = new StringBuilder();
+        write(tree, sb);
+        return sb.toString();
+    }
+
+    /**
+     * Append the expanded tree to the builder, without the trailing ';'.
+     *
+     * @param tree quasi-species tree to expand
+     * @param sb   builder to append to
+     */
+    public void write(QuasiSpeciesTree tree, StringBuilder sb) {
+        this.tree = tree;
+        assignBranchHaplotypes();
+        writeBranch(tree.getRoot(), Double.POSITIVE_INFINITY, sb);
+        this.tree = null;
+    }
+
+    /**
+     * Follow every haplotype from its tip up to its highest attachment time and
+     * record the branches its duplicates can attach to.
+     */
+    private void assignBranchHaplotypes() {
+        int nodeCount = tree.getNodeCount();
+        if (branchHaplo.length != nodeCount)
+            branchHaplo = new int[nodeCount];
+        Arrays.fill(branchHaplo, -1);
+
+        for (Node tip : tree.getExternalNodes()) {
+            double[] attachmentTimes = ((QuasiSpeciesNode) tip).getAttachmentTimesList();
+            if (attachmentTimes.length < 2)
+                continue;
+            // attachment times are sorted in descending order, index 0 being the haplotype start
+            double highest = attachmentTimes[1];
+            Node node = tip;
+            branchHaplo[node.getNr()] = tip.getNr();
+            while (!node.isRoot() && highest > node.getParent().getHeight()) {
+                node = node.getParent();
+                branchHaplo[node.getNr()] = tip.getNr();
+            }
+        }
+    }
+
+    /**
+     * Write the subtree below node together with the duplicates attaching to the
+     * branch above it, i.e. between the node height and upperHeight.
+     */
+    private void writeBranch(Node node, double upperHeight, StringBuilder sb) {
+        double height = node.getHeight();
+        int haplo = branchHaplo[node.getNr()];
+
+        double[] attachmentTimes = null;
+        int first = 1, last = 0;
+        if (haplo != -1) {
+            attachmentTimes = ((QuasiSpeciesNode) tree.getNode(haplo)).getAttachmentTimesList();
+            first = firstIndexNotAbove(attachmentTimes, upperHeight);
+            last = firstIndexNotAbove(attachmentTimes, height) - 1;
+        }
+
+        for (int i = first; i <= last; i++)
+            sb.append('(');
+
+        writeNode(node, sb);
+        double nodeParentHeight = last >= first ? attachmentTimes[last] : upperHeight;
+        appendLength(nodeParentHeight, height, sb);
+
+        if (last >= first) {
+            QuasiSpeciesNode haploTip = (QuasiSpeciesNode) tree.getNode(haplo);
+            for (int i = last; i >= first; i--) {
+                sb.append(',');
+                sb.append(haploTip.getID()).append('_').append(i);
+                appendLength(attachmentTimes[i], getDuplicateTipTime(haploTip, i), sb);
+                sb.append(')');
+                appendLength(i > first ? attachmentTimes[i - 1] : upperHeight, attachmentTimes[i], sb);
+            }
+        }
+    }
+
+    private void writeNode(Node node, StringBuilder sb) {
+        if (node.isLeaf()) {
+            sb.append(node.getID());
+            return;
+        }
+        sb.append('(');
+        writeBranch(node.getLeft(), node.getHeight(), sb);
+        if (node.getRight() != null) {
+            sb.append(',');
+            writeBranch(node.getRight(), node.getHeight(), sb);
+        }
+        sb.append(')');
+    }
+
+    /**
+     * Append the branch length, the root being written with length 0 as in toSortedNewick.
+     */
+    private static void appendLength(double upperHeight, double lowerHeight, StringBuilder sb) {
+        sb.append(':');
+        sb.append(upperHeight == Double.POSITIVE_INFINITY ? 0.0 : upperHeight - lowerHeight);
+    }
+
+    /**
+     * Binary search in the attachment times below the haplotype start,
+     * which are in descending order.
+     *
+     * @return smallest index i >= 1 with attachmentTimes[i] <= height,
+     *         attachmentTimes.length if there is none
+     */
+    private static int firstIndexNotAbove(double[] attachmentTimes, double height) {
+        int lo = 1, hi = attachmentTimes.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (attachmentTimes[mid] > height)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Sampling time of the duplicate attaching at attachment time index i.
+     * Counting from the lowest attachment time, the first count - 1 duplicates
+     * are sampled at the tip time of the haplotype (the tip itself being the
+     * remaining one), the next ones at the following tip times in turn.
+     */
+    private static double getDuplicateTipTime(QuasiSpeciesNode tip, int i) {
+        double[] tipTimes = tip.getTipTimesList();
+        int[] tipTimesCounts = tip.getTipTimesCountList();
+        int fromBottom = tip.getAttachmentTimesList().length - 1 - i;
+        int position = 0;
+        int inPosition = tipTimesCounts[0] - 1;
+        while (fromBottom >= inPosition && position < tipTimes.length - 1) {
+            fromBottom -= inPosition;
+            position++;
+            inPosition = tipTimesCounts[position];
+        }
+        return tipTimes[position];
+    }
+}
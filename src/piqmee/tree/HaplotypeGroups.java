@@ -0,0 +1,194 @@
+package piqmee.tree;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Collapsed group map of the tips of a tree: tips in the same group carry
+ * sequences that are identical (possibly up to missing data) and are collapsed
+ * into one haplotype of the quasi-species tree.
+ * Replaces the taxa x taxa distance matrix, in which a distance of 0 meant
+ * that two tips are to be collapsed.
+ * Before the collapsing up to missing data, the groups hold identical sequences
+ * and the pairs of groups that are identical up to missing data are kept aside.
+ */
+public class HaplotypeGroups {
+
+    // group of each tip, indexed by node number; -1 for numbers not assigned to a tip
+    final private int[] group;
+    // number of tips in each group
+    final private int[] groupSize;
+    // pairs (i, j), i < j, of groups identical up to missing data, not collapsed yet
+    final private List<int[]> identicalPairs;
+
+    /**
+     * @param group group of each tip indexed by node number, numbered 0 to (number of groups - 1),
+     *              or -1 for numbers without a tip
+     */
+    public HaplotypeGroups(int[] group) {
+        this(group, new ArrayList<>());
+    }
+
+    /**
+     * @param group          group of each tip indexed by node number, numbered 0 to (number of groups - 1),
+     *                       or -1 for numbers without a tip
+     * @param identicalPairs pairs (i, j), i < j, of groups identical up to missing data
+     */
+    public HaplotypeGroups(int[] group, List<int[]> identicalPairs) {
+        this.group = group;
+        this.identicalPairs = identicalPairs;
+        int groupCount = 0;
+        for (int g : group)
+            groupCount = Math.max(groupCount, g + 1);
+        groupSize = new int[groupCount];
+        for (int g : group) {
+            if (g >= 0)
+                groupSize[g]++;
+        }
+    }
+
+    /**
+     * Groups of tips that are in the same group in both groupings,
+     * i.e. tips that are identical in two linked alignments.
+     * Two groups of the intersection are identical up to missing data
+     * if they are identical or identical up to missing data in both groupings.
+     *
+     * @param other grouping of the same tips
+     * @return intersection of this and other grouping
+     */
+    public HaplotypeGroups intersect(HaplotypeGroups other) {
+        if (other.group.length != group.length)
+            throw new IllegalArgumentException("Cannot intersect groupings of " + group.length +
+                    " and " + other.group.length + " taxa.");
+        int[] intersection = new int[group.length];
+        Map<Long, Integer> groupOfPair = new HashMap<>();
+        List<Integer> thisGroupOf = new ArrayList<>();
+        List<Integer> otherGroupOf = new ArrayList<>();
+        for (int i = 0; i < group.length; i++) {
+            if (group[i] < 0 || other.group[i] < 0) {
+                intersection[i] = -1;
+                continue;
+            }
+            long pair = ((long) group[i] << 32) | other.group[i];
+            Integer g = groupOfPair.get(pair);
+            if (g == null) {
+                g = groupOfPair.size();
+                groupOfPair.put(pair, g);
+                thisGroupOf.add(group[i]);
+                otherGroupOf.add(other.group[i]);
+            }
+            intersection[i] = g;
+        }
+
+        // groups of the intersection within each group of this grouping
+        List<List<Integer>> parts = new ArrayList<>();
+        for (int g = 0; g < groupSize.length; g++)
+            parts.add(new ArrayList<>());
+        for (int g = 0; g < thisGroupOf.size(); g++)
+            parts.get(thisGroupOf.get(g)).add(g);
+
+        // candidates are the pairs identical (up to missing data) in this grouping,
+        // they are kept if they are identical (up to missing data) in the other grouping as well
+        Set<Long> otherPairs = other.getPairSet();
+        List<int[]> pairs = new ArrayList<>();
+        for (List<Integer> part : parts) {
+            for (int a = 0; a < part.size(); a++) {
+                for (int b = a + 1; b < part.size(); b++)
+                    addIfIdentical(part.get(a), part.get(b), otherGroupOf, otherPairs, pairs);
+            }
+        }
+        for (int[] pair : identicalPairs) {
+            for (int a : parts.get(pair[0])) {
+                for (int b : parts.get(pair[1]))
+                    addIfIdentical(a, b, otherGroupOf, otherPairs, pairs);
+            }
+        }
+        return new HaplotypeGroups(intersection, pairs);
+    }
+
+    private static void addIfIdentical(int a, int b, List<Integer> otherGroupOf, Set<Long> otherPairs, List<int[]> pairs) {
+        int otherA = otherGroupOf.get(a);
+        int otherB = otherGroupOf.get(b);
+        if (otherA == otherB || otherPairs.contains(pairKey(otherA, otherB)))
+            pairs.add(new int[] {Math.min(a, b), Math.max(a, b)});
+    }
+
+    private Set<Long> getPairSet() {
+        Set<Long> pairSet = new HashSet<>();
+        for (int[] pair : identicalPairs)
+            pairSet.add(pairKey(pair[0], pair[1]));
+        return pairSet;
+    }
+
+    private static long pairKey(int i, int j) {
+        return ((long) Math.min(i, j) << 32) | Math.max(i, j);
+    }
+
+    /**
+     * Merge groups, e.g. those identical up to missing data
+     *
+     * @param mergedGroup new group of each group, numbered 0 to (number of new groups - 1)
+     * @return grouping of the tips into the new groups
+     */
+    public HaplotypeGroups merge(int[] mergedGroup) {
+        int[] merged = new int[group.length];
+        for (int i = 0; i < group.length; i++)
+            merged[i] = group[i] < 0 ? -1 : mergedGroup[group[i]];
+        return new HaplotypeGroups(merged);
+    }
+
+    /**
+     * @return pairs (i, j), i < j, of groups identical up to missing data
+     */
+    public List<int[]> getIdenticalPairs() {
+        return identicalPairs;
+    }
+
+    /**
+     * @return number of tips (node numbers) covered by the grouping
+     */
+    public int getTaxonCount() {
+        return group.length;
+    }
+
+    public int getGroupCount() {
+        return groupSize.length;
+    }
+
+    public int getGroup(int nodeNr) {
+        return group[nodeNr];
+    }
+
+    /**
+     * @return number of tips in the group of the given tip, including the tip itself
+     */
+    public int getGroupSize(int nodeNr) {
+        return group[nodeNr] < 0 ? 1 : groupSize[group[nodeNr]];
+    }
+
+    public boolean isSameGroup(int nodeNr1, int nodeNr2) {
+        return nodeNr1 == nodeNr2 || (group[nodeNr1] >= 0 && group[nodeNr1] == group[nodeNr2]);
+    }
+
+    /**
+     * Expand the grouping into the taxa x taxa distance matrix used before,
+     * with distance 0 within groups and 1 between them.
+     * Takes O(N^2) memory, so only meant for small data sets.
+     *
+     * @return distance matrix
+     */
+    public double[][] toDistanceMatrix() {
+        double[][] distanceMatrix = new double[group.length][group.length];
+        for (int i = 0; i < group.length; i++) {
+            for (int j = 0; j < group.length; j++) {
+                if (!isSameGroup(i, j))
+                    distanceMatrix[i][j] = 1;
+            }
+        }
+        return distanceMatrix;
+    }
+}
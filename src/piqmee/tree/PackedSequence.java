@@ -0,0 +1,67 @@
+package piqmee.tree;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sequence of encoded character states packed into 64-bit words, with a 64-bit fingerprint.
+ * Used as a hash key to find identical sequences without comparing full sequence strings.
+ * Two packed sequences are equal if their packed words are equal, the fingerprint only
+ * serves as a cheap first check and as hash code.
+ */
+public final class PackedSequence {
+
+    final private long[] words;
+    final private long fingerprint;
+
+    /**
+     * @param states        encoded character states of the sequence
+     * @param bitsPerState  number of bits used per state, see bitsPerState(int)
+     */
+    public PackedSequence(List<Integer> states, int bitsPerState) {
+        int statesPerWord = 64 / bitsPerState;
+        words = new long[(states.size() + statesPerWord - 1) / statesPerWord];
+        for (int i = 0; i < states.size(); i++) {
+            words[i / statesPerWord] |= ((long) states.get(i)) << ((i % statesPerWord) * bitsPerState);
+        }
+
+        // 64-bit mix of the words (the finalizer of MurmurHash3)
+        long hash = states.size();
+        for (long word : words) {
+            hash = (hash ^ word) * 0xff51afd7ed558ccdL;
+            hash ^= hash >>> 33;
+            hash *= 0xc4ceb9fe1a85ec53L;
+            hash ^= hash >>> 33;
+        }
+        fingerprint = hash;
+    }
+
+    /**
+     * Number of bits needed to pack states with codes 0 to maxCode
+     *
+     * @param maxCode largest state code in the data
+     * @return bits per state
+     */
+    public static int bitsPerState(int maxCode) {
+        return Math.max(1, 32 - Integer.numberOfLeadingZeros(maxCode));
+    }
+
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (fingerprint ^ (fingerprint >>> 32));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof PackedSequence))
+            return false;
+        PackedSequence other = (PackedSequence) o;
+        return fingerprint == other.fingerprint && Arrays.equals(words, other.words);
+    }
+}
@@ -21,6 +21,14 @@ public class QuasiSpeciesNode extends QuasiSpeciesNodeBaseClass {
     double oldtimeofchangedcopy=-1;
     double newtimeofchangedcopy=-1;
 
+    // cached terms of getTotalBranchLengths: the sum of the attachment times and the sum of the
+    // tip times weighted by their counts, NaN when they have to be recomputed
+    double attachmentTimesSum=Double.NaN;
+    double tipTimesSum=Double.NaN;
+    // single attachment time edits added to attachmentTimesSum since it was last recomputed,
+    // bounding the accumulated rounding error
+    int attachmentTimesSumUpdates;
+    private static final int MAX_ATTACHMENT_TIMES_SUM_UPDATES = 1 << 16;
 
     public QuasiSpeciesNode() {}
 
@@ -125,18 +133,33 @@ public class QuasiSpeciesNode extends QuasiSpeciesNodeBaseClass {
      *          and the tip times/counts of haplotype associated with this tip
      */
     public double getTotalBranchLengths() {
-        double totalTime=0.0;
-        int currentTipTimePosition = 0;
-        int currentTipArrayPosition = 0;
-        for (int i=attachmentTimesList.length-1; i>=0; i--){
-            totalTime += attachmentTimesList[i] - tipTimesList[currentTipTimePosition];
-            currentTipArrayPosition++;
-            if (currentTipArrayPosition == tipTimesCountList[currentTipTimePosition]) {
-                currentTipArrayPosition = 0;
-                currentTipTimePosition++;
-            }
+        // every attachment time is paired with one tip time, so the sum of the branch lengths
+        // is the sum of the attachment times less the sum of the tip times times their counts
+        if (Double.isNaN(attachmentTimesSum)) {
+            double sum = 0.0;
+            for (int i = 0; i < attachmentTimesList.length; i++)
+                sum += attachmentTimesList[i];
+            attachmentTimesSum = sum;
+            attachmentTimesSumUpdates = 0;
+        }
+        if (Double.isNaN(tipTimesSum)) {
+            double sum = 0.0;
+            for (int i = 0; i < tipTimesList.length; i++)
+                sum += tipTimesList[i] * tipTimesCountList[i];
+            tipTimesSum = sum;
         }
-        return totalTime;
+        return attachmentTimesSum - tipTimesSum;
+    }
+
+    /**
+     * Keep the cached sum of the attachment times up to date after a single attachment time
+     * changed, given the sum before the change
+     */
+    private void updateAttachmentTimesSum(double sumBefore, double oldTime, double newTime) {
+        if (Double.isNaN(sumBefore) || attachmentTimesSumUpdates >= MAX_ATTACHMENT_TIMES_SUM_UPDATES)
+            return;
+        attachmentTimesSum = sumBefore + (newTime - oldTime);
+        attachmentTimesSumUpdates++;
     }
 
     /**
@@ -161,6 +184,85 @@ public class QuasiSpeciesNode extends QuasiSpeciesNodeBaseClass {
         attachmentTimesListChanged = false;
     }
 
+    private void markAttachmentTimesChanged(int from, int to) {
+        attachmentTimesListChanged = true;
+        attachmentTimesSum = Double.NaN;
+        if (m_tree instanceof QuasiSpeciesTree)
+            ((QuasiSpeciesTree) m_tree).journalAttachmentTimes(getNr(), from, to);
+    }
+
+    private void markTipTimesChanged() {
+        tipTimesSum = Double.NaN;
+        if (m_tree instanceof QuasiSpeciesTree)
+            ((QuasiSpeciesTree) m_tree).journalTipTimes(getNr());
+    }
+
+    /**
+     * Sets a single attachment time in place, without reordering the list:
+     * the new time must keep the attachment times sorted
+     *
+     * @param index index of the attachment time, 0 for the haplotype start time
+     * @param time  new attachment time
+     */
+    public void setAttachmentTime(int index, double time) {
+        startEditing();
+        double sumBefore = attachmentTimesSum;
+        double oldTime = attachmentTimesList[index];
+        attachmentTimesList[index] = time;
+        markAttachmentTimesChanged(index, index);
+        updateAttachmentTimesSum(sumBefore, oldTime, time);
+    }
+
+    /**
+     * Moves a single attachment time in place to a new time. The entry is moved to its position
+     * in the descending order of the attachment times 1 to n-1, found by binary search, and the
+     * entries in between are shifted by one; the haplotype start time at index 0 is left as is.
+     * The old and new time are recorded as the changed copy for the tree prior.
+     *
+     * @param index   index of the attachment time to move, between 1 and n-1
+     * @param newTime new attachment time
+     * @return index of the moved attachment time in the sorted list
+     */
+    public int moveAttachmentTime(int index, double newTime) {
+        startEditing();
+        double[] times = attachmentTimesList;
+        double oldTime = times[index];
+        int newIndex;
+        if (newTime > oldTime) {
+            // first position in 1..index-1 with a smaller time, entries >= newTime stay above
+            int low = 1, high = index;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (times[mid] >= newTime)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            newIndex = low;
+            System.arraycopy(times, newIndex, times, newIndex + 1, index - newIndex);
+        } else {
+            // last position in index+1..n-1 with a larger time
+            int low = index, high = times.length - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (times[mid] > newTime)
+                    low = mid;
+                else
+                    high = mid - 1;
+            }
+            newIndex = low;
+            System.arraycopy(times, index + 1, times, index, newIndex - index);
+        }
+        times[newIndex] = newTime;
+
+        oldtimeofchangedcopy = oldTime;
+        newtimeofchangedcopy = newTime;
+        double sumBefore = attachmentTimesSum;
+        markAttachmentTimesChanged(Math.min(index, newIndex), Math.max(index, newIndex));
+        updateAttachmentTimesSum(sumBefore, oldTime, newTime);
+        return newIndex;
+    }
+
     /**
      * Sets the attachment times of the haplotype associated with this tip
      *
@@ -169,7 +271,7 @@ public class QuasiSpeciesNode extends QuasiSpeciesNodeBaseClass {
     public void setAttachmentTimesList(double[] newAttachmentTimesList) {
         startEditing();
         this.attachmentTimesList = newAttachmentTimesList;
-        attachmentTimesListChanged = true;
+        markAttachmentTimesChanged(0, newAttachmentTimesList.length - 1);
     }
 
     /**
@@ -178,6 +280,7 @@ public class QuasiSpeciesNode extends QuasiSpeciesNodeBaseClass {
      *
      */
     public void setFirstEntryAndSortAttachTimeList() {
+        markAttachmentTimesChanged(0, attachmentTimesList.length - 1);
         Arrays.sort(attachmentTimesList);
         // copy the largest bifurcation time, to indicate the haplo start time
         attachmentTimesList[0] = attachmentTimesList[attachmentTimesList.length - 1];
@@ -195,6 +298,7 @@ public class QuasiSpeciesNode extends QuasiSpeciesNodeBaseClass {
      *
      */
     public void sortAttachTimeList() {
+        markAttachmentTimesChanged(0, attachmentTimesList.length - 1);
         Arrays.sort(attachmentTimesList);
         // reverse the array to start with the largest value
         int totalLength = attachmentTimesList.length;
@@ -224,6 +328,7 @@ public class QuasiSpeciesNode extends QuasiSpeciesNodeBaseClass {
         startEditing();
         this.makeDirty(QuasiSpeciesTree.IS_FILTHY);
         this.tipTimesList = newTipTimesList;
+        markTipTimesChanged();
     }
 
     /**
@@ -245,6 +350,7 @@ public class QuasiSpeciesNode extends QuasiSpeciesNodeBaseClass {
         startEditing();
         this.makeDirty(QuasiSpeciesTree.IS_FILTHY);
         this.tipTimesCountList = newTipTimesCountList;
+        markTipTimesChanged();
     }
 
     /**
@@ -252,6 +358,7 @@ public class QuasiSpeciesNode extends QuasiSpeciesNodeBaseClass {
      *
      */
     public void sortTipTimeAndCountList() {
+        markTipTimesChanged();
         //Manually sort tipTimes, since we in the same way need to sort the tip counts
         double tmp;
         int tmpint;
@@ -378,6 +485,8 @@ public class QuasiSpeciesNode extends QuasiSpeciesNodeBaseClass {
             System.arraycopy(qsNode.tipTimesCountList,0,tipTimesCountList,0,qsNode.tipTimesCountList.length);
         }
         parentHaplo = qsNode.parentHaplo;
+        attachmentTimesSum = Double.NaN;
+        tipTimesSum = Double.NaN;
 
         if (node.getLeft()!=null) {
             setLeft(nodes[node.getLeft().getNr()]);
@@ -65,23 +65,18 @@ public class QuasiSpeciesRandomTree extends QuasiSpeciesTree implements StateNod
         // get monophyletic constraints necessary to cluster identical sequences
         // specify monophyletic clusters from distance matrix
         List<MRCAPrior> monophyleticGroups = new ArrayList();
-        // Get the distances for the sequences:
-        double[][] distanceMatrix = getDistanceMatrix(data, toyRandomTree, collapseSequencesWithMissingDataInput.get());
-        // specify monophyletic constraints
-        for (int i = 0; i < distanceMatrix.length; i++) {
-            List<Taxon> identical = new ArrayList<>();
-            Taxon currentTaxon = new Taxon(data.getTaxaNames().get(i));
-            identical.add(currentTaxon);
-            for (int j = 0; j < i; j++) {
-                if (distanceMatrix[j][i] == 0)
-                    continue;
-            }
-            for (int k = i + 1; k < distanceMatrix.length; k++) {
-                if (distanceMatrix[k][i] == 0) {
-                    Taxon newTaxon = new Taxon(data.getTaxaNames().get(k));
-                    identical.add(newTaxon);
-                }
-            }
+        // Get the groups of identical sequences:
+        HaplotypeGroups haplotypeGroups = getHaplotypeGroups(data, toyRandomTree, collapseSequencesWithMissingDataInput.get());
+        // collect the members of each group
+        List<List<Taxon>> groupMembers = new ArrayList<>();
+        for (int g = 0; g < haplotypeGroups.getGroupCount(); g++)
+            groupMembers.add(new ArrayList<>());
+        for (int i = 0; i < haplotypeGroups.getTaxonCount(); i++) {
+            if (haplotypeGroups.getGroup(i) >= 0)
+                groupMembers.get(haplotypeGroups.getGroup(i)).add(new Taxon(data.getTaxaNames().get(i)));
+        }
+        // specify monophyletic constraints, one for each group of identical sequences
+        for (List<Taxon> identical : groupMembers) {
             if (identical.size() == 1)
                 continue;
 
@@ -6,8 +6,6 @@ import beast.base.core.Input;
 import beast.base.core.Log;
 import beast.base.evolution.alignment.Alignment;
 import beast.base.evolution.alignment.FilteredAlignment;
-import beast.base.evolution.alignment.Sequence;
-import beast.base.evolution.distance.Distance;
 import beast.base.evolution.datatype.DataType;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.TraitSet;
@@ -15,7 +13,7 @@ import beast.base.evolution.tree.Tree;
 import beast.base.evolution.tree.TreeParser;
 import beast.base.inference.StateNode;
 import beast.base.inference.StateNodeInitialiser;
-import piqmee.distance.DifferenceCount;
+import piqmee.distance.StateBitsets;
 import beast.base.evolution.likelihood.GenericTreeLikelihood;
 
 import java.io.PrintStream;
@@ -44,6 +42,22 @@ public class QuasiSpeciesTree extends Tree {
 
     protected TraitSet haplotypeCountsSet;
     protected Map<String, Integer> haplotypeCounts;
+    // prefix sums of the attachment counts (haplotype count - 1) of the tips in getExternalNodes() order,
+    // attachmentCountPrefix[k] is the sum over the first k tips; null when the haplotype counts changed
+    protected int[] attachmentCountPrefix;
+    // node numbers of the tips in the same order
+    protected int[] attachmentCountTips;
+
+    // journal of the tips whose attachment or tip times were edited since the last store:
+    // only these entries differ between m_nodes and m_storedNodes, whichever way restore swapped them
+    private int[] editedTips;
+    private int editedTipCount;
+    // per node number, range of the edited attachment time indices, -1 if none
+    private int[] editedFrom;
+    private int[] editedTo;
+    private boolean[] editedTipTimes;
+    // set when the nodes were rebuilt, so that the next store copies all tips
+    private boolean allTipsEdited = true;
     protected String qsLabel = "qscounts";
 
     // for quick access to external nodes
@@ -127,6 +141,7 @@ public class QuasiSpeciesTree extends Tree {
         }
 
         haplotypeCounts = new HashMap<>();
+        invalidateAttachmentCounts();
 
         processTraits(m_traitList.get());
 
@@ -292,11 +307,67 @@ public class QuasiSpeciesTree extends Tree {
      *
      */
     public int getTotalAttachmentCounts() {
-        int totalCount = 0;
-        for (Node node : this.getExternalNodes()) {
-            totalCount += getHaplotypeCounts(node) - 1;
+        int[] prefix = getAttachmentCountPrefix();
+        return prefix[prefix.length - 1];
+    }
+
+    /**
+     * Number the attachment events (duplicate sequences) of all haplotypes consecutively
+     * in tip order, and find the haplotype of an event by binary search on the prefix sums
+     *
+     * @param event number between 0 and getTotalAttachmentCounts() - 1
+     * @return tip node of the haplotype the event belongs to
+     */
+    public QuasiSpeciesNode getAttachmentEventNode(int event) {
+        return (QuasiSpeciesNode) getNode(attachmentCountTips[findAttachmentEventTip(event)]);
+    }
+
+    /**
+     * @param event number between 0 and getTotalAttachmentCounts() - 1
+     * @return index of the event in the attachment times list of its haplotype, i.e. between
+     *         1 and the haplotype count - 1, as position 0 is the haplotype starting point
+     */
+    public int getAttachmentEventIndex(int event) {
+        return event - attachmentCountPrefix[findAttachmentEventTip(event)] + 1;
+    }
+
+    // position k of the tip with prefix[k] <= event < prefix[k + 1]
+    private int findAttachmentEventTip(int event) {
+        int[] prefix = getAttachmentCountPrefix();
+        if (event < 0 || event >= prefix[prefix.length - 1])
+            throw new IllegalArgumentException("Attachment event " + event + " out of range.");
+        int low = 0, high = prefix.length - 2;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (prefix[mid] <= event)
+                low = mid;
+            else
+                high = mid - 1;
         }
-        return totalCount;
+        return low;
+    }
+
+    private int[] getAttachmentCountPrefix() {
+        if (attachmentCountPrefix == null) {
+            List<Node> tips = this.getExternalNodes();
+            int[] prefix = new int[tips.size() + 1];
+            int[] tipNrs = new int[tips.size()];
+            for (int k = 0; k < tips.size(); k++) {
+                tipNrs[k] = tips.get(k).getNr();
+                prefix[k + 1] = prefix[k] + getHaplotypeCounts(tips.get(k)) - 1;
+            }
+            attachmentCountTips = tipNrs;
+            attachmentCountPrefix = prefix;
+        }
+        return attachmentCountPrefix;
+    }
+
+    /**
+     * Drop the cached attachment counts, after the haplotype counts changed
+     */
+    protected void invalidateAttachmentCounts() {
+        attachmentCountPrefix = null;
+        attachmentCountTips = null;
     }
 
     /**
@@ -337,6 +408,7 @@ public class QuasiSpeciesTree extends Tree {
      * @param haploCounts new set of haplotype counts
      */
     private void setHaploCounts(TraitSet haploCounts) {
+        invalidateAttachmentCounts();
         for (Node node : this.getExternalNodes()) {
             // if (((QuasiSpeciesNode) node).getAttachmentTimesList().length != (int)
             // haploCounts.getValue(node.getID()))
@@ -355,6 +427,7 @@ public class QuasiSpeciesTree extends Tree {
      * @param value new haplotype count
      */
     protected void setHaploCounts(Node node, int value) {
+        invalidateAttachmentCounts();
         haplotypeCounts.put(node.getID(), value);
     }
 
@@ -365,6 +438,7 @@ public class QuasiSpeciesTree extends Tree {
      * @param tree        a tree whose nodes are the be used for assignment
      */
     protected void setHaploCounts(TraitSet haploCounts, Tree tree) {
+        invalidateAttachmentCounts();
         for (Node node : tree.getExternalNodes()) {
             // if (((QuasiSpeciesNode) node).getAttachmentTimesList().length != (int)
             // haploCounts.getValue(node.getID()))
@@ -380,6 +454,7 @@ public class QuasiSpeciesTree extends Tree {
      *
      */
     protected void clearHaploCounts(Tree tree) {
+        invalidateAttachmentCounts();
         for (Node node : tree.getExternalNodes()) {
             haplotypeCounts.remove(node.getID());
         }
@@ -581,6 +656,7 @@ public class QuasiSpeciesTree extends Tree {
         m_storedNodes = new QuasiSpeciesNode[nodeCount];
         Node copy = root.copy();
         listNodes((QuasiSpeciesNode) copy, (QuasiSpeciesNode[]) m_storedNodes);
+        resetStoreJournal();
     }
 
     /**
@@ -641,6 +717,7 @@ public class QuasiSpeciesTree extends Tree {
         leafNodeCount = qsTree.leafNodeCount;
         if (qsTree.haplotypeCounts != null)
             haplotypeCounts = qsTree.haplotypeCounts;
+        invalidateAttachmentCounts();
         initArrays();
     }
 
@@ -656,6 +733,7 @@ public class QuasiSpeciesTree extends Tree {
         QuasiSpeciesTree qsTree = (QuasiSpeciesTree) other;
 
         haplotypeCounts = qsTree.haplotypeCounts;
+        invalidateAttachmentCounts();
 
         if (m_nodes == null) {
             initArrays();
@@ -671,7 +749,7 @@ public class QuasiSpeciesTree extends Tree {
         qsRoot.setHaploAboveName(((QuasiSpeciesNode) (otherNodes[iRoot])).getHaploAboveName());
         qsRoot.setContinuingHaploName(((QuasiSpeciesNode) (otherNodes[iRoot])).getContinuingHaploName());
         // qsRoot.setStartBranchCounts(((QuasiSpeciesNode)(otherNodes[iRoot])).getStartBranchCounts());
-        qsRoot.setAttachmentTimesList(((QuasiSpeciesNode) (otherNodes[iRoot])).getAttachmentTimesList());
+        qsRoot.setAttachmentTimesList(((QuasiSpeciesNode) (otherNodes[iRoot])).getAttachmentTimesList().clone());
         qsRoot.setTipTimesList(((QuasiSpeciesNode) (otherNodes[iRoot])).getTipTimesList());
         qsRoot.setTipTimesCountList(((QuasiSpeciesNode) (otherNodes[iRoot])).getTipTimesCountList());
         qsRoot.setParentHaplo(((QuasiSpeciesNode) (otherNodes[iRoot])).getParentHaplo());
@@ -694,6 +772,7 @@ public class QuasiSpeciesTree extends Tree {
 
         // make sure to correctly assign the haplotypeCounts array
         haplotypeCounts.clear();
+        invalidateAttachmentCounts();
 
         for (Node node : this.getExternalNodes()) {
             setHaploCounts(node, ((QuasiSpeciesNode) node).getHaplotypeCountsFromTips());
@@ -715,7 +794,7 @@ public class QuasiSpeciesTree extends Tree {
             sink.setHaploAboveName(src.getHaploAboveName());
             sink.setContinuingHaploName(src.getContinuingHaploName());
             // sink.setStartBranchCounts(src.getStartBranchCounts());
-            sink.setAttachmentTimesList(src.getAttachmentTimesList());
+            sink.setAttachmentTimesList(src.getAttachmentTimesList().clone());
             sink.setTipTimesList(src.getTipTimesList());
             sink.setTipTimesCountList(src.getTipTimesCountList());
             sink.setParentHaplo(src.getParentHaplo());
@@ -1023,6 +1102,7 @@ public class QuasiSpeciesTree extends Tree {
         countAndSetPossibleStartBranches();
 
         haplotypeCounts.clear();
+        invalidateAttachmentCounts();
 
         for (Node node : this.getExternalNodes()) {
             setHaploCounts(node, ((QuasiSpeciesNode) node).getHaplotypeCountsFromTips());
@@ -1040,8 +1120,8 @@ public class QuasiSpeciesTree extends Tree {
 
         // In unique haplo tree, there can still be duplicate sequences, if found at
         // different points in time
-        // Get the distances for the sequences:
-        double[][] distanceMatrix = getDistanceMatrix(data, uniqueHaploTree, collapseSequencesWithMissingData);
+        // Get the groups of identical sequences:
+        HaplotypeGroups haplotypeGroups = getHaplotypeGroups(data, uniqueHaploTree, collapseSequencesWithMissingData);
 
         // Build new quasi-species tree:
         ArrayList haplotypesSeen = new ArrayList<>();
@@ -1052,7 +1132,7 @@ public class QuasiSpeciesTree extends Tree {
         setHaploCounts(haplotypeCountsTrait, uniqueHaploTree);
 
         ArrayList result = processNextNodeOfFullNewickTree(
-                uniqueHaploTree.getRoot(), qsTips, qsInternalNodes, distanceMatrix, haplotypesSeen, collapseIdentical);
+                uniqueHaploTree.getRoot(), qsTips, qsInternalNodes, haplotypeGroups, haplotypesSeen, collapseIdentical);
 
         // renumber tips to match the number of tips in the qsTree (so far matching
         // fullTree node numbers)
@@ -1137,8 +1217,8 @@ public class QuasiSpeciesTree extends Tree {
     public void initFromFullTree(Tree fullTree, Alignment data, boolean collapseIdentical,
             boolean collapseSequencesWithMissingData) {
 
-        // Get the distances for the sequences:
-        double[][] distanceMatrix = getDistanceMatrix(data, fullTree, collapseSequencesWithMissingData);
+        // Get the groups of identical sequences:
+        HaplotypeGroups haplotypeGroups = getHaplotypeGroups(data, fullTree, collapseSequencesWithMissingData);
 
         // Build new quasi-species tree:
         ArrayList haplotypesSeen = new ArrayList<>();
@@ -1146,7 +1226,7 @@ public class QuasiSpeciesTree extends Tree {
         List<QuasiSpeciesNode> qsInternalNodes = new ArrayList<>();
 
         ArrayList result = processNextNodeOfFullNewickTree(fullTree.getRoot(), qsTips, qsInternalNodes,
-                distanceMatrix, haplotypesSeen, collapseIdentical);
+                haplotypeGroups, haplotypesSeen, collapseIdentical);
 
         // renumber tips to match the number of tips in the qsTree (so far matching
         // fullTree node numbers)
@@ -1216,17 +1296,26 @@ public class QuasiSpeciesTree extends Tree {
     }
 
     /**
-     * Calculate the distance matrix from all partitions
+     * Calculate the distance matrix from all partitions.
+     * Takes O(N^2) memory, use getHaplotypeGroups instead.
      *
      * @param data
      * @param tree
      * @param collapseSequencesWithMissingData
      */
     public double[][] getDistanceMatrix(Alignment data, Tree tree, boolean collapseSequencesWithMissingData) {
-        int taxaSize = data.getTaxonCount();
-        double[][] distanceMatrix = new double[taxaSize][taxaSize];
-        double[][] distanceMatrixSum = new double[taxaSize][taxaSize];
-        double[][] distanceMatrixTmp;
+        return getHaplotypeGroups(data, tree, collapseSequencesWithMissingData).toDistanceMatrix();
+    }
+
+    /**
+     * Find the groups of identical sequences over all partitions
+     *
+     * @param data
+     * @param tree
+     * @param collapseSequencesWithMissingData
+     */
+    public HaplotypeGroups getHaplotypeGroups(Alignment data, Tree tree, boolean collapseSequencesWithMissingData) {
+        HaplotypeGroups haplotypeGroups = null;
         // 1) check if there are multiple alignments linked with this tree -- such that
         // unique sequences correctly identified
         Set<BEASTInterface> outputset;
@@ -1245,79 +1334,75 @@ public class QuasiSpeciesTree extends Tree {
                     Alignment odatatmp = new Alignment(odata.sequenceInput.get(), odata.dataTypeInput.get());
                     odata = odatatmp;
                 }
-                // 2) make a distance matrix for each such alignment
-                distanceMatrixTmp = getSequenceDistances(odata, tree, collapseSequencesWithMissingData);
-                // 3) add this distance to distances from other alignments
-                for (int i = 0; i < taxaSize - 1; i++) {
-                    for (int j = i + 1; j < taxaSize; j++) {
-                        distanceMatrixSum[i][j] = distanceMatrix[i][j] + distanceMatrixTmp[i][j];
-                        distanceMatrixSum[j][i] = distanceMatrixSum[i][j];
-                    }
-                }
-                // 4)copy sum of distances to distanceMatrix
-                System.arraycopy(distanceMatrixSum, 0, distanceMatrix, 0, distanceMatrix.length);
+                // 2) group the sequences of each such alignment
+                HaplotypeGroups groupsTmp = getSequenceGroups(odata, tree, collapseSequencesWithMissingData);
+                // 3) sequences are identical only if they are identical in all alignments
+                haplotypeGroups = haplotypeGroups == null ? groupsTmp : haplotypeGroups.intersect(groupsTmp);
             }
         }
-        // 5) it could be, especially in a test case, that the tree is not linked with
+        // 4) it could be, especially in a test case, that the tree is not linked with
         // any output - check for this
-        if (outputset.size() == 0)
-            distanceMatrix = getSequenceDistances(data, tree, collapseSequencesWithMissingData);
-
-        // quickly check if all sequences are unique reciprocally, if not throw an error
-        // for now
-        if (!checkIfDistMatrixFullyReciprocal(distanceMatrix)) {
-            throw new IllegalArgumentException("When we do allow for collapsing of sequences that are identical even if"
-                    +
-                    "we take ambiguous sites into account, we have several possibilities of how this collapsing should "
-                    +
-                    "be done. ");
-        }
-        // TODO : change the method of sequence collapsing by not outputting distance
-        // matrix but hash with unique sequences
-        // & corresponding tip names
-        // Also in the loop checking if we have partitions, get all partitions and pipe
-        // it to the function that
-        // should collapse sequences if identical ... in this function, loop through
-        // each partition at the same time
-        // and check / create consensus sequence, then assign it to the tips that should
-        // be collapsed such that when
-        // we retrieve the collapsed alignment for the purpose of likelihood
+        if (haplotypeGroups == null)
+            haplotypeGroups = getSequenceGroups(data, tree, collapseSequencesWithMissingData);
+
+        // 5) collapse the sequences identical up to missing data in all alignments; this is
+        // checked on the combined grouping, as a collapsing ambiguous in one alignment can be
+        // resolved by another
+        haplotypeGroups = haplotypeGroups.merge(
+                collapseIdenticalPairs(haplotypeGroups.getGroupCount(), haplotypeGroups.getIdenticalPairs()));
+
+        // TODO : when we collapse sequences with missing data, create a consensus
+        // sequence for each group and assign it to the tips that are collapsed such that
+        // when we retrieve the collapsed alignment for the purpose of likelihood
         // calculation, we do not need to do this again
-        // --- when two "unique" sequences are collapsed, then recalculate distances and
-        // rejudge what shall be merged
 
-        return distanceMatrix;
+        return haplotypeGroups;
     }
 
     /**
      * Helper method used by initFromFullTree/initFromUniqueHaploTree to
-     * calculate pairwise sequence distances and return the matrix of them.
+     * group the tips with identical sequences.
+     * Sequences are packed into 64-bit words and hashed by their fingerprint, so that
+     * identical sequences are found in O(N) and no taxa x taxa matrix is needed.
      *
      * @param data
      * @param collapseSequencesWithMissingData
-     * @return
+     * @return groups of tips with identical sequences indexed by node number, with the pairs of groups
+     *          identical up to missing data if collapseSequencesWithMissingData is set
      */
-    protected double[][] getSequenceDistances(Alignment data, Tree tree, boolean collapseSequencesWithMissingData) {
-        // collect unique sequences into a hash
-        Map<String, List<Integer>> sequenceMap = new HashMap<>();
+    protected HaplotypeGroups getSequenceGroups(Alignment data, Tree tree, boolean collapseSequencesWithMissingData) {
+        DataType dataType = data.getDataType();
+        List<List<Integer>> encodedSequences = data.getCounts();
+
+        int maxCode = 0;
+        for (Node node : tree.getExternalNodes()) {
+            for (int state : encodedSequences.get(data.getTaxonIndex(node.getID())))
+                maxCode = Math.max(maxCode, state);
+        }
+        int bitsPerState = PackedSequence.bitsPerState(maxCode);
+
+        // collect unique sequences into a hash, remembering a representative taxon of each
+        Map<PackedSequence, Integer> sequenceMap = new HashMap<>();
+        List<Integer> representatives = new ArrayList<>();
+        List<Boolean> ambiguous = new ArrayList<>();
+        int taxaSize = data.getTaxonCount();
+        int[] uniqueSequenceOfNode = new int[taxaSize];
+        Arrays.fill(uniqueSequenceOfNode, -1);
         for (Node node : tree.getExternalNodes()) {
             int taxonNrInData = data.getTaxonIndex(node.getID());
-            Sequence seq = data.sequenceInput.get().get(taxonNrInData);
-            String sequence = seq.dataInput.get();
-            if (!sequenceMap.containsKey(sequence)) {
-                sequenceMap.put(sequence, new ArrayList<>());
+            List<Integer> sequence = encodedSequences.get(taxonNrInData);
+            PackedSequence packed = new PackedSequence(sequence, bitsPerState);
+            Integer unique = sequenceMap.get(packed);
+            if (unique == null) {
+                unique = representatives.size();
+                sequenceMap.put(packed, unique);
+                representatives.add(taxonNrInData);
+                // if collapseSequencesWithMissingData = true we need to know which sequences contain ambiguous codes
+                ambiguous.add(collapseSequencesWithMissingData && isAmbiguousSequence(sequence, dataType));
             }
-            sequenceMap.get(sequence).add(node.getNr());
+            uniqueSequenceOfNode[node.getNr()] = unique;
         }
-        // Get the distances for the sequences:
-        Distance distance = new DifferenceCount();
-        ((Distance.Base) distance).setPatterns(data);
-        // make a tip sequence distance matrix
-        int taxaSize = data.getTaxonCount();
-        double[][] distanceMatrix = new double[taxaSize][taxaSize];
-
-        String[] uniqueSequences = sequenceMap.keySet().toArray(new String[] {});
-        int n = uniqueSequences.length;
+        int n = representatives.size();
 
         Log.info("Found " + n + " unique sequences out of " + taxaSize + " sequences");
 
@@ -1325,58 +1410,95 @@ public class QuasiSpeciesTree extends Tree {
             Log.warning("\nWARNING: with " + n + " unique sequences you might consider sub-sampling\n");
         }
 
-        // if collapseSequencesWithMissingData = true we need to check if ambiguities in
-        // sequences happen
-        boolean[] ambiguousSequences = new boolean[uniqueSequences.length];
+        List<int[]> identicalPairs = new ArrayList<>();
         if (collapseSequencesWithMissingData) {
-            // need to find out if sequences are identical when ambiguities are taken into
-            // account
-            // first need to know which sequences contain ambiguous codes
-            ambiguousSequences = new boolean[uniqueSequences.length];
-            for (int i = 0; i < uniqueSequences.length; i++) {
-                ambiguousSequences[i] = isAmbiguousSequence(uniqueSequences[i], dataInput.get().getDataType());
+            // need to find out if sequences are identical when ambiguities are taken into account;
+            // only pairs with at least one ambiguous sequence can be identical.
+            // The unique sequences are encoded as bitsets of possible states and compared in parallel.
+            int[] representativeTaxa = new int[n];
+            boolean[] ambiguousSequences = new boolean[n];
+            for (int i = 0; i < n; i++) {
+                representativeTaxa[i] = representatives.get(i);
+                ambiguousSequences[i] = ambiguous.get(i);
             }
+            identicalPairs = new StateBitsets(data, representativeTaxa).findIdenticalPairs(ambiguousSequences);
+            if (identicalPairs.size() > 0)
+                Log.warning.println("Collapsing " + identicalPairs.size() + " pairs of sequences identical up to missing data");
         }
 
-        Log.warning.print("Prepping distance matrix");
-        // fill in the entries of distance matrix which are not 0
-        // and at the same time check if some sequences are identical up to missing data
-        // parts
-        for (int i = 0; i < n - 1; i++) {
-            List<Integer> taxa1 = sequenceMap.get(uniqueSequences[i]);
-            for (int j = i + 1; j < n; j++) {
-                List<Integer> taxa2 = sequenceMap.get(uniqueSequences[j]);
-                double dist;
-                // if collapseSequencesWithMissingData = true
-                // we can perhaps further collapse some of the uniqueSequences found so far
-                if (collapseSequencesWithMissingData && (ambiguousSequences[i] || ambiguousSequences[j])) {
-                    dist = ((DifferenceCount) distance).pairwiseDifference(taxa1.get(0), taxa2.get(0),
-                            collapseSequencesWithMissingData);
-                } else {
-                    dist = 1;
-                }
-                if (dist == 0) {
-                    Log.warning.print("\nwe can reduce the matrix\n");
-                }
-                for (int k = 0; k < taxa1.size(); k++) {
-                    int taxon1 = taxa1.get(k);
-                    for (int m = 0; m < taxa2.size(); m++) {
-                        int taxon2 = taxa2.get(m);
-                        // for sequences that remained un-collapsed fill in distance 1
-                        // the exact distance is not of interest here, just an indication that some
-                        // distance exists
-                        distanceMatrix[taxon1][taxon2] = dist;
-                        distanceMatrix[taxon2][taxon1] = dist;
-                    }
-                }
-            }
-            if (i % 100 == 0) {
-                Log.warning.print(".");
+        return new HaplotypeGroups(uniqueSequenceOfNode, identicalPairs);
+    }
+
+    /**
+     * Collapse groups of sequences that are identical up to missing data.
+     * Identity up to missing data is not transitive, so the pairs have to form
+     * fully connected cliques, otherwise there are several possibilities of how
+     * the collapsing should be done and an exception is thrown.
+     *
+     * @param n              number of groups of identical sequences
+     * @param identicalPairs pairs (i, j), i < j, of groups identical up to missing data
+     * @return collapsed group of each group, numbered 0 to (number of collapsed groups - 1)
+     */
+    protected int[] collapseIdenticalPairs(int n, List<int[]> identicalPairs) {
+        // union-find of the unique sequences
+        int[] parent = new int[n];
+        for (int i = 0; i < n; i++)
+            parent[i] = i;
+        for (int[] pair : identicalPairs) {
+            int root1 = findRoot(parent, pair[0]);
+            int root2 = findRoot(parent, pair[1]);
+            if (root1 != root2)
+                parent[Math.max(root1, root2)] = Math.min(root1, root2);
+        }
+
+        // number the groups and check that each of them is a clique
+        int[] group = new int[n];
+        int[] groupSize = new int[n];
+        int groupCount = 0;
+        for (int i = 0; i < n; i++) {
+            int root = findRoot(parent, i);
+            if (root == i)
+                group[i] = groupCount++;
+            else
+                group[i] = group[root];
+            groupSize[group[i]]++;
+        }
+        long[] edgeCount = new long[groupCount];
+        for (int[] pair : identicalPairs)
+            edgeCount[group[pair[0]]]++;
+        for (int g = 0; g < groupCount; g++) {
+            if (edgeCount[g] != (long) groupSize[g] * (groupSize[g] - 1) / 2) {
+                throw new IllegalArgumentException("When we do allow for collapsing of sequences that are identical even if"
+                        +
+                        "we take ambiguous sites into account, we have several possibilities of how this collapsing should "
+                        +
+                        "be done. ");
             }
         }
-        Log.warning.println("Done.");
+        return group;
+    }
 
-        return distanceMatrix;
+    private static int findRoot(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    /**
+     * Method to determine if an encoded sequence has ambiguous sites
+     *
+     * @param sequence encoded states of the sequence
+     * @param type     data type to know number of unambiguous states
+     * @return return true if sequence contains ambiguous sites
+     */
+    protected boolean isAmbiguousSequence(List<Integer> sequence, DataType type) {
+        for (int i = 0; i < sequence.size(); i++) {
+            if (type.isAmbiguousCode(sequence.get(i)))
+                return true;
+        }
+        return false;
     }
 
     /**
@@ -1429,47 +1551,6 @@ public class QuasiSpeciesTree extends Tree {
         return type.encodingToString(intersectionsequence);
     }
 
-    /**
-     * Method to determine if a distance matrix is fully reciprocal,
-     * ie if dist=0 would represent and edge between two taxa (nodes), and we have
-     * fully reciprocal distance matrix,
-     * we would have fully connected cliques
-     *
-     * @param distanceMatrix matrix of distances between taxa (expected 0 -
-     *                       something positive)
-     * @return return true if the matrix is reciprocal
-     */
-
-    private boolean checkIfDistMatrixFullyReciprocal(double[][] distanceMatrix) {
-        List<List<Integer>> taxaGroups = new ArrayList<>();
-        List<Integer> groupoftaxa = new ArrayList<>();
-        groupoftaxa.add(0);
-        for (int j = 0; j < distanceMatrix.length; j++) {
-            if (distanceMatrix[0][j] == 0)
-                groupoftaxa.add(j);
-        }
-        taxaGroups.add(groupoftaxa);
-        for (int i = 1; i < distanceMatrix.length; i++) {
-            groupoftaxa.clear();
-            for (int j = 0; j < distanceMatrix.length; j++) {
-                if (distanceMatrix[i][j] == 0)
-                    groupoftaxa.add(j);
-            }
-            for (List<Integer> existingGroup : taxaGroups) {
-                if (existingGroup.contains(i)) {
-                    if (existingGroup.size() == groupoftaxa.size()) {
-                        break;
-                    } else {
-                        return false;
-                    }
-                }
-
-            }
-            taxaGroups.add(groupoftaxa);
-        }
-        return true;
-    }
-
     /**
      * Helper method used by initFromFullTree/initFromUniqueHaploTree to evaluate
      * which nodes are to be kept as internal nodes and to assign the
@@ -1480,14 +1561,14 @@ public class QuasiSpeciesTree extends Tree {
      * @param node
      * @param qsTips
      * @param qsInternalNodes
-     * @param distanceMatrix
+     * @param haplotypeGroups groups of tips with identical sequences
      * @param haplotypesSeen  list of taxon names that will be tips in the qsTree
      *                        with unique sequences already seen
      * @return
      */
     private ArrayList processNextNodeOfFullNewickTree(
             Node node, List<QuasiSpeciesNode> qsTips, List<QuasiSpeciesNode> qsInternalNodes,
-            double[][] distanceMatrix, ArrayList haplotypesSeen, boolean collapseIdentical) {
+            HaplotypeGroups haplotypeGroups, ArrayList haplotypesSeen, boolean collapseIdentical) {
 
         QuasiSpeciesNode returnNode = null;
         ArrayList haplotypesAtThisNode = new ArrayList();
@@ -1504,7 +1585,7 @@ public class QuasiSpeciesTree extends Tree {
             // check if the sequence has been seen already
             if (collapseIdentical == true) {
                 for (int i = 0; i < haplotypesSeen.size(); i++) {
-                    if (distanceMatrix[node.getNr()][(int) haplotypesSeen.get(i)] == 0) {
+                    if (haplotypeGroups.isSameGroup(node.getNr(), (int) haplotypesSeen.get(i))) {
                         QuasiSpeciesNode seenNode = qsTips.get(i);
                         // check if the time of the tip is less than the uniqueHaploTree tip
                         // if not, rewrite the info on the uniqueHaploTree tip
@@ -1584,15 +1665,7 @@ public class QuasiSpeciesTree extends Tree {
                 returnNode.setNr(node.getNr());
                 // create a new attachmentTimesList and tipTimesList entry and check how long it
                 // needs to be
-                int newEntryLength = 0;
-                double[] distances = distanceMatrix[node.getNr()].clone();
-                Arrays.sort(distances);
-                for (int i = 0; i < distances.length; i++) {
-                    if (distances[i] == 0)
-                        newEntryLength += 1;
-                    else
-                        break;
-                }
+                int newEntryLength = haplotypeGroups.getGroupSize(node.getNr());
                 returnNode.setAttachmentTimesList(new double[newEntryLength]);
                 returnNode.setTipTimesList(new double[1]);
                 returnNode.getTipTimesList()[0] = node.getHeight();
@@ -1604,9 +1677,9 @@ public class QuasiSpeciesTree extends Tree {
             }
         } else {
             ArrayList leftOut = processNextNodeOfFullNewickTree(node.getLeft(), qsTips, qsInternalNodes,
-                    distanceMatrix, haplotypesSeen, collapseIdentical);
+                    haplotypeGroups, haplotypesSeen, collapseIdentical);
             ArrayList rightOut = processNextNodeOfFullNewickTree(node.getRight(), qsTips, qsInternalNodes,
-                    distanceMatrix, haplotypesSeen, collapseIdentical);
+                    haplotypeGroups, haplotypesSeen, collapseIdentical);
             QuasiSpeciesNode leftNode = (QuasiSpeciesNode) leftOut.get(0);
             QuasiSpeciesNode rightNode = (QuasiSpeciesNode) rightOut.get(0);
             ArrayList leftHaplo = (ArrayList) leftOut.get(1);
@@ -1890,22 +1963,129 @@ public class QuasiSpeciesTree extends Tree {
         qsStoredRoot.setHaploAboveName(((QuasiSpeciesNode) m_nodes[iRoot]).getHaploAboveName());
         qsStoredRoot.setContinuingHaploName(((QuasiSpeciesNode) m_nodes[iRoot]).getContinuingHaploName());
 
-        if (m_nodes[iRoot].isLeaf()) {
-            System.arraycopy(((QuasiSpeciesNode) m_nodes[iRoot]).getAttachmentTimesList(), 0,
-                    qsStoredRoot.getAttachmentTimesList(), 0,
-                    ((QuasiSpeciesNode) m_nodes[iRoot]).getAttachmentTimesList().length);
-            System.arraycopy(((QuasiSpeciesNode) m_nodes[iRoot]).getTipTimesList(), 0,
-                    qsStoredRoot.getTipTimesList(), 0,
-                    ((QuasiSpeciesNode) m_nodes[iRoot]).getTipTimesList().length);
-            System.arraycopy(((QuasiSpeciesNode) m_nodes[iRoot]).getTipTimesCountList(), 0,
-                    qsStoredRoot.getTipTimesCountList(), 0,
-                    ((QuasiSpeciesNode) m_nodes[iRoot]).getTipTimesCountList().length);
+        if (m_nodes[iRoot].isLeaf())
             qsStoredRoot.setParentHaplo(((QuasiSpeciesNode) m_nodes[iRoot]).getParentHaplo());
-        }
         // else
         // qsStoredRoot.setStartBranchCounts(((QuasiSpeciesNode)m_nodes[iRoot]).getStartBranchCounts());
 
         storeNodes(iRoot + 1, nodeCount);
+
+        storeEditedTips();
+    }
+
+    /**
+     * helper to store: copy the attachment and tip times of the tips edited since the last store,
+     * the times of all other tips are equal in m_nodes and m_storedNodes
+     */
+    private void storeEditedTips() {
+        if (allTipsEdited) {
+            for (int i = 0; i < nodeCount; i++) {
+                if (m_nodes[i].isLeaf()) {
+                    storeAttachmentTimes(i, 0, ((QuasiSpeciesNode) m_nodes[i]).getAttachmentTimesList().length - 1);
+                    storeTipTimes(i);
+                }
+            }
+            allTipsEdited = false;
+        } else {
+            for (int k = 0; k < editedTipCount; k++) {
+                int i = editedTips[k];
+                // nodes outside this tree (e.g. copies made for the full tree) may share the node numbers
+                if (!m_nodes[i].isLeaf())
+                    continue;
+                if (editedFrom[i] != -1)
+                    storeAttachmentTimes(i, editedFrom[i],
+                            Math.min(editedTo[i], ((QuasiSpeciesNode) m_nodes[i]).getAttachmentTimesList().length - 1));
+                if (editedTipTimes[i])
+                    storeTipTimes(i);
+            }
+        }
+        resetStoreJournal();
+    }
+
+    private void storeAttachmentTimes(int i, int from, int to) {
+        QuasiSpeciesNode sink = (QuasiSpeciesNode) m_storedNodes[i];
+        QuasiSpeciesNode src = (QuasiSpeciesNode) m_nodes[i];
+        sink.attachmentTimesSum = src.attachmentTimesSum;
+        sink.attachmentTimesSumUpdates = src.attachmentTimesSumUpdates;
+        // a list of another length was set, so the whole list is copied
+        if (sink.attachmentTimesList == null || sink.attachmentTimesList.length != src.attachmentTimesList.length) {
+            sink.attachmentTimesList = src.attachmentTimesList.clone();
+            return;
+        }
+        System.arraycopy(src.attachmentTimesList, from, sink.attachmentTimesList, from, to - from + 1);
+    }
+
+    private void storeTipTimes(int i) {
+        QuasiSpeciesNode sink = (QuasiSpeciesNode) m_storedNodes[i];
+        QuasiSpeciesNode src = (QuasiSpeciesNode) m_nodes[i];
+        sink.tipTimesSum = src.tipTimesSum;
+        if (sink.tipTimesList == null || sink.tipTimesList.length != src.tipTimesList.length) {
+            sink.tipTimesList = src.tipTimesList.clone();
+            sink.tipTimesCountList = src.tipTimesCountList.clone();
+            return;
+        }
+        System.arraycopy(src.tipTimesList, 0, sink.tipTimesList, 0, src.tipTimesList.length);
+        System.arraycopy(src.tipTimesCountList, 0, sink.tipTimesCountList, 0, src.tipTimesCountList.length);
+    }
+
+    private void resetStoreJournal() {
+        if (editedTips == null || editedTips.length != nodeCount) {
+            editedTips = new int[nodeCount];
+            editedFrom = new int[nodeCount];
+            editedTo = new int[nodeCount];
+            editedTipTimes = new boolean[nodeCount];
+            Arrays.fill(editedFrom, -1);
+            Arrays.fill(editedTo, -1);
+            editedTipCount = 0;
+            allTipsEdited = true;
+            return;
+        }
+        for (int k = 0; k < editedTipCount; k++) {
+            int i = editedTips[k];
+            editedFrom[i] = -1;
+            editedTo[i] = -1;
+            editedTipTimes[i] = false;
+        }
+        editedTipCount = 0;
+    }
+
+    /**
+     * Record that attachment times of a tip were edited, so that the next store copies them
+     *
+     * @param nr   number of the tip node
+     * @param from lowest edited index
+     * @param to   highest edited index
+     */
+    void journalAttachmentTimes(int nr, int from, int to) {
+        if (allTipsEdited)
+            return;
+        if (nr >= editedFrom.length) {
+            allTipsEdited = true;
+            return;
+        }
+        if (editedFrom[nr] == -1 && !editedTipTimes[nr])
+            editedTips[editedTipCount++] = nr;
+        if (editedFrom[nr] == -1 || from < editedFrom[nr])
+            editedFrom[nr] = from;
+        if (to > editedTo[nr])
+            editedTo[nr] = to;
+    }
+
+    /**
+     * Record that the tip times or counts of a tip were edited, so that the next store copies them
+     *
+     * @param nr number of the tip node
+     */
+    void journalTipTimes(int nr) {
+        if (allTipsEdited)
+            return;
+        if (nr >= editedTipTimes.length) {
+            allTipsEdited = true;
+            return;
+        }
+        if (editedFrom[nr] == -1 && !editedTipTimes[nr])
+            editedTips[editedTipCount++] = nr;
+        editedTipTimes[nr] = true;
     }
 
     /**
@@ -1922,12 +2102,8 @@ public class QuasiSpeciesTree extends Tree {
             sink.setHaploAboveName(src.getHaploAboveName());
             sink.setContinuingHaploName(src.getContinuingHaploName());
 
+            // attachment and tip times are copied for the edited tips only, in storeEditedTips
             if (src.isLeaf()) {
-                System.arraycopy(src.getAttachmentTimesList(), 0, sink.getAttachmentTimesList(), 0,
-                        src.getAttachmentTimesList().length);
-                System.arraycopy(src.getTipTimesList(), 0, sink.getTipTimesList(), 0, src.getTipTimesList().length);
-                System.arraycopy(src.getTipTimesCountList(), 0, sink.getTipTimesCountList(), 0,
-                        src.getTipTimesCountList().length);
                 sink.setParentHaplo(src.getParentHaplo());
             } // else
               // sink.setStartBranchCounts(src.getStartBranchCounts());
@@ -3,12 +3,18 @@ package piqmee.util;
 import beast.base.core.Description;
 import beast.base.core.Function;
 import beast.base.core.Input;
+import beast.base.core.Log;
 import beast.base.core.Loggable;
 import beast.base.evolution.tree.Node;
 import beast.base.inference.CalculationNode;
+import beast.base.inference.Logger;
 import piqmee.tree.QuasiSpeciesTree;
 import piqmee.tree.QuasiSpeciesNode;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.PrintStream;
 
 /**
@@ -27,8 +33,20 @@ public class AttachmentTimes extends CalculationNode implements Function, Loggab
                     " in the tree the attachement times shoudl be logged.",
             Input.Validate.REQUIRED);
 
+    public Input<String> binaryFileInput = new Input<>(
+            "binaryFile",
+            "If given, the attachment times are written to this binary trace instead of the log, " +
+                    "see AttachmentTimesBinaryReader for converting it to text.");
+
+    public Input<Boolean> compressInput = new Input<>(
+            "compress",
+            "Whether to gzip the binary trace.",
+            false);
+
     private QuasiSpeciesTree qsTree;
 
+    private AttachmentTimesBinaryWriter binaryWriter;
+
     private String haplotype;
 
     private int haploNodeNr = -1;
@@ -78,6 +96,9 @@ public class AttachmentTimes extends CalculationNode implements Function, Loggab
         String idString = qsTree.getID();
         haploNode = (QuasiSpeciesNode) qsTree.getNode(haploNodeNr);
         int maxtime = haploNode.getAttachmentTimesList().length;
+        // the binary trace is opened by the first log, since init is skipped when a run is resumed
+        if (binaryFileInput.get() != null)
+            return;
         for (int time = 0; time < maxtime; time++) {
             String haploname = haploNode.getID();
             out.print(idString + "_" + haploname + "_" + time + "\t");
@@ -85,7 +106,22 @@ public class AttachmentTimes extends CalculationNode implements Function, Loggab
     }
 
     public void log(long nSample, PrintStream out) {
+        haploNode = (QuasiSpeciesNode) qsTree.getNode(haploNodeNr);
         double[] attachmentTimes = haploNode.getAttachmentTimesList();
+        if (binaryFileInput.get() != null) {
+            if (binaryWriter == null) {
+                String[] labels = new String[attachmentTimes.length];
+                for (int time = 0; time < attachmentTimes.length; time++)
+                    labels[time] = qsTree.getID() + "_" + haploNode.getID() + "_" + time;
+                binaryWriter = openBinaryWriter(binaryFileInput.get(), labels, compressInput.get());
+            }
+            try {
+                binaryWriter.write(nSample, attachmentTimes, attachmentTimes.length);
+            } catch (IOException e) {
+                throw new RuntimeException("Could not write attachment times to " + binaryFileInput.get() + ".", e);
+            }
+            return;
+        }
         for (int time = 0; time < attachmentTimes.length; time++) {
             out.print(attachmentTimes[time] + "\t");
         }
@@ -93,5 +129,70 @@ public class AttachmentTimes extends CalculationNode implements Function, Loggab
 
     @Override
     public void close(PrintStream out) {
+        closeBinaryWriter(binaryWriter, binaryFileInput.get());
+        binaryWriter = null;
+    }
+
+    /**
+     * Open a binary trace, appending to it if the run is resumed. An existing trace is
+     * only overwritten as the file mode of the loggers allows.
+     */
+    static AttachmentTimesBinaryWriter openBinaryWriter(String fileName, String[] labels, boolean compress) {
+        if (System.getProperty("file.name.prefix") != null)
+            fileName = System.getProperty("file.name.prefix") + "/" + fileName;
+        try {
+            checkFileMode(fileName);
+            return new AttachmentTimesBinaryWriter(fileName, labels, compress,
+                    Logger.FILE_MODE == Logger.LogFileMode.resume);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not open binary trace " + fileName + ".", e);
+        }
+    }
+
+    /**
+     * Check that an existing file may be overwritten, as Logger does for the text logs:
+     * with only_new the user is asked, with only_new_or_exit the run stops.
+     */
+    static void checkFileMode(String fileName) throws IOException {
+        if (!new File(fileName).exists())
+            return;
+        switch (Logger.FILE_MODE) {
+            case only_new_or_exit:
+                Log.err.println("Trying to write file " + fileName + " but the file already exists. Exiting now.");
+                throw new RuntimeException("Use overwrite or resume option, or remove the file");
+            case only_new:
+                Log.info.println("Trying to write file " + fileName + " but the file already exists (perhaps use the -overwrite flag?).");
+                if (System.getProperty("beast.useWindow") != null) {
+                    // we are using the BEAST console, so no input is possible
+                    throw new IllegalArgumentException("The file " + fileName + " already exists.");
+                }
+                Log.info.println("Overwrite (Y=yes/N=no/A=overwrite all)?:");
+                Log.info.flush();
+                final BufferedReader stdin = new BufferedReader(new InputStreamReader(System.in));
+                final String msg = stdin.readLine();
+                if (msg != null && msg.toLowerCase().equals("a")) {
+                    Logger.FILE_MODE = Logger.LogFileMode.overwrite;
+                } else if (msg == null || !msg.toLowerCase().equals("y")) {
+                    Log.info.println("Exiting now.");
+                    System.exit(0);
+                }
+                break;
+            case overwrite:
+                Log.warning.println("Warning: Overwriting file " + fileName);
+                break;
+            default:
+                // resume appends to the file
+                break;
+        }
+    }
+
+    static void closeBinaryWriter(AttachmentTimesBinaryWriter binaryWriter, String fileName) {
+        if (binaryWriter == null)
+            return;
+        try {
+            binaryWriter.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not close binary trace " + fileName + ".", e);
+        }
     }
 }
\ No newline at end of file
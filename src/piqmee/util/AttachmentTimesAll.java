@@ -9,6 +9,7 @@ import beast.base.inference.CalculationNode;
 import piqmee.tree.QuasiSpeciesTree;
 import piqmee.tree.QuasiSpeciesNode;
 
+import java.io.IOException;
 import java.io.PrintStream;
 
 /**
@@ -22,8 +23,22 @@ public class AttachmentTimesAll extends CalculationNode implements Function, Log
             "Quasi-species tree whose attachment times should be logged.",
             Input.Validate.REQUIRED);
 
+    public Input<String> binaryFileInput = new Input<>(
+            "binaryFile",
+            "If given, the attachment times are written to this binary trace instead of the log, " +
+                    "see AttachmentTimesBinaryReader for converting it to text.");
+
+    public Input<Boolean> compressInput = new Input<>(
+            "compress",
+            "Whether to gzip the binary trace.",
+            false);
+
     private QuasiSpeciesTree qsTree;
 
+    private AttachmentTimesBinaryWriter binaryWriter;
+
+    private double[] binaryValues;
+
     public AttachmentTimesAll() {
     };
 
@@ -63,6 +78,9 @@ public class AttachmentTimesAll extends CalculationNode implements Function, Log
     public void init(PrintStream out) {
 
         String idString = qsTree.getID();
+        // the binary trace is opened by the first log, since init is skipped when a run is resumed
+        if (binaryFileInput.get() != null)
+            return;
         // print all haplo names
         for (Node node : qsTree.getExternalNodes()) {
             int maxtime = ((QuasiSpeciesNode) node).getAttachmentTimesList().length;
@@ -75,6 +93,31 @@ public class AttachmentTimesAll extends CalculationNode implements Function, Log
 
     @Override
     public void log(long nSample, PrintStream out) {
+        if (binaryFileInput.get() != null) {
+            if (binaryWriter == null) {
+                String[] labels = new String[getDimension()];
+                int i = 0;
+                for (Node node : qsTree.getExternalNodes()) {
+                    int maxtime = ((QuasiSpeciesNode) node).getAttachmentTimesList().length;
+                    for (int time = 0; time < maxtime; time++)
+                        labels[i++] = qsTree.getID() + "_" + node.getID() + "_" + time;
+                }
+                binaryValues = new double[labels.length];
+                binaryWriter = AttachmentTimes.openBinaryWriter(binaryFileInput.get(), labels, compressInput.get());
+            }
+            int i = 0;
+            for (Node node : qsTree.getExternalNodes()) {
+                double[] attachmentTimes = ((QuasiSpeciesNode) node).getAttachmentTimesList();
+                System.arraycopy(attachmentTimes, 0, binaryValues, i, attachmentTimes.length);
+                i += attachmentTimes.length;
+            }
+            try {
+                binaryWriter.write(nSample, binaryValues, i);
+            } catch (IOException e) {
+                throw new RuntimeException("Could not write attachment times to " + binaryFileInput.get() + ".", e);
+            }
+            return;
+        }
         // print all haplo names
         for (Node node : qsTree.getExternalNodes()) {
             double[] attachmentTimes = ((QuasiSpeciesNode) node).getAttachmentTimesList();
@@ -86,5 +129,7 @@ public class AttachmentTimesAll extends CalculationNode implements Function, Log
 
     @Override
     public void close(PrintStream out) {
+        AttachmentTimes.closeBinaryWriter(binaryWriter, binaryFileInput.get());
+        binaryWriter = null;
     }
 }
\ No newline at end of file
@@ -0,0 +1,170 @@
+package piqmee.util;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reader of the binary attachment time traces of AttachmentTimesBinaryWriter,
+ * compressed or not, and converter to the tab-separated text of the text loggers.
+ *
+ * Usage of the converter: AttachmentTimesBinaryReader binaryTrace [textTrace]
+ * writes the text trace to the given file, or to standard output.
+ */
+public class AttachmentTimesBinaryReader {
+
+    final private DataInputStream in;
+    final private String[] labels;
+
+    private byte[] record = new byte[0];
+    private long sample;
+    private int valueCount;
+    private double[] values = new double[0];
+    private long[] bits = new long[0];
+
+    /**
+     * @param fileName binary trace to read
+     * @throws IOException if the file cannot be read or is not a binary attachment time trace
+     */
+    public AttachmentTimesBinaryReader(String fileName) throws IOException {
+        InputStream stream = new BufferedInputStream(new FileInputStream(fileName), 1 << 16);
+        // gzip streams start with the bytes 0x1f 0x8b
+        stream.mark(2);
+        int first = stream.read();
+        int second = stream.read();
+        stream.reset();
+        if (first == 0x1f && second == 0x8b)
+            stream = new BufferedInputStream(new GZIPInputStream(stream, 1 << 16), 1 << 16);
+        in = new DataInputStream(stream);
+
+        if (in.readInt() != AttachmentTimesBinaryWriter.MAGIC) {
+            in.close();
+            throw new IOException(fileName + " is not a binary attachment time trace.");
+        }
+        int version = in.readInt();
+        if (version != AttachmentTimesBinaryWriter.VERSION) {
+            in.close();
+            throw new IOException("Unsupported version " + version + " of the binary attachment time trace " + fileName + ".");
+        }
+        labels = new String[in.readInt()];
+        for (int i = 0; i < labels.length; i++) {
+            byte[] label = new byte[in.readInt()];
+            in.readFully(label);
+            labels[i] = new String(label, StandardCharsets.UTF_8);
+        }
+    }
+
+    public String[] getLabels() {
+        return labels;
+    }
+
+    /**
+     * Read the next record.
+     *
+     * @return false at the end of the trace
+     * @throws IOException if the record cannot be read
+     */
+    public boolean next() throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return false;
+        }
+        if (record.length < length)
+            record = new byte[length];
+        in.readFully(record, 0, length);
+
+        ByteBuffer buffer = ByteBuffer.wrap(record, 0, length);
+        sample = buffer.getLong();
+        valueCount = buffer.getInt();
+        if (values.length < valueCount) {
+            values = Arrays.copyOf(values, valueCount);
+            bits = Arrays.copyOf(bits, valueCount);
+        }
+        // records following a resume are relative to zero
+        if (buffer.get() != 0)
+            Arrays.fill(bits, 0);
+        for (int i = 0; i < valueCount; i++) {
+            bits[i] ^= getXor(buffer);
+            values[i] = Double.longBitsToDouble(bits[i]);
+        }
+        return true;
+    }
+
+    public long getSample() {
+        return sample;
+    }
+
+    public int getValueCount() {
+        return valueCount;
+    }
+
+    /**
+     * @return values of the current record, the first getValueCount() entries being valid
+     */
+    public double[] getValues() {
+        return values;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Write the remaining records in the text format of the attachment time loggers,
+     * with a sample column in front as in a BEAST trace log.
+     *
+     * @param out stream to write to
+     * @throws IOException if a record cannot be read
+     */
+    public void toText(PrintStream out) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Sample\t");
+        for (String label : labels)
+            sb.append(label).append('\t');
+        out.println(sb);
+
+        while (next()) {
+            sb.setLength(0);
+            sb.append(sample).append('\t');
+            for (int i = 0; i < valueCount; i++)
+                sb.append(values[i]).append('\t');
+            out.println(sb);
+        }
+    }
+
+    private static long getXor(ByteBuffer buffer) {
+        int control = buffer.get();
+        if (control == 0)
+            return 0;
+        int leading = (control >>> 3) & 7;
+        int trailing = control & 7;
+        long xor = 0;
+        for (int i = leading; i < 8 - trailing; i++)
+            xor = (xor << 8) | (buffer.get() & 0xFFL);
+        return xor << (8 * trailing);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: AttachmentTimesBinaryReader binaryTrace [textTrace]");
+            System.exit(1);
+        }
+        AttachmentTimesBinaryReader reader = new AttachmentTimesBinaryReader(args[0]);
+        PrintStream out = args.length == 2 ? new PrintStream(args[1]) : System.out;
+        reader.toText(out);
+        out.flush();
+        if (out != System.out)
+            out.close();
+        reader.close();
+    }
+}
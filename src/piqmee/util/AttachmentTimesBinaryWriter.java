@@ -0,0 +1,152 @@
+package piqmee.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Binary trace of attachment times, written through a FileChannel and optionally gzip compressed.
+ *
+ * The file starts with a header of the magic number, the format version and the column labels,
+ * each label as an int byte count followed by its UTF-8 bytes. Every logged sample is a record of
+ *   int    number of bytes of the record that follow,
+ *   long   sample number,
+ *   int    number of values,
+ *   byte   1 if the values are XORed with zero, as in the first record written after opening the file,
+ *          0 if they are XORed with the values of the previous record,
+ *   values each as the XOR of the bits of the value and the bits of the value it is relative to:
+ *          a zero byte if the XOR is zero, otherwise a control byte 0x40 | (leading << 3) | trailing
+ *          followed by the 8 - leading - trailing bytes of the XOR between its leading and
+ *          trailing zero bytes, most significant first.
+ * Most attachment times do not change between two logged samples, so they take a single byte,
+ * and a changed value takes at most nine. The encoding is lossless, see AttachmentTimesBinaryReader
+ * for reading and converting to text.
+ */
+public class AttachmentTimesBinaryWriter {
+
+    public static final int MAGIC = 0x50514154;
+    public static final int VERSION = 1;
+
+    // bytes of the record length, sample number, value count and flag
+    static final int RECORD_HEADER_BYTES = 4 + 8 + 4 + 1;
+    // longest encoding of a value: control byte and all 8 bytes
+    static final int MAX_VALUE_BYTES = 9;
+
+    final private WritableByteChannel channel;
+    private ByteBuffer buffer;
+    // bits of the values of the previous record
+    private long[] previousBits = new long[0];
+    private boolean firstRecord = true;
+
+    /**
+     * @param fileName name of the file to write, overwritten if it exists
+     * @param labels   column labels
+     * @param compress whether to gzip the file
+     * @throws IOException if the file cannot be opened or the header cannot be written
+     */
+    public AttachmentTimesBinaryWriter(String fileName, String[] labels, boolean compress) throws IOException {
+        this(fileName, labels, compress, false);
+    }
+
+    /**
+     * @param fileName name of the file to write
+     * @param labels   column labels
+     * @param compress whether to gzip the file, appended data is compressed as a further gzip member
+     * @param append   whether to append the records to an existing trace, as when a run is resumed,
+     *                 instead of overwriting it; the header is only written to a new or empty file
+     * @throws IOException if the file cannot be opened or the header cannot be written
+     */
+    public AttachmentTimesBinaryWriter(String fileName, String[] labels, boolean compress, boolean append) throws IOException {
+        Path path = Paths.get(fileName);
+        boolean writeHeader = !append || !Files.exists(path) || Files.size(path) == 0;
+        FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                writeHeader ? StandardOpenOption.TRUNCATE_EXISTING : StandardOpenOption.APPEND);
+        if (compress)
+            channel = Channels.newChannel(new GZIPOutputStream(Channels.newOutputStream(fileChannel), 1 << 16));
+        else
+            channel = fileChannel;
+
+        byte[][] labelBytes = new byte[labels.length][];
+        int headerSize = 3 * 4;
+        for (int i = 0; i < labels.length; i++) {
+            labelBytes[i] = labels[i].getBytes(StandardCharsets.UTF_8);
+            headerSize += 4 + labelBytes[i].length;
+        }
+        buffer = ByteBuffer.allocate(Math.max(headerSize, RECORD_HEADER_BYTES + MAX_VALUE_BYTES * labels.length));
+        if (writeHeader) {
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putInt(labels.length);
+            for (byte[] label : labelBytes) {
+                buffer.putInt(label.length);
+                buffer.put(label);
+            }
+            flush();
+        }
+    }
+
+    /**
+     * Write one record.
+     *
+     * @param sample sample number
+     * @param values values to write
+     * @param length number of values to write from the start of the array
+     * @throws IOException if the record cannot be written
+     */
+    public void write(long sample, double[] values, int length) throws IOException {
+        int maxSize = RECORD_HEADER_BYTES + MAX_VALUE_BYTES * length;
+        if (buffer.capacity() < maxSize)
+            buffer = ByteBuffer.allocate(maxSize);
+        if (previousBits.length < length)
+            previousBits = Arrays.copyOf(previousBits, length);
+
+        // the record length is filled in once the values are encoded
+        buffer.putInt(0);
+        buffer.putLong(sample);
+        buffer.putInt(length);
+        // the records of an earlier run appended to are not known, so the first one is relative to zero
+        buffer.put((byte) (firstRecord ? 1 : 0));
+        if (firstRecord)
+            Arrays.fill(previousBits, 0);
+        firstRecord = false;
+        for (int i = 0; i < length; i++) {
+            long bits = Double.doubleToRawLongBits(values[i]);
+            putXor(bits ^ previousBits[i]);
+            previousBits[i] = bits;
+        }
+        buffer.putInt(0, buffer.position() - 4);
+        flush();
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void putXor(long xor) {
+        if (xor == 0) {
+            buffer.put((byte) 0);
+            return;
+        }
+        int leading = Long.numberOfLeadingZeros(xor) >>> 3;
+        int trailing = Long.numberOfTrailingZeros(xor) >>> 3;
+        buffer.put((byte) (0x40 | (leading << 3) | trailing));
+        for (int shift = 56 - 8 * leading; shift >= 8 * trailing; shift -= 8)
+            buffer.put((byte) (xor >>> shift));
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+}
@@ -0,0 +1,69 @@
+package piqmee.util;
+
+/**
+ * Appends doubles to a StringBuilder without creating intermediate strings.
+ * With a fixed number of decimal places the value is rounded and written with
+ * long arithmetic, which is several times faster than the shortest-representation
+ * conversion of Double.toString. With a negative number of decimal places, and for
+ * values too large to be rounded exactly, the value is written in full precision
+ * as by StringBuilder.append(double).
+ */
+public class DoubleFormatter {
+
+    // largest magnitude whose scaled value is still an exact integer in a double
+    private static final double MAX_EXACT = 9007199254740992.0;
+
+    private static final int MAX_DECIMAL_PLACES = 15;
+
+    final private int decimalPlaces;
+    final private long scale;
+
+    /**
+     * @param decimalPlaces number of decimal places to write, -1 for full precision
+     */
+    public DoubleFormatter(int decimalPlaces) {
+        if (decimalPlaces > MAX_DECIMAL_PLACES)
+            throw new IllegalArgumentException("At most " + MAX_DECIMAL_PLACES
+                    + " decimal places can be written, use -1 for full precision.");
+        this.decimalPlaces = decimalPlaces;
+        long s = 1;
+        for (int i = 0; i < decimalPlaces; i++)
+            s *= 10;
+        scale = s;
+    }
+
+    public int getDecimalPlaces() {
+        return decimalPlaces;
+    }
+
+    /**
+     * Append the value to the builder.
+     *
+     * @param sb    builder to append to
+     * @param value value to write
+     * @return the builder
+     */
+    public StringBuilder append(StringBuilder sb, double value) {
+        if (decimalPlaces < 0)
+            return sb.append(value);
+
+        double scaled = Math.abs(value) * scale;
+        // also catches NaN and infinities
+        if (!(scaled < MAX_EXACT))
+            return sb.append(value);
+
+        long rounded = Math.round(scaled);
+        if (value < 0 && rounded != 0)
+            sb.append('-');
+        sb.append(rounded / scale);
+        if (decimalPlaces > 0) {
+            long fraction = rounded % scale;
+            sb.append('.');
+            // leading zeros of the fraction
+            for (long p = scale / 10; p > fraction && p > 1; p /= 10)
+                sb.append('0');
+            sb.append(fraction);
+        }
+        return sb;
+    }
+}
@@ -4,6 +4,7 @@ import beast.base.core.Description;
 import beast.base.core.Input;
 import beast.base.core.Loggable;
 import beast.base.evolution.tree.Node;
+import piqmee.tree.FullTreeNewickWriter;
 import piqmee.tree.QuasiSpeciesNode;
 import piqmee.tree.QuasiSpeciesTree;
 
@@ -21,21 +22,83 @@ public class QuasiSpeciesNodeTreeLogger extends BEASTObject implements Loggable
                 "Quasi-species tree to log.",
                 Input.Validate.REQUIRED);
 
+        public Input<Boolean> fullTreeInput = new Input<>(
+                "fullTree",
+                "Log the fully expanded tree with one tip per sequence instead of " +
+                        "the haplotype tree annotated with the duplicate branching times.",
+                false);
+
+        public Input<Boolean> fastOutputInput = new Input<>(
+                "fastOutput",
+                "Write the tree and the duplicate branching times into reused buffers " +
+                        "instead of building strings for every node at every sample.",
+                false);
+
+        public Input<Integer> decimalPlacesInput = new Input<>(
+                "dp",
+                "Number of decimal places of branch lengths and duplicate branching times " +
+                        "with fastOutput, -1 for full precision (default).",
+                -1);
+
         QuasiSpeciesTree qsTree;
+        FullTreeNewickWriter fullTreeWriter;
+        boolean fastOutput;
+        DoubleFormatter formatter;
+
+        // reused across samples by the full tree and fast output modes
+        StringBuilder builder;
+        byte[] bytes = new byte[0];
+        // smallest leaf number in the clade below each node, ordering the children as toSortedNewick does
+        int[] minLeafNr = new int[0];
 
         @Override
         public void initAndValidate() {
             qsTree = qsTreeInput.get();
+            if (fullTreeInput.get())
+                fullTreeWriter = new FullTreeNewickWriter();
+            fastOutput = fastOutputInput.get();
+            formatter = new DoubleFormatter(decimalPlacesInput.get());
+            if (fullTreeWriter != null || fastOutput)
+                builder = new StringBuilder();
         }
 
         @Override
         public void init(PrintStream out) {
-            qsTree.init(out);
+            if (fullTreeWriter == null) {
+                qsTree.init(out);
+                return;
+            }
+            // duplicate tips are not in the taxa block of the haplotype tree,
+            // so the expanded trees are logged with taxon labels and no translate table
+            out.println("#NEXUS\n");
+            out.print("Begin trees;");
         }
 
         @Override
         public void log(long nSample, PrintStream out) {
 
+            if (fullTreeWriter != null) {
+                builder.setLength(0);
+                builder.append("tree STATE_").append(nSample).append(" = ");
+                fullTreeWriter.write(qsTree, builder);
+                builder.append(';');
+                print(builder, out);
+                return;
+            }
+
+            if (fastOutput) {
+                builder.setLength(0);
+                builder.append("tree STATE_").append(nSample).append(" = ");
+                Node root = qsTree.getRoot();
+                if (minLeafNr.length != qsTree.getNodeCount())
+                    minLeafNr = new int[qsTree.getNodeCount()];
+                computeMinLeafNr(root);
+                appendSortedNewick(root, builder);
+                builder.append(';');
+                print(builder, out);
+                return;
+            }
+
             // Set up metadata string
             for (Node node : qsTree.getExternalNodes()) {
                 QuasiSpeciesNode qsNode = (QuasiSpeciesNode) node;
@@ -50,6 +113,75 @@ public class QuasiSpeciesNodeTreeLogger extends BEASTObject implements Loggable
             out.print(";");
         }
 
+        private int computeMinLeafNr(Node node) {
+            int min = node.getNr();
+            if (!node.isLeaf()) {
+                min = Integer.MAX_VALUE;
+                for (int i = 0; i < node.getChildCount(); i++)
+                    min = Math.min(min, computeMinLeafNr(node.getChild(i)));
+            }
+            minLeafNr[node.getNr()] = min;
+            return min;
+        }
+
+        /**
+         * Same output as toSortedNewick(new int[1], true) with the duplicate branching
+         * times as metadata of the tips, appended to the builder without intermediate strings.
+         */
+        private void appendSortedNewick(Node node, StringBuilder sb) {
+            if (node.isLeaf()) {
+                sb.append(node.getNr() + 1);
+                sb.append("[&DuplicateBranchingTimes={[");
+                double[] attachmentTimes = ((QuasiSpeciesNode) node).getAttachmentTimesList();
+                for (int i = 0; i < attachmentTimes.length; i++) {
+                    if (i > 0)
+                        sb.append(", ");
+                    formatter.append(sb, attachmentTimes[i]);
+                }
+                sb.append("]}]");
+            } else {
+                sb.append('(');
+                if (node.getChildCount() > 1) {
+                    Node first = node.getChild(0);
+                    Node second = node.getChild(1);
+                    if (minLeafNr[first.getNr()] > minLeafNr[second.getNr()]) {
+                        first = node.getChild(1);
+                        second = node.getChild(0);
+                    }
+                    appendSortedNewick(first, sb);
+                    sb.append(',');
+                    appendSortedNewick(second, sb);
+                } else {
+                    appendSortedNewick(node.getChild(0), sb);
+                }
+                sb.append(')');
+                if (node.getID() != null)
+                    sb.append(node.getNr() + 1);
+                sb.append(node.getNewickMetaData());
+            }
+            sb.append(':');
+            formatter.append(sb, node.getLength());
+        }
+
+        /**
+         * Write the builder to the stream through a reused byte buffer, Newick output being ASCII
+         * unless taxon labels are not.
+         */
+        private void print(StringBuilder sb, PrintStream out) {
+            int length = sb.length();
+            if (bytes.length < length)
+                bytes = new byte[Math.max(length, 2 * bytes.length)];
+            for (int i = 0; i < length; i++) {
+                char c = sb.charAt(i);
+                if (c >= 0x80) {
+                    out.print(sb.toString());
+                    return;
+                }
+                bytes[i] = (byte) c;
+            }
+            out.write(bytes, 0, length);
+        }
+
         @Override
         public void close(PrintStream out) {
             qsTree.close(out);
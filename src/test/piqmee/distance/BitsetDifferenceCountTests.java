@@ -0,0 +1,39 @@
+package test.piqmee.distance;
+
+import static org.junit.Assert.assertEquals;
+import beast.base.core.Description;
+import beast.base.evolution.alignment.Alignment;
+import org.junit.Test;
+import piqmee.distance.BitsetDifferenceCount;
+import piqmee.distance.DifferenceCount;
+import test.piqmee.QuasiSpeciesTestCase;
+
+@Description("Test the popcount distances of BitsetDifferenceCount against the pattern by pattern DifferenceCount")
+public class BitsetDifferenceCountTests {
+
+    @Test
+    public void testParityWithDifferenceCount() throws Exception {
+        // repeated patterns get weights above one, so that several weight digits are used
+        String[] sequences = StateBitsetsTests.randomSequences(30, 400, 23);
+        Alignment data = QuasiSpeciesTestCase.getAlignment(sequences);
+
+        DifferenceCount distance = new DifferenceCount();
+        distance.setPatterns(data);
+        BitsetDifferenceCount bitsetDistance = new BitsetDifferenceCount();
+        bitsetDistance.setPatterns(data);
+
+        double[] condensed = bitsetDistance.pairwiseDistances();
+        assertEquals(sequences.length * (sequences.length - 1) / 2, condensed.length);
+
+        for (int i = 0; i < sequences.length; i++) {
+            for (int j = i + 1; j < sequences.length; j++) {
+                double expected = distance.pairwiseDistance(i, j);
+                assertEquals(expected, bitsetDistance.pairwiseDistance(i, j), 0);
+                assertEquals(expected, bitsetDistance.pairwiseDistance(j, i), 0);
+                assertEquals(expected, condensed[BitsetDifferenceCount.condensedIndex(i, j, sequences.length)], 0);
+                assertEquals(distance.pairwiseDifference(i, j, true), bitsetDistance.pairwiseDifference(i, j, true), 0);
+                assertEquals(distance.pairwiseDifference(i, j, false), bitsetDistance.pairwiseDifference(i, j, false), 0);
+            }
+        }
+    }
+}
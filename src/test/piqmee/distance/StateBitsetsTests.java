@@ -0,0 +1,67 @@
+package test.piqmee.distance;
+
+import static org.junit.Assert.assertEquals;
+import beast.base.core.Description;
+import beast.base.evolution.alignment.Alignment;
+import org.junit.Test;
+import piqmee.distance.DifferenceCount;
+import piqmee.distance.StateBitsets;
+import test.piqmee.QuasiSpeciesTestCase;
+
+import java.util.List;
+import java.util.Random;
+
+@Description("Test the bitset encoding of sequences against the pattern by pattern DifferenceCount")
+public class StateBitsetsTests {
+
+    private static final String CODES = "ACGTACGTACGTRYN-";
+
+    // random sequences with ambiguities, each a mutated or masked copy of a common ancestor so that some are identical
+    static String[] randomSequences(int count, int length, long seed) {
+        Random random = new Random(seed);
+        StringBuilder ancestor = new StringBuilder();
+        for (int k = 0; k < length; k++)
+            ancestor.append("ACGT".charAt(random.nextInt(4)));
+        String[] sequences = new String[count];
+        for (int i = 0; i < count; i++) {
+            StringBuilder sb = new StringBuilder(ancestor);
+            int changes = random.nextInt(3);
+            for (int c = 0; c < changes; c++)
+                sb.setCharAt(random.nextInt(length), CODES.charAt(random.nextInt(CODES.length())));
+            sequences[i] = sb.toString();
+        }
+        return sequences;
+    }
+
+    @Test
+    public void testIdenticalUpToMissingData() throws Exception {
+        // more than 64 patterns, so that the bitsets span several words
+        String[] sequences = randomSequences(40, 150, 17);
+        Alignment data = QuasiSpeciesTestCase.getAlignment(sequences);
+
+        DifferenceCount distance = new DifferenceCount();
+        distance.setPatterns(data);
+
+        int[] taxa = new int[sequences.length];
+        for (int i = 0; i < taxa.length; i++)
+            taxa[i] = i;
+        StateBitsets bitsets = new StateBitsets(data, taxa);
+
+        boolean[] candidates = new boolean[sequences.length];
+        int expectedPairs = 0;
+        for (int i = 0; i < sequences.length; i++) {
+            candidates[i] = true;
+            for (int j = i + 1; j < sequences.length; j++) {
+                boolean identical = distance.pairwiseDifference(i, j, true) == 0;
+                assertEquals(identical, bitsets.isIdenticalUpToMissingData(i, j));
+                if (identical)
+                    expectedPairs++;
+            }
+        }
+
+        List<int[]> pairs = bitsets.findIdenticalPairs(candidates);
+        assertEquals(expectedPairs, pairs.size());
+        for (int[] pair : pairs)
+            assertEquals(0, distance.pairwiseDifference(pair[0], pair[1], true), 0);
+    }
+}
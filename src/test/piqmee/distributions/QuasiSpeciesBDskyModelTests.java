@@ -1,14 +1,18 @@
 package test.piqmee.distributions;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import beast.base.core.Description;
+import beast.base.inference.State;
 import beast.base.inference.parameter.RealParameter;
+import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.evolution.tree.TreeParser;
 import org.junit.Test;
 
 import piqmee.distributions.BirthDeathSkylineModel;
 import piqmee.distributions.QuasiSpeciesBirthDeathSkylineModel;
+import piqmee.tree.QuasiSpeciesNode;
 import piqmee.tree.QuasiSpeciesTree;
 import test.piqmee.QuasiSpeciesTestCase;
 
@@ -372,4 +376,190 @@ public class QuasiSpeciesBDskyModelTests {
         assertEquals(qsbdsky,bdsky,1e-10);
 
     }
+
+    /**
+     *
+     * Number of full trees from qs tree - incremental update after internal node moves
+     *
+     */
+
+    @Test
+    public void testIncrementalCounterOfFullTrees() throws Exception {
+
+        // Assemble BEASTObjects needed by QuasiSpeciesTree
+        QuasiSpeciesTree tree = QuasiSpeciesTestCase.setTreeFromFullNewick("(((((((((((t0 : 1, t1 : 1) : 1, t2 : 2) : 0.5, t3 : 2.5) : 1, t4 : 3.5) : 1, t5 : 4.5) : 1, t6 : 5.5) : 1, t7 : 6.5) : 0.5, t8 : 7) : 1, t9 : 8) : 1, t10 : 9 ) : 1, t11 : 10 ) : 1;",
+                new String[] {"A", "A", "G", "A", "T", "A", "A", "A", "A", "A", "A", "A"});
+        tree.setEverythingDirty(true);
+
+        QuasiSpeciesBirthDeathSkylineModel bdsqs = this.getQSBDSKYmodel(tree, new RealParameter("11.0"),
+                false, new RealParameter("2.0"), new RealParameter("1.0"),
+                new RealParameter("0.5"));
+        bdsqs.logNumberOfQSTrees(tree);
+
+        // move one node at a time, then all of them at once
+        for (Node node : tree.getInternalNodes()) {
+            if (node.isRoot())
+                continue;
+            node.setHeight(node.getHeight() + 0.3 * (node.getParent().getHeight() - node.getHeight()));
+            assertIncrementalCounterOfFullTrees(bdsqs, tree);
+        }
+        for (Node node : tree.getInternalNodes()) {
+            if (!node.isRoot())
+                node.setHeight(node.getHeight() + 0.3 * (node.getParent().getHeight() - node.getHeight()));
+        }
+        assertIncrementalCounterOfFullTrees(bdsqs, tree);
+
+        // a rejected move brings back the stored sorted order
+        State state = new State();
+        state.initByName("stateNode", tree);
+        bdsqs.store();
+        state.store(0);
+        for (Node node : tree.getInternalNodes()) {
+            if (!node.isRoot())
+                node.setHeight(node.getHeight() + 0.3 * (node.getParent().getHeight() - node.getHeight()));
+        }
+        bdsqs.logNumberOfQSTrees(tree);
+        state.restore();
+        bdsqs.restore();
+        assertIncrementalCounterOfFullTrees(bdsqs, tree);
+    }
+
+    private void assertIncrementalCounterOfFullTrees(QuasiSpeciesBirthDeathSkylineModel bdsqs, QuasiSpeciesTree tree) {
+        double incremental = bdsqs.logNumberOfQSTrees(tree);
+
+        QuasiSpeciesBirthDeathSkylineModel fresh = this.getQSBDSKYmodel(tree, new RealParameter("11.0"),
+                false, new RealParameter("2.0"), new RealParameter("1.0"),
+                new RealParameter("0.5"));
+        assertEquals(fresh.logNumberOfQSTrees(tree), incremental, 1e-10);
+
+        tree.setEverythingDirty(false);
+    }
+
+    /**
+     *
+     * Tree prior calculation P(tree|tree parameters) testing - cached terms after internal node moves
+     *
+     */
+
+    @Test
+    public void testIncrementalLikelihoodCalculation() throws Exception {
+
+        // Assemble BEASTObjects needed by QuasiSpeciesTree
+        QuasiSpeciesTree tree = QuasiSpeciesTestCase.setTreeFromFullNewick("(((((((((((t0 : 1, t1 : 1) : 1, t2 : 2) : 0.5, t3 : 2.5) : 1, t4 : 3.5) : 1, t5 : 4.5) : 1, t6 : 5.5) : 1, t7 : 6.5) : 0.5, t8 : 7) : 1, t9 : 8) : 1, t10 : 9 ) : 1, t11 : 10 ) : 1;",
+                new String[] {"A", "A", "G", "A", "T", "A", "A", "A", "A", "A", "A", "A"});
+        tree.setEverythingDirty(true);
+
+        RealParameter birth = new RealParameter("2.0");
+        QuasiSpeciesBirthDeathSkylineModel bdsqs = this.getQSBDSKYmodel(tree, new RealParameter("11.0"),
+                false, birth, new RealParameter("1.0"),
+                new RealParameter("0.5"));
+        bdsqs.calculateTreeLogLikelihood(tree);
+
+        for (Node node : tree.getInternalNodes()) {
+            if (node.isRoot())
+                continue;
+            node.setHeight(node.getHeight() + 0.3 * (node.getParent().getHeight() - node.getHeight()));
+            double incremental = bdsqs.calculateTreeLogLikelihood(tree);
+
+            QuasiSpeciesBirthDeathSkylineModel fresh = this.getQSBDSKYmodel(tree, new RealParameter("11.0"),
+                    false, new RealParameter(birth.getValue().toString()), new RealParameter("1.0"),
+                    new RealParameter("0.5"));
+            assertEquals(fresh.calculateTreeLogLikelihood(tree), incremental, 1e-10);
+            tree.setEverythingDirty(false);
+        }
+
+        // a change of the rates invalidates all cached terms
+        birth.setValue(2.5);
+        double incremental = bdsqs.calculateTreeLogLikelihood(tree);
+        QuasiSpeciesBirthDeathSkylineModel fresh = this.getQSBDSKYmodel(tree, new RealParameter("11.0"),
+                false, new RealParameter("2.5"), new RealParameter("1.0"),
+                new RealParameter("0.5"));
+        assertEquals(fresh.calculateTreeLogLikelihood(tree), incremental, 1e-10);
+    }
+
+    /**
+     *
+     * Lineage-through-time profile at the interval boundaries - several rate changes and serially sampled tips
+     *
+     */
+
+    @Test
+    public void testLineageProfile() throws Exception {
+
+        // Assemble BEASTObjects needed by QuasiSpeciesTree
+        //  t0, t1 and t2 form one haplotype sampled at heights 0.5, 0 and 1, t4-t6 another sampled at 0.7, 0.3 and 0.5
+        QuasiSpeciesTree tree = QuasiSpeciesTestCase.setTreeFromFullNewick("((((t0 : 1.0, t1 : 1.5) : 1.0, t2 : 0.5) : 1.5, t3 : 3.0) : 1.0, ((t4 : 0.8, t5 : 1.2) : 1.0, t6 : 2.0) : 2.5);",
+                new String[] {"A", "A", "A", "C", "G", "G", "G"});
+        tree.setEverythingDirty(true);
+
+        ProfiledModel bdsqs = new ProfiledModel();
+        bdsqs.setInputValue("tree", tree);
+        bdsqs.setInputValue("origin", new RealParameter("6.0"));
+        bdsqs.setInputValue("conditionOnSurvival", false);
+        bdsqs.setInputValue("birthRate", new RealParameter("2.0 1.5 3.0"));
+        bdsqs.setInputValue("birthRateChangeTimes", new RealParameter("0.0 1.5 3.5"));
+        bdsqs.setInputValue("deathRate", new RealParameter("1.0 0.7"));
+        bdsqs.setInputValue("deathRateChangeTimes", new RealParameter("0.0 2.2"));
+        bdsqs.setInputValue("samplingRate", new RealParameter("0.5 0.9"));
+        bdsqs.setInputValue("samplingRateChangeTimes", new RealParameter("0.0 0.8"));
+        bdsqs.initAndValidate();
+
+        bdsqs.calculateTreeLogLikelihood(tree);
+        assertLineageProfile(bdsqs, tree);
+        tree.setEverythingDirty(false);
+
+        // a rejected move of an attachment time and an internal node brings back the stored profile
+        State state = new State();
+        state.initByName("stateNode", tree);
+        bdsqs.store();
+        state.store(0);
+        for (Node node : tree.getExternalNodes()) {
+            QuasiSpeciesNode tip = (QuasiSpeciesNode) node;
+            double[] attachTimes = tip.getAttachmentTimesList().clone();
+            if (attachTimes.length == 3) {
+                attachTimes[2] += 0.5 * (attachTimes[1] - attachTimes[2]);
+                tip.setAttachmentTimesList(attachTimes);
+            }
+        }
+        for (Node node : tree.getInternalNodes()) {
+            if (!node.isRoot())
+                node.setHeight(node.getHeight() + 0.3 * (node.getParent().getHeight() - node.getHeight()));
+        }
+        bdsqs.calculateTreeLogLikelihood(tree);
+        assertLineageProfile(bdsqs, tree);
+
+        state.restore();
+        bdsqs.restore();
+        assertLineageProfile(bdsqs, tree);
+        bdsqs.calculateTreeLogLikelihood(tree);
+        assertLineageProfile(bdsqs, tree);
+    }
+
+    private void assertLineageProfile(ProfiledModel bdsqs, QuasiSpeciesTree tree) {
+        assertTrue(bdsqs.getProfileSize() >= 4);
+        for (int j = 0; j < bdsqs.getProfileSize(); j++) {
+            assertEquals("lineages at " + bdsqs.getProfileTime(j), bdsqs.lineageCountAtTime(bdsqs.getProfileTime(j), tree),
+                    bdsqs.getProfileLineageCount(j));
+        }
+    }
+
+    /**
+     * Model exposing its lineage-through-time profile to the tests.
+     */
+    public static class ProfiledModel extends QuasiSpeciesBirthDeathSkylineModel {
+        @Override
+        public int getProfileSize() {
+            return super.getProfileSize();
+        }
+
+        @Override
+        public double getProfileTime(int j) {
+            return super.getProfileTime(j);
+        }
+
+        @Override
+        public int getProfileLineageCount(int j) {
+            return super.getProfileLineageCount(j);
+        }
+    }
 }
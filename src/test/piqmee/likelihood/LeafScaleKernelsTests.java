@@ -0,0 +1,83 @@
+package test.piqmee.likelihood;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import beast.base.core.Description;
+import piqmee.likelihood.LeafScaleKernels;
+
+import java.util.Random;
+
+@Description("Test the leaf scale loops and the polynomial exp of the tree likelihood")
+public class LeafScaleKernelsTests {
+
+    private void assertExpWithinBound(double x) {
+        double expected = Math.exp(x);
+        double relativeError = Math.abs(LeafScaleKernels.exp(x) - expected) / expected;
+        assertTrue("relative error " + relativeError + " at " + x,
+                relativeError <= LeafScaleKernels.EXP_MAX_RELATIVE_ERROR);
+    }
+
+    @Test
+    public void testExpErrorBound() throws Exception {
+        Random random = new Random(127);
+        for (int i = 0; i < 1000000; i++) {
+            // the whole polynomial range and, more densely, the log scale factors near 0
+            assertExpWithinBound(-708.0 + 1417.0 * random.nextDouble());
+            assertExpWithinBound(-5.0 + 10.0 * random.nextDouble());
+        }
+        // boundaries of the range reduction
+        for (double x : new double[] {0.0, -0.0, 0.5 * Math.log(2), -0.5 * Math.log(2), Math.log(2), -707.99, 708.99})
+            assertExpWithinBound(x);
+    }
+
+    @Test
+    public void testExpOutsideRange() throws Exception {
+        // underflow is detected by the likelihood as an exact zero, as with Math.exp
+        assertEquals(0.0, LeafScaleKernels.exp(-800.0), 0.0);
+        assertEquals(Math.exp(-740.0), LeafScaleKernels.exp(-740.0), 0.0);
+        assertEquals(Double.POSITIVE_INFINITY, LeafScaleKernels.exp(710.0), 0.0);
+        assertTrue(Double.isNaN(LeafScaleKernels.exp(Double.NaN)));
+        assertEquals(0.0, LeafScaleKernels.exp(Double.NEGATIVE_INFINITY), 0.0);
+    }
+
+    @Test
+    public void testArrayLoops() throws Exception {
+        Random random = new Random(127);
+        // lengths with and without a remainder of the unrolled loops
+        for (int n : new int[] {0, 1, 3, 4, 7, 64, 1001}) {
+            double[] acc = new double[n + 2];
+            double[] x = new double[n + 2];
+            double[] oldX = new double[n + 2];
+            for (int i = 0; i < n + 2; i++) {
+                acc[i] = random.nextGaussian();
+                x[i] = random.nextGaussian();
+                oldX[i] = random.nextGaussian();
+            }
+
+            double[] expected = acc.clone();
+            for (int i = 0; i < n; i++)
+                expected[i] += x[i];
+            LeafScaleKernels.add(acc, x, n);
+            assertArrayEqualsExactly(expected, acc);
+
+            for (int i = 0; i < n; i++)
+                expected[i] += x[i] - oldX[i];
+            LeafScaleKernels.addDifference(acc, x, oldX, n);
+            assertArrayEqualsExactly(expected, acc);
+
+            if (n > 0) {
+                for (int i = 1; i < n; i++)
+                    expected[i + 1] += x[i] * 0.3;
+                LeafScaleKernels.addScaled(acc, 2, x, 1, 0.3, n - 1);
+                assertArrayEqualsExactly(expected, acc);
+            }
+        }
+    }
+
+    private void assertArrayEqualsExactly(double[] expected, double[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++)
+            assertEquals(expected[i], actual[i], 0.0);
+    }
+}
@@ -0,0 +1,56 @@
+package test.piqmee.likelihood;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import beast.base.core.Description;
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.substitutionmodel.GTR;
+import beast.base.evolution.substitutionmodel.HKY;
+import beast.base.evolution.substitutionmodel.JukesCantor;
+import beast.base.evolution.substitutionmodel.SubstitutionModel;
+import beast.base.inference.parameter.RealParameter;
+import piqmee.likelihood.NoChangeRates;
+
+@Description("Test the rates of no change read off the substitution model parameters")
+public class NoChangeRatesTests {
+
+    private Frequencies getFrequencies() {
+        Frequencies freqs = new Frequencies();
+        freqs.initByName("frequencies", "0.1 0.2 0.3 0.4", "estimate", false);
+        return freqs;
+    }
+
+    private void assertMatchesEigenDecomposition(SubstitutionModel model) {
+        assertTrue(NoChangeRates.hasDirectRates(model, 4));
+        double[] rates = new double[4];
+        NoChangeRates.getNoChangeRates(model, 4, rates);
+        double[] expected = new double[4];
+        NoChangeRates.getNoChangeRates(model.getEigenDecomposition(null), 4, expected);
+        assertArrayEquals(expected, rates, 1e-12);
+    }
+
+    @Test
+    public void testJukesCantor() throws Exception {
+        JukesCantor jc = new JukesCantor();
+        jc.initAndValidate();
+        assertMatchesEigenDecomposition(jc);
+    }
+
+    @Test
+    public void testHKY() throws Exception {
+        HKY hky = new HKY();
+        hky.initByName("kappa", "3.0", "frequencies", getFrequencies());
+        assertMatchesEigenDecomposition(hky);
+    }
+
+    @Test
+    public void testGTR() throws Exception {
+        GTR gtr = new GTR();
+        gtr.initByName("rateAC", new RealParameter("0.5"), "rateAG", new RealParameter("2.5"),
+                "rateAT", new RealParameter("0.8"), "rateCG", new RealParameter("1.2"),
+                "rateCT", new RealParameter("3.0"), "rateGT", new RealParameter("1.0"),
+                "frequencies", getFrequencies());
+        assertMatchesEigenDecomposition(gtr);
+    }
+}
@@ -0,0 +1,120 @@
+package test.piqmee.likelihood;
+
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.substitutionmodel.HKY;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import piqmee.likelihood.QuasiSpeciesBeerLikelihoodCore;
+import piqmee.likelihood.QuasiSpeciesTreeLikelihood;
+import piqmee.tree.QuasiSpeciesTree;
+import test.beast.BEASTTestCase;
+import test.piqmee.QuasiSpeciesTestCase;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Parity of the unrolled nucleotide core QuasiSpeciesBeerLikelihoodCore4
+ * with the generic QuasiSpeciesBeerLikelihoodCore.
+ */
+public class QuasiSpeciesBeerLikelihoodCore4Tests {
+
+    /**
+     * Tree likelihood forced to use the generic core for nucleotide data.
+     */
+    public static class GenericCoreTreeLikelihood extends QuasiSpeciesTreeLikelihood {
+        @Override
+        protected QuasiSpeciesBeerLikelihoodCore createLikelihoodCore(int nStates) {
+            return new QuasiSpeciesBeerLikelihoodCore(nStates);
+        }
+    }
+
+    private String javaOnly;
+
+    @Before
+    public void setUp() {
+        javaOnly = System.setProperty("java.only", "true");
+    }
+
+    @After
+    public void tearDown() {
+        if (javaOnly == null)
+            System.clearProperty("java.only");
+        else
+            System.setProperty("java.only", javaOnly);
+    }
+
+    private SiteModel getSiteModel() {
+        Frequencies freqs = new Frequencies();
+        freqs.initByName("frequencies", "0.1 0.2 0.3 0.4", "estimate", false);
+        HKY hky = new HKY();
+        hky.initByName("kappa", "3.0", "frequencies", freqs);
+
+        SiteModel siteModel = new SiteModel();
+        siteModel.initByName("mutationRate", "0.8", "gammaCategoryCount", 4, "shape", "0.5", "substModel", hky);
+        return siteModel;
+    }
+
+    private void compareCores(QuasiSpeciesTree tree, Alignment data) {
+        SiteModel siteModel = getSiteModel();
+
+        for (boolean useAmbiguities : new boolean[] {false, true}) {
+            QuasiSpeciesTreeLikelihood likelihood4 = new QuasiSpeciesTreeLikelihood();
+            likelihood4.initByName("useAmbiguities", useAmbiguities, "data", data, "tree", tree, "siteModel", siteModel);
+            double logP4 = likelihood4.calculateLogP();
+
+            QuasiSpeciesTreeLikelihood likelihood = new GenericCoreTreeLikelihood();
+            likelihood.initByName("useAmbiguities", useAmbiguities, "data", data, "tree", tree, "siteModel", siteModel);
+            double logP = likelihood.calculateLogP();
+
+            assertEquals(logP, logP4, BEASTTestCase.PRECISION);
+        }
+    }
+
+    @Test
+    public void testParityWithQSPassingThroughNodes() throws Exception {
+        // t3-t6 form one haplotype passing through the internal nodes above them;
+        // gaps and ambiguous codes exercise the unknown state branches of the pruning
+        String[] sequences = new String[] {
+                "ACGTACGTRCGTACGTACGTAC-T",
+                "ACGAACGTTCGTACCTACGAACGT",
+                "TCGTACGAACGT-CGTACGTTCGA",
+                "ACGTTCGTACGAACGTACGTACG-",
+                "ACGTTCGTACGAACGTACGTACG-",
+                "ACGTTCGTACGAACGTACGTACG-",
+                "ACGTTCGTACGAACGTACGTACG-"};
+        QuasiSpeciesTree tree = QuasiSpeciesTestCase.setTreeFromFullNewick("(((t3:1.,t4:1.):2.0,(t5:1.5,t6:0.5):0.5):1.0,((t0:1.5,t1:0.5):1.,t2:0.5):1.5);", sequences);
+        Alignment data = QuasiSpeciesTestCase.getAlignment(sequences);
+
+        compareCores(tree, data);
+    }
+
+    @Test
+    public void testParityWithDuplicateCherry() throws Exception {
+        // t0 and t1 form one haplotype, the other two tips are unique
+        String[] sequences = new String[] {
+                "ACGTTCGTAYGAACGT",
+                "ACGTTCGTAYGAACGT",
+                "ACGAACGTTCGTAC-T",
+                "TCGTACGAACGTGCGT"};
+        QuasiSpeciesTree tree = QuasiSpeciesTestCase.setTreeFromFullNewick("((t2:0.5,t3:0.5):0.5,(t0:0.25,t1:0.25):0.75);", sequences);
+        Alignment data = QuasiSpeciesTestCase.getAlignment(sequences);
+
+        compareCores(tree, data);
+    }
+
+    @Test
+    public void testParitySingleHaplotype() throws Exception {
+        // all sequences are identical, so the quasi-species tree has a single tip
+        String[] sequences = new String[] {
+                "ACGTTCGTAYGAAC-T",
+                "ACGTTCGTAYGAAC-T",
+                "ACGTTCGTAYGAAC-T"};
+        QuasiSpeciesTree tree = QuasiSpeciesTestCase.setTreeFromFullNewick("((t0:0.5,t1:0.5):0.5,t2:1.0);", sequences);
+        Alignment data = QuasiSpeciesTestCase.getAlignment(sequences);
+
+        compareCores(tree, data);
+    }
+}
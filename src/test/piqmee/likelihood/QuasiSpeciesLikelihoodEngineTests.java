@@ -0,0 +1,135 @@
+package test.piqmee.likelihood;
+
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.JukesCantor;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import piqmee.likelihood.LikelihoodCalibration;
+import piqmee.likelihood.QuasiSpeciesLikelihoodEngine;
+import piqmee.likelihood.QuasiSpeciesTreeLikelihood;
+import piqmee.tree.QuasiSpeciesTree;
+import test.beast.BEASTTestCase;
+import test.piqmee.QuasiSpeciesTestCase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The likelihood engine gives the likelihood of its back-end, whichever is chosen.
+ */
+public class QuasiSpeciesLikelihoodEngineTests {
+
+    private static final String[] SEQUENCES = new String[] {
+            "ACGTACGTACGTACGTACGTAC-T",
+            "ACGAACGTTCGTACCTACGAACGT",
+            "TCGTACGAACGTGCGTACGTTCGA",
+            "ACGTTCGTACGAACGTACGTACG-",
+            "ACGTTCGTACGAACGTACGTACG-",
+            "ACGTTCGTACGAACGTACGTACG-",
+            "ACGTTCGTACGAACGTACGTACG-"};
+
+    private static final String NEWICK = "(((t3:1.,t4:1.):2.0,(t5:1.5,t6:0.5):0.5):1.0,((t0:1.5,t1:0.5):1.,t2:0.5):1.5);";
+
+    private String javaOnly;
+
+    @Before
+    public void setUp() {
+        javaOnly = System.getProperty("java.only");
+    }
+
+    @After
+    public void tearDown() {
+        if (javaOnly == null)
+            System.clearProperty("java.only");
+        else
+            System.setProperty("java.only", javaOnly);
+    }
+
+    private SiteModel getSiteModel() {
+        JukesCantor JC = new JukesCantor();
+        JC.initAndValidate();
+        SiteModel siteModel = new SiteModel();
+        siteModel.initByName("mutationRate", "0.6", "gammaCategoryCount", 4, "shape", "0.5", "substModel", JC);
+        return siteModel;
+    }
+
+    @Test
+    public void testBackendsMatchJavaLikelihood() throws Exception {
+        QuasiSpeciesTree tree = QuasiSpeciesTestCase.setTreeFromFullNewick(NEWICK, SEQUENCES);
+        Alignment data = QuasiSpeciesTestCase.getAlignment(SEQUENCES);
+        SiteModel siteModel = getSiteModel();
+
+        QuasiSpeciesTreeLikelihood likelihood = new QuasiSpeciesTreeLikelihood();
+        likelihood.initByName("data", data, "tree", tree, "siteModel", siteModel);
+        double expected = likelihood.calculateLogP();
+
+        for (QuasiSpeciesLikelihoodEngine.Backend backend : new QuasiSpeciesLikelihoodEngine.Backend[] {
+                QuasiSpeciesLikelihoodEngine.Backend.java, QuasiSpeciesLikelihoodEngine.Backend.threaded}) {
+            QuasiSpeciesLikelihoodEngine engine = new QuasiSpeciesLikelihoodEngine();
+            engine.initByName("data", data, "tree", tree, "siteModel", siteModel, "backend", backend, "threads", 4);
+            assertEquals(backend, engine.getBackend());
+            assertEquals(backend == QuasiSpeciesLikelihoodEngine.Backend.threaded ? 4 : 1, engine.getBackendThreads());
+            assertEquals(expected, engine.calculateLogP(), 0.0);
+        }
+    }
+
+    @Test
+    public void testBeagleMatchesJavaBackend() throws Exception {
+        System.setProperty("java.only", "false");
+        QuasiSpeciesTree tree = QuasiSpeciesTestCase.setTreeFromFullNewick(NEWICK, SEQUENCES);
+        Alignment data = QuasiSpeciesTestCase.getAlignment(SEQUENCES);
+        SiteModel siteModel = getSiteModel();
+
+        QuasiSpeciesLikelihoodEngine beagleEngine = new QuasiSpeciesLikelihoodEngine();
+        try {
+            beagleEngine.initByName("data", data, "tree", tree, "siteModel", siteModel,
+                    "backend", QuasiSpeciesLikelihoodEngine.Backend.beagle);
+        } catch (IllegalArgumentException e) {
+            // skipped when no BEAGLE library is installed
+            Assume.assumeNoException(e);
+        }
+        QuasiSpeciesLikelihoodEngine javaEngine = new QuasiSpeciesLikelihoodEngine();
+        javaEngine.initByName("data", data, "tree", tree, "siteModel", siteModel,
+                "backend", QuasiSpeciesLikelihoodEngine.Backend.java);
+
+        assertEquals(QuasiSpeciesLikelihoodEngine.Backend.beagle, beagleEngine.getBackend());
+        assertEquals(javaEngine.calculateLogP(), beagleEngine.calculateLogP(), BEASTTestCase.PRECISION);
+    }
+
+    @Test
+    public void testAutomaticChoice() throws Exception {
+        System.setProperty("java.only", "true");
+        QuasiSpeciesTree tree = QuasiSpeciesTestCase.setTreeFromFullNewick(NEWICK, SEQUENCES);
+        Alignment data = QuasiSpeciesTestCase.getAlignment(SEQUENCES);
+        SiteModel siteModel = getSiteModel();
+
+        QuasiSpeciesTreeLikelihood likelihood = new QuasiSpeciesTreeLikelihood();
+        likelihood.initByName("data", data, "tree", tree, "siteModel", siteModel);
+        double expected = likelihood.calculateLogP();
+
+        QuasiSpeciesLikelihoodEngine engine = new QuasiSpeciesLikelihoodEngine();
+        engine.initByName("data", data, "tree", tree, "siteModel", siteModel, "threads", 2);
+        assertTrue(engine.getBackend() != QuasiSpeciesLikelihoodEngine.Backend.auto);
+        assertEquals(expected, engine.calculateLogP(), BEASTTestCase.PRECISION);
+    }
+
+    @Test
+    public void testCalibrationLeavesLikelihoodUnchanged() throws Exception {
+        QuasiSpeciesTree tree = QuasiSpeciesTestCase.setTreeFromFullNewick(NEWICK, SEQUENCES);
+        Alignment data = QuasiSpeciesTestCase.getAlignment(SEQUENCES);
+        SiteModel siteModel = getSiteModel();
+
+        QuasiSpeciesTreeLikelihood likelihood = new QuasiSpeciesTreeLikelihood();
+        likelihood.initByName("data", data, "tree", tree, "siteModel", siteModel);
+        double expected = likelihood.calculateLogP();
+        String newick = tree.getRoot().toNewick();
+
+        assertTrue(LikelihoodCalibration.timeFullEvaluations(tree, likelihood, 10) > 0.0);
+        assertTrue(LikelihoodCalibration.timePartialEvaluations(tree, likelihood, 10) > 0.0);
+        assertEquals(newick, tree.getRoot().toNewick());
+        assertEquals(expected, likelihood.calculateLogP(), 0.0);
+    }
+}
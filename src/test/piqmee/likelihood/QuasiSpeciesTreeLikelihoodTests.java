@@ -5,14 +5,17 @@ import beast.base.evolution.likelihood.TreeLikelihood;
 import beast.base.evolution.sitemodel.SiteModel;
 import piqmee.evolution.branchratemodel.QuasiSpeciesUCRelaxedClockModel;
 import beast.base.evolution.substitutionmodel.JukesCantor;
+import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.evolution.tree.TreeParser;
 import org.junit.Test;
+import piqmee.likelihood.QuasiSpeciesBeerLikelihoodCore;
 import piqmee.likelihood.QuasiSpeciesTreeLikelihood;
 import piqmee.tree.QuasiSpeciesNode;
 import piqmee.tree.QuasiSpeciesTree;
 import test.beast.BEASTTestCase;
 import test.piqmee.QuasiSpeciesTestCase;
+import beast.base.inference.State;
 import beast.base.inference.distribution.LogNormalDistributionModel;
 import test.piqmee.branchratemodel.UCRelaxedClockModel_setCategories;
 
@@ -107,6 +110,121 @@ public class QuasiSpeciesTreeLikelihoodTests {
         assertEquals(logP+ (rates[3] * 0.5 * 13)+ (rates[1] * 1 * 13), logQSP, BEASTTestCase.PRECISION);
     }
 
+    @Test
+    public void testThreadedLikelihood() throws Exception {
+        // long enough sequences to give each thread a block of patterns; t3-t6 form one haplotype
+        String[] sequences = new String[] {
+                "ACGTACGTACGTACGTACGTAC-T",
+                "ACGAACGTTCGTACCTACGAACGT",
+                "TCGTACGAACGTGCGTACGTTCGA",
+                "ACGTTCGTACGAACGTACGTACG-",
+                "ACGTTCGTACGAACGTACGTACG-",
+                "ACGTTCGTACGAACGTACGTACG-",
+                "ACGTTCGTACGAACGTACGTACG-"};
+        QuasiSpeciesTree tree = QuasiSpeciesTestCase.setTreeFromFullNewick("(((t3:1.,t4:1.):2.0,(t5:1.5,t6:0.5):0.5):1.0,((t0:1.5,t1:0.5):1.,t2:0.5):1.5);", sequences);
+        Alignment data = QuasiSpeciesTestCase.getAlignment(sequences);
+
+        JukesCantor JC = new JukesCantor();
+        JC.initAndValidate();
+
+        SiteModel siteModel = new SiteModel();
+        siteModel.initByName("mutationRate", "0.6", "gammaCategoryCount", 4, "shape", "0.5", "substModel", JC);
+
+        for (boolean useAmbiguities : new boolean[] {false, true}) {
+            QuasiSpeciesTreeLikelihood likelihood = newQSTreeLikelihood();
+            likelihood.initByName("useAmbiguities", useAmbiguities, "data", data, "tree", tree, "siteModel", siteModel);
+            double logP = likelihood.calculateLogP();
+
+            QuasiSpeciesTreeLikelihood likelihoodThreaded = newQSTreeLikelihood();
+            likelihoodThreaded.initByName("useAmbiguities", useAmbiguities, "threads", 4, "data", data, "tree", tree, "siteModel", siteModel);
+            double logPThreaded = likelihoodThreaded.calculateLogP();
+
+            // each pattern is calculated exactly as in the serial core, so the results are identical
+            assertEquals(logP, logPThreaded, 0.0);
+        }
+    }
+
+    /**
+     * Tree likelihood whose core rescales the partials of every node and pattern.
+     */
+    public static class RescalingTreeLikelihood extends QuasiSpeciesTreeLikelihood {
+        @Override
+        protected QuasiSpeciesBeerLikelihoodCore createLikelihoodCore(int nStates) {
+            QuasiSpeciesBeerLikelihoodCore core = super.createLikelihoodCore(nStates);
+            core.setRescalingThreshold(2.0);
+            return core;
+        }
+    }
+
+    @Test
+    public void testRescaledLikelihood() throws Exception {
+        String[] sequences = new String[] {
+                "ACGTACGTACGTACGTACGTAC-T",
+                "ACGAACGTTCGTACCTACGAACGT",
+                "TCGTACGAACGTGCGTACGTTCGA",
+                "ACGTTCGTACGAACGTACGTACG-",
+                "ACGTTCGTACGAACGTACGTACG-",
+                "ACGTTCGTACGAACGTACGTACG-",
+                "ACGTTCGTACGAACGTACGTACG-"};
+        QuasiSpeciesTree tree = QuasiSpeciesTestCase.setTreeFromFullNewick("(((t3:1.,t4:1.):2.0,(t5:1.5,t6:0.5):0.5):1.0,((t0:1.5,t1:0.5):1.,t2:0.5):1.5);", sequences);
+        Alignment data = QuasiSpeciesTestCase.getAlignment(sequences);
+
+        JukesCantor JC = new JukesCantor();
+        JC.initAndValidate();
+
+        SiteModel siteModel = new SiteModel();
+        siteModel.initByName("mutationRate", "0.6", "gammaCategoryCount", 4, "shape", "0.5", "substModel", JC);
+
+        QuasiSpeciesTreeLikelihood likelihood = newQSTreeLikelihood();
+        likelihood.initByName("data", data, "tree", tree, "siteModel", siteModel, "scaling", QuasiSpeciesTreeLikelihood.Scaling.none);
+        double logP = likelihood.calculateLogP();
+
+        // the haplotype of t3-t6 with three attachment times of duplicates
+        int nr = -1;
+        for (Node node : tree.getExternalNodes()) {
+            if (((QuasiSpeciesNode) node).getAttachmentTimesList().length == 4)
+                nr = node.getNr();
+        }
+
+        // the log scaling factors accumulated up to the root undo the rescaling at every node
+        for (int threads : new int[] {1, 4}) {
+            QuasiSpeciesTreeLikelihood likelihoodRescaled = new RescalingTreeLikelihood();
+            likelihoodRescaled.initByName("threads", threads, "data", data, "tree", tree, "siteModel", siteModel,
+                    "scaling", QuasiSpeciesTreeLikelihood.Scaling.always);
+            double logPRescaled = likelihoodRescaled.calculateLogP();
+            assertEquals(logP, logPRescaled, BEASTTestCase.PRECISION);
+
+            // moving one attachment time only updates the path from its tip to the root
+            State state = new State();
+            state.initByName("stateNode", tree);
+            likelihoodRescaled.store();
+            state.store(0);
+            tree.setEverythingDirty(false);
+            QuasiSpeciesNode tip = (QuasiSpeciesNode) tree.getNode(nr);
+            double[] attachTimes = tip.getAttachmentTimesList();
+            tip.moveAttachmentTime(3, 0.5 * (attachTimes[2] + attachTimes[3]));
+            likelihoodRescaled.requiresRecalculation();
+            double logPMoved = likelihoodRescaled.calculateLogP();
+
+            QuasiSpeciesTreeLikelihood likelihoodFresh = new RescalingTreeLikelihood();
+            likelihoodFresh.initByName("threads", threads, "data", data, "tree", tree, "siteModel", siteModel,
+                    "scaling", QuasiSpeciesTreeLikelihood.Scaling.always);
+            assertEquals(likelihoodFresh.calculateLogP(), logPMoved, BEASTTestCase.PRECISION);
+
+            // the rejected move brings back the stored partials and scaling factors
+            state.restore();
+            likelihoodRescaled.restore();
+            tree.setEverythingDirty(false);
+            likelihoodRescaled.requiresRecalculation();
+            assertEquals(logPRescaled, likelihoodRescaled.calculateLogP(), 0.0);
+            // and recalculating the path of the tip from them gives the original value
+            tree.getNode(nr).makeDirty(Tree.IS_DIRTY);
+            likelihoodRescaled.requiresRecalculation();
+            assertEquals(logPRescaled, likelihoodRescaled.calculateLogP(), 0.0);
+            tree.setEverythingDirty(true);
+        }
+    }
+
 // todo how to test uncertain characters in our case? Use orig beast tree? or make a new one, and then what would be the likelihood? calc by hand?
 //    @Test
 //    public void testJC69LikelihoodWithUncertainCharacters() throws Exception {
@@ -0,0 +1,141 @@
+package test.piqmee.likelihood;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import beast.base.core.Description;
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.substitutionmodel.HKY;
+import beast.base.evolution.substitutionmodel.SubstitutionModel;
+import beast.base.evolution.tree.Node;
+import piqmee.likelihood.QuasiSpeciesTreeLikelihood;
+import piqmee.likelihood.TransitionMatrixCache;
+import piqmee.tree.QuasiSpeciesTree;
+import test.piqmee.QuasiSpeciesTestCase;
+
+@Description("Test the cache of transition probability matrices")
+public class TransitionMatrixCacheTests {
+
+    private String javaOnly;
+
+    @Before
+    public void setUp() {
+        javaOnly = System.getProperty("java.only");
+    }
+
+    @After
+    public void tearDown() {
+        if (javaOnly == null)
+            System.clearProperty("java.only");
+        else
+            System.setProperty("java.only", javaOnly);
+    }
+
+    private HKY getHKY(String kappa) {
+        Frequencies freqs = new Frequencies();
+        freqs.initByName("frequencies", "0.1 0.2 0.3 0.4", "estimate", false);
+        HKY hky = new HKY();
+        hky.initByName("kappa", kappa, "frequencies", freqs);
+        return hky;
+    }
+
+    private double[] direct(SubstitutionModel model, double startTime, double endTime, double rate) {
+        double[] matrix = new double[16];
+        model.getTransitionProbabilities(null, startTime, endTime, rate, matrix);
+        return matrix;
+    }
+
+    @Test
+    public void testBranchesWithSameLengthShareMatrix() throws Exception {
+        HKY hky = getHKY("3.0");
+        TransitionMatrixCache cache = new TransitionMatrixCache(2, 16);
+        double[] matrix = new double[16];
+
+        cache.getTransitionProbabilities(hky, null, 2.0, 1.5, 0.8, matrix);
+        assertArrayEquals(direct(hky, 2.0, 1.5, 0.8), matrix, 0.0);
+        // a branch of the same length elsewhere in the tree
+        cache.getTransitionProbabilities(hky, null, 3.0, 2.5, 0.8, matrix);
+        assertArrayEquals(direct(hky, 2.0, 1.5, 0.8), matrix, 0.0);
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+
+        // the least recently used matrix is evicted
+        cache.getTransitionProbabilities(hky, null, 1.0, 0.0, 0.8, matrix);
+        cache.getTransitionProbabilities(hky, null, 2.0, 0.0, 0.8, matrix);
+        assertEquals(2, cache.size());
+        cache.getTransitionProbabilities(hky, null, 2.0, 1.5, 0.8, matrix);
+        assertEquals(4, cache.getMissCount());
+    }
+
+    @Test
+    public void testInvalidationAndRestore() throws Exception {
+        HKY hky = getHKY("3.0");
+        HKY proposed = getHKY("5.0");
+        TransitionMatrixCache cache = new TransitionMatrixCache(10, 16);
+        double[] matrix = new double[16];
+
+        cache.getTransitionProbabilities(hky, null, 1.0, 0.0, 1.0, matrix);
+        cache.store();
+
+        // the substitution model changes in a proposal that is rejected
+        cache.invalidate();
+        cache.getTransitionProbabilities(proposed, null, 1.0, 0.0, 1.0, matrix);
+        assertArrayEquals(direct(proposed, 1.0, 0.0, 1.0), matrix, 0.0);
+        cache.restore();
+        cache.getTransitionProbabilities(proposed, null, 1.0, 0.0, 1.0, matrix);
+        assertArrayEquals(direct(hky, 1.0, 0.0, 1.0), matrix, 0.0);
+
+        // and in a proposal that is accepted
+        cache.invalidate();
+        cache.getTransitionProbabilities(proposed, null, 1.0, 0.0, 1.0, matrix);
+        cache.store();
+        cache.restore();
+        cache.getTransitionProbabilities(hky, null, 1.0, 0.0, 1.0, matrix);
+        assertArrayEquals(direct(proposed, 1.0, 0.0, 1.0), matrix, 0.0);
+    }
+
+    @Test
+    public void testOnlyTimeHomogeneousModelsAreCached() throws Exception {
+        assertTrue(TransitionMatrixCache.isTimeHomogeneous(getHKY("3.0")));
+        // a subclass may make the matrices depend on the node or the times
+        HKY subclass = new HKY() {
+            @Override
+            public void getTransitionProbabilities(Node node, double startTime, double endTime, double rate, double[] matrix) {
+                super.getTransitionProbabilities(node, startTime, endTime, rate * (1 + startTime), matrix);
+            }
+        };
+        assertFalse(TransitionMatrixCache.isTimeHomogeneous(subclass));
+    }
+
+    @Test
+    public void testLikelihoodWithAndWithoutCache() throws Exception {
+        System.setProperty("java.only", "true");
+        // t3-t6 form one haplotype whose duplicate branches have equal lengths
+        String[] sequences = new String[] {
+                "ACGTACGTACGTACGTACGTAC-T",
+                "ACGAACGTTCGTACCTACGAACGT",
+                "TCGTACGAACGTGCGTACGTTCGA",
+                "ACGTTCGTACGAACGTACGTACG-",
+                "ACGTTCGTACGAACGTACGTACG-",
+                "ACGTTCGTACGAACGTACGTACG-",
+                "ACGTTCGTACGAACGTACGTACG-"};
+        QuasiSpeciesTree tree = QuasiSpeciesTestCase.setTreeFromFullNewick("(((t3:1.,t4:1.):2.0,(t5:1.5,t6:0.5):0.5):1.0,((t0:1.5,t1:0.5):1.,t2:0.5):1.5);", sequences);
+        Alignment data = QuasiSpeciesTestCase.getAlignment(sequences);
+        SiteModel siteModel = new SiteModel();
+        siteModel.initByName("mutationRate", "0.8", "gammaCategoryCount", 4, "shape", "0.5", "substModel", getHKY("3.0"));
+
+        QuasiSpeciesTreeLikelihood likelihood = new QuasiSpeciesTreeLikelihood();
+        likelihood.initByName("data", data, "tree", tree, "siteModel", siteModel, "matrixCacheSize", 0);
+        QuasiSpeciesTreeLikelihood cachedLikelihood = new QuasiSpeciesTreeLikelihood();
+        cachedLikelihood.initByName("data", data, "tree", tree, "siteModel", siteModel);
+
+        // the cached matrices are bitwise those of the substitution model
+        assertEquals(likelihood.calculateLogP(), cachedLikelihood.calculateLogP(), 0.0);
+    }
+}
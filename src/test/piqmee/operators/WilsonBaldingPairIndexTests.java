@@ -0,0 +1,73 @@
+package test.piqmee.operators;
+
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+import beast.base.core.Description;
+import beast.base.evolution.tree.Node;
+import piqmee.operators.WilsonBaldingPairIndex;
+import piqmee.tree.QuasiSpeciesNode;
+import piqmee.tree.QuasiSpeciesTree;
+import test.piqmee.QuasiSpeciesTestCase;
+
+@Description("Test the maintained count of valid Wilson-Balding pairs against the pairwise count")
+public class WilsonBaldingPairIndexTests {
+
+    // the pairwise count previously done in QuasiSpeciesWilsonBalding(Easy).countValidPairsForWB(Easy)
+    private int countValidPairs(QuasiSpeciesTree tree, boolean easy) {
+        int count = 0;
+        for (Node srcNode : tree.getNodesAsArray()) {
+            if (srcNode.isRoot() || srcNode.getParent().isRoot())
+                continue;
+            if (easy && ((QuasiSpeciesNode) srcNode).getContinuingHaploName() != ((QuasiSpeciesNode) srcNode).getHaploAboveName())
+                continue;
+            for (Node destNode : tree.getNodesAsArray()) {
+                if (destNode == srcNode || destNode == srcNode.getParent() || destNode.isRoot()
+                        || destNode.getParent() == srcNode.getParent()
+                        || destNode.getParent().getHeight() <= srcNode.getHeight())
+                    continue;
+                count += 1;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void testPairCount() throws Exception {
+        String[] sequences = new String[] {"AAAA", "AAAC", "AACA", "ACAA", "CAAA", "AACC", "CCAA", "CCAA"};
+        QuasiSpeciesTree tree = QuasiSpeciesTestCase.setTreeFromFullNewick(
+                "((((t0:0.5,t1:1.0):1.0,(t2:0.5,t3:0.25):1.5):0.5,(t4:1.0,t5:0.75):1.5):1.0,(t6:0.5,t7:0.25):3.0);", sequences);
+
+        for (boolean easy : new boolean[] {false, true}) {
+            WilsonBaldingPairIndex pairIndex = new WilsonBaldingPairIndex(tree, easy);
+            pairIndex.update();
+            assertEquals(countValidPairs(tree, easy), pairIndex.getPairCount());
+
+            // move an internal node below the heights of some of the other nodes
+            Node node = null;
+            for (Node internal : tree.getInternalNodes()) {
+                if (!internal.isRoot() && (node == null || internal.getHeight() > node.getHeight()))
+                    node = internal;
+            }
+            double oldHeight = node.getHeight();
+            pairIndex.store();
+            node.setHeight(Math.max(node.getLeft().getHeight(), node.getRight().getHeight()) + 0.01);
+            pairIndex.update(node);
+            assertEquals(countValidPairs(tree, easy), pairIndex.getPairCount());
+
+            // undo the move
+            node.setHeight(oldHeight);
+            pairIndex.restore();
+            assertEquals(countValidPairs(tree, easy), pairIndex.getPairCount());
+            pairIndex.update();
+            assertEquals(countValidPairs(tree, easy), pairIndex.getPairCount());
+
+            // scale all heights, which rebuilds the index
+            for (Node internal : tree.getInternalNodes())
+                internal.setHeight(internal.getHeight() * 1.5);
+            pairIndex.update();
+            assertEquals(countValidPairs(tree, easy), pairIndex.getPairCount());
+            for (Node internal : tree.getInternalNodes())
+                internal.setHeight(internal.getHeight() / 1.5);
+        }
+    }
+}
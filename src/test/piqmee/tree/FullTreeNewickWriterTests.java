@@ -0,0 +1,66 @@
+package test.piqmee.tree;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+import beast.base.core.Description;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeParser;
+import piqmee.tree.FullTreeNewickWriter;
+import piqmee.tree.QuasiSpeciesTree;
+import test.piqmee.QuasiSpeciesTestCase;
+
+import java.util.Arrays;
+
+@Description("Test the streaming Newick writer of the expanded quasi-species tree")
+public class FullTreeNewickWriterTests {
+
+    /**
+     * The expanded tree written from the attachment times should be the full tree
+     * the quasi-species tree was built from, up to the labels of the duplicates.
+     */
+    private void assertExpandsToFullTree(String fullNewick, String[] sequences) {
+        QuasiSpeciesTree qsTree = QuasiSpeciesTestCase.setTreeFromFullNewick(fullNewick, sequences);
+        Tree expected = new TreeParser(fullNewick, false);
+
+        FullTreeNewickWriter writer = new FullTreeNewickWriter();
+        String newick = writer.toNewick(qsTree);
+        Tree written = new TreeParser(newick + ";", false);
+
+        assertEquals(expected.getLeafNodeCount(), written.getLeafNodeCount());
+        assertArrayEquals(sortedHeights(expected), sortedHeights(written), 1e-10);
+
+        // writing again with the same writer gives the same tree
+        assertEquals(newick, writer.toNewick(qsTree));
+    }
+
+    private double[] sortedHeights(Tree tree) {
+        double[] heights = new double[tree.getNodeCount()];
+        for (Node node : tree.getNodesAsArray())
+            heights[node.getNr()] = node.getHeight();
+        Arrays.sort(heights);
+        return heights;
+    }
+
+    @Test
+    public void testDuplicateCherry() throws Exception {
+        String[] sequences = new String[] {"A", "A", "C", "G"};
+        assertExpandsToFullTree("((t2:0.5,t3:0.5):0.5,(t0:0.25,t1:0.25):0.75);", sequences);
+    }
+
+    @Test
+    public void testHaplotypePassingThroughNodes() throws Exception {
+        // t3-t6 form one haplotype sampled at three times, passing through two internal nodes
+        String[] sequences = new String[] {"A", "C", "G", "T", "T", "T", "T"};
+        assertExpandsToFullTree(
+                "(((t3:1.,t4:1.):2.0,(t5:1.5,t6:0.5):0.5):1.0,((t0:1.5,t1:0.5):1.,t2:0.5):1.5);", sequences);
+    }
+
+    @Test
+    public void testSingleHaplotype() throws Exception {
+        // all duplicates attach above the root of the one-tip quasi-species tree
+        String[] sequences = new String[] {"A", "A", "A"};
+        assertExpandsToFullTree("((t0:0.5,t1:0.5):0.5,t2:1.0);", sequences);
+    }
+}
@@ -5,7 +5,11 @@ import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import org.junit.Test;
 import beast.base.core.Description;
+import beast.base.evolution.tree.Node;
+import beast.base.inference.State;
 import piqmee.tree.QuasiSpeciesNode;
+import piqmee.tree.QuasiSpeciesTree;
+import test.piqmee.QuasiSpeciesTestCase;
 
 
 /**
@@ -100,6 +104,121 @@ public class QuasiSpeciesNodeTests {
 
     }
 
+    /**
+     *
+     * In place attachment time moves
+     *
+     */
+
+    @Test
+    public void testMoveAttachmentTimeUp() throws Exception {
+        QuasiSpeciesNode node = new QuasiSpeciesNode();
+        node.setHeight(1.0);
+        node.setAttachmentTimesList(new double[] {5.0, 5.0, 4.0, 3.0, 2.0, 1.5});
+        node.resetAttachmentTimesListChangedTag();
+
+        assertEquals(3, node.moveAttachmentTime(4, 3.5));
+        assertArrayEquals(new double[] {5.0, 5.0, 4.0, 3.5, 3.0, 1.5}, node.getAttachmentTimesList(), 1e-100);
+        assertEquals(2.0, node.getOldtimeofchangedcopy(), 1e-100);
+        assertEquals(3.5, node.getNewtimeofchangedcopy(), 1e-100);
+        assertTrue(node.attachmentTimesListChanged());
+
+        // above all other attachment times, once the caller moved the haplotype start up
+        node.setAttachmentTime(0, 6.0);
+        assertArrayEquals(new double[] {6.0, 5.0, 4.0, 3.5, 3.0, 1.5}, node.getAttachmentTimesList(), 1e-100);
+        assertEquals(1, node.moveAttachmentTime(3, 6.0));
+        assertArrayEquals(new double[] {6.0, 6.0, 5.0, 4.0, 3.0, 1.5}, node.getAttachmentTimesList(), 1e-100);
+    }
+
+    @Test
+    public void testMoveAttachmentTimeDown() throws Exception {
+        QuasiSpeciesNode node = new QuasiSpeciesNode();
+        node.setHeight(1.0);
+        node.setAttachmentTimesList(new double[] {5.0, 5.0, 4.0, 3.0, 2.0, 1.5});
+        node.resetAttachmentTimesListChangedTag();
+
+        assertEquals(5, node.moveAttachmentTime(1, 1.2));
+        assertArrayEquals(new double[] {5.0, 4.0, 3.0, 2.0, 1.5, 1.2}, node.getAttachmentTimesList(), 1e-100);
+
+        // a move within the neighbouring attachment times keeps the index
+        assertEquals(2, node.moveAttachmentTime(2, 2.5));
+        assertArrayEquals(new double[] {5.0, 4.0, 2.5, 2.0, 1.5, 1.2}, node.getAttachmentTimesList(), 1e-100);
+
+        node.setAttachmentTime(0, 4.0);
+        assertArrayEquals(new double[] {4.0, 4.0, 2.5, 2.0, 1.5, 1.2}, node.getAttachmentTimesList(), 1e-100);
+    }
+
+    /**
+     *
+     * Cached total branch length
+     *
+     */
+
+    // the pairing of attachment times and tip times that getTotalBranchLengths used to walk
+    private double totalBranchLengthsByPairing(QuasiSpeciesNode node) {
+        double[] attachmentTimes = node.getAttachmentTimesList();
+        double[] tipTimes = node.getTipTimesList();
+        int[] tipTimesCounts = node.getTipTimesCountList();
+        double total = 0.0;
+        int position = 0, inPosition = 0;
+        for (int i = attachmentTimes.length - 1; i >= 0; i--) {
+            total += attachmentTimes[i] - tipTimes[position];
+            if (++inPosition == tipTimesCounts[position]) {
+                inPosition = 0;
+                position++;
+            }
+        }
+        return total;
+    }
+
+    @Test
+    public void testTotalBranchLengthsFollowEdits() throws Exception {
+        QuasiSpeciesNode node = new QuasiSpeciesNode();
+        node.setHeight(1.0);
+        node.setAttachmentTimesList(new double[] {5.0, 5.0, 4.0, 3.0, 2.5, 1.5});
+        node.setTipTimesList(new double[] {1.0, 2.0});
+        node.setTipTimesCountList(new int[] {4, 2});
+
+        assertEquals(totalBranchLengthsByPairing(node), node.getTotalBranchLengths(), 1e-12);
+
+        node.moveAttachmentTime(4, 3.5);
+        assertEquals(totalBranchLengthsByPairing(node), node.getTotalBranchLengths(), 1e-12);
+        node.setAttachmentTime(0, 6.0);
+        assertEquals(totalBranchLengthsByPairing(node), node.getTotalBranchLengths(), 1e-12);
+        node.setAttachmentTimesList(new double[] {7.0, 7.0, 3.0, 2.5, 2.2, 1.1});
+        assertEquals(totalBranchLengthsByPairing(node), node.getTotalBranchLengths(), 1e-12);
+        node.setTipTimesList(new double[] {1.0, 1.5});
+        assertEquals(totalBranchLengthsByPairing(node), node.getTotalBranchLengths(), 1e-12);
+    }
+
+    @Test
+    public void testTotalBranchLengthsAfterRestore() throws Exception {
+        String[] sequences = new String[] {"A", "A", "A", "C", "G", "G"};
+        QuasiSpeciesTree tree = QuasiSpeciesTestCase.setTreeFromFullNewick(
+                "(((t0:0.5,t1:0.5):0.5,t2:1.0):1.0,(t3:1.5,(t4:0.5,t5:0.5):1.0):0.5);", sequences);
+        // the haplotype of t0-t2 with duplicates attaching at 1.0 and 0.5
+        int nr = -1;
+        for (Node node : tree.getExternalNodes()) {
+            if (((QuasiSpeciesNode) node).getAttachmentTimesList().length == 3)
+                nr = node.getNr();
+        }
+        QuasiSpeciesNode tip = (QuasiSpeciesNode) tree.getNode(nr);
+        double before = tip.getTotalBranchLengths();
+        assertEquals(totalBranchLengthsByPairing(tip), before, 1e-12);
+
+        State state = new State();
+        state.initByName("stateNode", tree);
+        state.store(0);
+        tip = (QuasiSpeciesNode) tree.getNode(nr);
+        tip.moveAttachmentTime(2, 0.75);
+        assertEquals(totalBranchLengthsByPairing(tip), tip.getTotalBranchLengths(), 1e-12);
+
+        state.restore();
+        tip = (QuasiSpeciesNode) tree.getNode(nr);
+        assertEquals(before, tip.getTotalBranchLengths(), 1e-12);
+        assertEquals(totalBranchLengthsByPairing(tip), tip.getTotalBranchLengths(), 1e-12);
+    }
+
 
 
 
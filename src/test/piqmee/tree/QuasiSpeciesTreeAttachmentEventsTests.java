@@ -0,0 +1,36 @@
+package test.piqmee.tree;
+
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+import beast.base.core.Description;
+import beast.base.evolution.tree.Node;
+import piqmee.tree.QuasiSpeciesTree;
+import test.piqmee.QuasiSpeciesTestCase;
+
+@Description("Test the selection of attachment events on the prefix sums of the haplotype counts")
+public class QuasiSpeciesTreeAttachmentEventsTests {
+
+    @Test
+    public void testAttachmentEventsMatchLinearScan() throws Exception {
+        // haplotypes of 3, 1 and 2 sequences, the single sequence has no attachment events
+        String[] sequences = new String[] {"A", "A", "A", "C", "G", "G"};
+        QuasiSpeciesTree tree = QuasiSpeciesTestCase.setTreeFromFullNewick(
+                "(((t0:0.5,t1:0.5):0.5,t2:1.0):1.0,(t3:1.5,(t4:0.5,t5:0.5):1.0):0.5);", sequences);
+
+        assertEquals(3, tree.getTotalAttachmentCounts());
+
+        for (int event = 0; event < tree.getTotalAttachmentCounts(); event++) {
+            // the linear scan previously done in the attachment operators
+            int remaining = event;
+            for (Node node : tree.getExternalNodes()) {
+                int count = tree.getHaplotypeCounts(node) - 1;
+                if (remaining < count) {
+                    assertEquals(node.getNr(), tree.getAttachmentEventNode(event).getNr());
+                    assertEquals(remaining + 1, tree.getAttachmentEventIndex(event));
+                    break;
+                }
+                remaining -= count;
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package test.piqmee.tree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import beast.base.core.Description;
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.likelihood.GenericTreeLikelihood;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeParser;
+import org.junit.Test;
+import piqmee.tree.HaplotypeGroups;
+import piqmee.tree.QuasiSpeciesTree;
+import test.piqmee.QuasiSpeciesTestCase;
+
+@Description("Test the grouping of identical sequences used to initialise quasi-species trees")
+public class QuasiSpeciesTreeGroupingTests {
+
+    private static final String NEWICK = "(((t0 : 1, t1 : 1) : 1, t2 : 2) : 1, t3 : 3) : 0;";
+
+    private int nodeNr(Tree tree, String id) {
+        for (Node node : tree.getExternalNodes()) {
+            if (node.getID().equals(id))
+                return node.getNr();
+        }
+        throw new IllegalArgumentException("No tip " + id);
+    }
+
+    private void linkAlignment(QuasiSpeciesTree qsTree, String[] sequences) {
+        GenericTreeLikelihood likelihood = new GenericTreeLikelihood();
+        likelihood.setInputValue("data", QuasiSpeciesTestCase.getAlignment(sequences));
+        likelihood.setInputValue("tree", qsTree);
+        qsTree.getOutputs().add(likelihood);
+    }
+
+    @Test
+    public void testIdenticalSequencesCollapsed() throws Exception {
+        String[] sequences = new String[] {"ACGTACGT", "ACGTACGT", "AGGTACGT", "ACGTACGA"};
+        QuasiSpeciesTree qsTree = QuasiSpeciesTestCase.setTreeFromFullNewick(NEWICK, sequences);
+        assertEquals(3, qsTree.getLeafNodeCount());
+
+        Alignment data = QuasiSpeciesTestCase.getAlignment(sequences);
+        Tree tree = new TreeParser(NEWICK, false);
+        HaplotypeGroups groups = qsTree.getHaplotypeGroups(data, tree, false);
+        assertEquals(3, groups.getGroupCount());
+        assertTrue(groups.isSameGroup(nodeNr(tree, "t0"), nodeNr(tree, "t1")));
+        assertFalse(groups.isSameGroup(nodeNr(tree, "t0"), nodeNr(tree, "t2")));
+        assertEquals(2, groups.getGroupSize(nodeNr(tree, "t1")));
+        assertEquals(1, groups.getGroupSize(nodeNr(tree, "t3")));
+    }
+
+    @Test
+    public void testSequencesCollapsedUpToMissingData() throws Exception {
+        String[] sequences = new String[] {"ACGTACGT", "ACNTACGT", "AGGTACGT", "ACGTACGA"};
+        QuasiSpeciesTree qsTree = QuasiSpeciesTestCase.setTreeFromFullNewick(NEWICK, sequences);
+
+        Alignment data = QuasiSpeciesTestCase.getAlignment(sequences);
+        Tree tree = new TreeParser(NEWICK, false);
+        // without collapsing, the sequence with missing data stays unique
+        assertEquals(4, qsTree.getHaplotypeGroups(data, tree, false).getGroupCount());
+
+        HaplotypeGroups groups = qsTree.getHaplotypeGroups(data, tree, true);
+        assertEquals(3, groups.getGroupCount());
+        assertTrue(groups.isSameGroup(nodeNr(tree, "t0"), nodeNr(tree, "t1")));
+        assertFalse(groups.isSameGroup(nodeNr(tree, "t1"), nodeNr(tree, "t2")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAmbiguousCollapsingRejected() throws Exception {
+        // the N matches both t0 and t2, which differ from each other
+        String[] sequences = new String[] {"ACGTACGT", "ACNTACGT", "ACCTACGT", "ACGTACGA"};
+        QuasiSpeciesTree qsTree = QuasiSpeciesTestCase.setTreeFromFullNewick(NEWICK,
+                new String[] {"ACGTACGT", "ACGTACGT", "AGGTACGT", "ACGTACGA"});
+
+        Alignment data = QuasiSpeciesTestCase.getAlignment(sequences);
+        qsTree.getHaplotypeGroups(data, new TreeParser(NEWICK, false), true);
+    }
+
+    @Test
+    public void testLinkedAlignmentResolvesAmbiguousCollapsing() throws Exception {
+        // in the first alignment the N matches both t0 and t2, the second one tells them apart from t1
+        QuasiSpeciesTree qsTree = QuasiSpeciesTestCase.setTreeFromFullNewick(NEWICK,
+                new String[] {"ACGTACGT", "ACGTACGT", "AGGTACGT", "ACGTACGA"});
+        linkAlignment(qsTree, new String[] {"ACGTACGT", "ACNTACGT", "ACCTACGT", "ACGTACGA"});
+        linkAlignment(qsTree, new String[] {"AAAA", "AAAA", "CCCC", "GGGG"});
+
+        Tree tree = new TreeParser(NEWICK, false);
+        HaplotypeGroups groups = qsTree.getHaplotypeGroups(null, tree, true);
+        assertEquals(3, groups.getGroupCount());
+        assertTrue(groups.isSameGroup(nodeNr(tree, "t0"), nodeNr(tree, "t1")));
+        assertFalse(groups.isSameGroup(nodeNr(tree, "t1"), nodeNr(tree, "t2")));
+        assertFalse(groups.isSameGroup(nodeNr(tree, "t0"), nodeNr(tree, "t3")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testLinkedAlignmentKeepsAmbiguousCollapsing() throws Exception {
+        // t0, t1 and t2 are identical in the second alignment, so the N of the first one stays ambiguous
+        QuasiSpeciesTree qsTree = QuasiSpeciesTestCase.setTreeFromFullNewick(NEWICK,
+                new String[] {"ACGTACGT", "ACGTACGT", "AGGTACGT", "ACGTACGA"});
+        linkAlignment(qsTree, new String[] {"ACGTACGT", "ACNTACGT", "ACCTACGT", "ACGTACGA"});
+        linkAlignment(qsTree, new String[] {"AAAA", "AAAA", "AAAA", "GGGG"});
+
+        qsTree.getHaplotypeGroups(null, new TreeParser(NEWICK, false), true);
+    }
+}
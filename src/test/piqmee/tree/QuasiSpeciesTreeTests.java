@@ -0,0 +1,117 @@
+package test.piqmee.tree;
+
+import static org.junit.Assert.assertArrayEquals;
+import org.junit.Test;
+import beast.base.core.Description;
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.alignment.TaxonSet;
+import beast.base.evolution.tree.Node;
+import piqmee.tree.QuasiSpeciesNode;
+import piqmee.tree.QuasiSpeciesTree;
+import piqmee.tree.QuasiSpeciesTreeFromNewick;
+import test.piqmee.QuasiSpeciesTestCase;
+
+@Description("Test the store and restore of the quasi-species tree")
+public class QuasiSpeciesTreeTests {
+
+    // t0, t1 and t2 form one haplotype sampled at heights 0.5, 0 and 1, t4-t6 another sampled at 0.7, 0.3 and 0.5
+    private static final String NEWICK = "((((t0 : 1.0, t1 : 1.5) : 1.0, t2 : 0.5) : 1.5, t3 : 3.0) : 1.0, ((t4 : 0.8, t5 : 1.2) : 1.0, t6 : 2.0) : 2.5);";
+    private static final String[] SEQUENCES = new String[] {"A", "A", "A", "C", "G", "G", "G"};
+
+    /**
+     * Tree exposing its stored nodes and store() to the tests.
+     */
+    public static class JournaledTree extends QuasiSpeciesTreeFromNewick {
+        @Override
+        public void store() {
+            super.store();
+        }
+
+        public Node[] getStoredNodes() {
+            return m_storedNodes;
+        }
+    }
+
+    private JournaledTree createTree() {
+        Alignment alignment = QuasiSpeciesTestCase.getAlignment(SEQUENCES);
+        JournaledTree tree = new JournaledTree();
+        tree.setInputValue("newick", NEWICK);
+        tree.setInputValue("adjustTipHeights", "false");
+        tree.setInputValue("taxonset", new TaxonSet(alignment));
+        tree.setInputValue("data", alignment);
+        tree.initAndValidate();
+        return tree;
+    }
+
+    private QuasiSpeciesNode getHaplotype(QuasiSpeciesTree tree, int k) {
+        int found = 0;
+        for (Node node : tree.getExternalNodes()) {
+            if (((QuasiSpeciesNode) node).getAttachmentTimesList().length == 3 && found++ == k)
+                return (QuasiSpeciesNode) node;
+        }
+        throw new IllegalArgumentException("No haplotype " + k);
+    }
+
+    private void editAttachmentTime(QuasiSpeciesTree tree) {
+        QuasiSpeciesNode tip = getHaplotype(tree, 0);
+        double[] attachTimes = tip.getAttachmentTimesList();
+        tip.moveAttachmentTime(2, attachTimes[2] + 0.5 * (attachTimes[1] - attachTimes[2]));
+    }
+
+    private void editTipTime(QuasiSpeciesTree tree) {
+        QuasiSpeciesNode tip = getHaplotype(tree, 1);
+        double[] tipTimes = tip.getTipTimesList().clone();
+        tipTimes[tipTimes.length - 1] += 0.1;
+        tip.setTipTimesList(tipTimes);
+    }
+
+    private void assertNodesMatch(QuasiSpeciesTree expected, Node[] nodes) {
+        for (Node node : expected.getExternalNodes()) {
+            QuasiSpeciesNode expectedNode = (QuasiSpeciesNode) node;
+            QuasiSpeciesNode actualNode = (QuasiSpeciesNode) nodes[node.getNr()];
+            assertArrayEquals(expectedNode.getAttachmentTimesList(), actualNode.getAttachmentTimesList(), 0.0);
+            assertArrayEquals(expectedNode.getTipTimesList(), actualNode.getTipTimesList(), 0.0);
+            assertArrayEquals(expectedNode.getTipTimesCountList(), actualNode.getTipTimesCountList());
+        }
+    }
+
+    @Test
+    public void testJournaledStoreMatchesFullCopy() throws Exception {
+        JournaledTree tree = createTree();
+        tree.store();
+        QuasiSpeciesTree fullCopy = tree.copy();
+        assertNodesMatch(fullCopy, tree.getStoredNodes());
+
+        // rejected edits: restore brings back the stored times and the next store copies them over the edits
+        editAttachmentTime(tree);
+        editTipTime(tree);
+        tree.restore();
+        assertNodesMatch(fullCopy, tree.getNodesAsArray());
+        tree.store();
+        assertNodesMatch(fullCopy, tree.getNodesAsArray());
+        assertNodesMatch(fullCopy, tree.getStoredNodes());
+
+        // accepted edits: the next store copies them
+        editAttachmentTime(tree);
+        editTipTime(tree);
+        fullCopy = tree.copy();
+        tree.store();
+        assertNodesMatch(fullCopy, tree.getNodesAsArray());
+        assertNodesMatch(fullCopy, tree.getStoredNodes());
+
+        // and a restore without edits keeps them
+        tree.restore();
+        assertNodesMatch(fullCopy, tree.getNodesAsArray());
+    }
+
+    @Test
+    public void testFirstStoreCopiesAllTips() throws Exception {
+        // edits before the first store are not journaled, the first store copies all tips instead
+        JournaledTree tree = createTree();
+        editAttachmentTime(tree);
+        editTipTime(tree);
+        QuasiSpeciesTree fullCopy = tree.copy();
+        tree.store();
+        assertNodesMatch(fullCopy, tree.getStoredNodes());
+    }
+}
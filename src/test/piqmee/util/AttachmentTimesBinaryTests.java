@@ -0,0 +1,134 @@
+package test.piqmee.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import beast.base.core.Description;
+import piqmee.util.AttachmentTimesBinaryReader;
+import piqmee.util.AttachmentTimesBinaryWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+@Description("Test writing and reading the binary attachment time traces")
+public class AttachmentTimesBinaryTests {
+
+    private static final String[] LABELS = new String[] {"tree_t0_0", "tree_t0_1", "tree_t0_2"};
+
+    private static final double[][] RECORDS = new double[][] {
+            {3.5, 2.25, 0.125},
+            {3.5, 2.25, 0.125},
+            {3.75, 2.25, 1e-12},
+            {4.0, -0.0, Double.MIN_VALUE}};
+
+    private File writeTrace(boolean compress) throws Exception {
+        File file = File.createTempFile("attachmentTimes", ".bin");
+        file.deleteOnExit();
+        AttachmentTimesBinaryWriter writer = new AttachmentTimesBinaryWriter(file.getPath(), LABELS, compress);
+        for (int i = 0; i < RECORDS.length; i++)
+            writer.write(1000L * i, RECORDS[i], RECORDS[i].length);
+        writer.close();
+        return file;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        for (boolean compress : new boolean[] {false, true}) {
+            AttachmentTimesBinaryReader reader = new AttachmentTimesBinaryReader(writeTrace(compress).getPath());
+            assertArrayEquals(LABELS, reader.getLabels());
+            for (int i = 0; i < RECORDS.length; i++) {
+                assertTrue(reader.next());
+                assertEquals(1000L * i, reader.getSample());
+                assertEquals(RECORDS[i].length, reader.getValueCount());
+                // bitwise equality, the encoding is lossless
+                assertArrayEquals(RECORDS[i], Arrays.copyOf(reader.getValues(), reader.getValueCount()), 0.0);
+                assertEquals(Double.doubleToRawLongBits(RECORDS[i][1]), Double.doubleToRawLongBits(reader.getValues()[1]));
+            }
+            assertFalse(reader.next());
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testUnchangedValuesTakeOneByte() throws Exception {
+        File file = File.createTempFile("attachmentTimes", ".bin");
+        file.deleteOnExit();
+        AttachmentTimesBinaryWriter writer = new AttachmentTimesBinaryWriter(file.getPath(), LABELS, false);
+        writer.write(0, RECORDS[0], RECORDS[0].length);
+        long firstLength = file.length();
+        writer.write(1000, RECORDS[1], RECORDS[1].length);
+        writer.close();
+
+        // the second record repeats the first: length, sample, count, flag and one byte per value
+        assertEquals(4 + 8 + 4 + 1 + LABELS.length, file.length() - firstLength);
+    }
+
+    @Test
+    public void testChangedValuesTakeAtMostNineBytes() throws Exception {
+        File file = File.createTempFile("attachmentTimes", ".bin");
+        file.deleteOnExit();
+        AttachmentTimesBinaryWriter writer = new AttachmentTimesBinaryWriter(file.getPath(), LABELS, false);
+        writer.write(0, RECORDS[0], RECORDS[0].length);
+        long firstLength = file.length();
+        // flipping the highest and the lowest bit leaves no zero byte in the XOR
+        double[] changed = new double[RECORDS[0].length];
+        for (int i = 0; i < changed.length; i++)
+            changed[i] = Double.longBitsToDouble(Double.doubleToRawLongBits(RECORDS[0][i]) ^ 0x8000000000000001L);
+        writer.write(1000, changed, changed.length);
+        writer.close();
+
+        assertEquals(4 + 8 + 4 + 1 + 9 * LABELS.length, file.length() - firstLength);
+        AttachmentTimesBinaryReader reader = new AttachmentTimesBinaryReader(file.getPath());
+        assertTrue(reader.next());
+        assertTrue(reader.next());
+        assertArrayEquals(changed, Arrays.copyOf(reader.getValues(), reader.getValueCount()), 0.0);
+        reader.close();
+    }
+
+    @Test
+    public void testAppendOnResume() throws Exception {
+        for (boolean compress : new boolean[] {false, true}) {
+            File file = File.createTempFile("attachmentTimes", ".bin");
+            file.deleteOnExit();
+            AttachmentTimesBinaryWriter writer = new AttachmentTimesBinaryWriter(file.getPath(), LABELS, compress, true);
+            writer.write(0, RECORDS[0], RECORDS[0].length);
+            writer.write(1000, RECORDS[1], RECORDS[1].length);
+            writer.close();
+            // a resumed run appends to the trace without a second header
+            writer = new AttachmentTimesBinaryWriter(file.getPath(), LABELS, compress, true);
+            writer.write(2000, RECORDS[2], RECORDS[2].length);
+            writer.write(3000, RECORDS[3], RECORDS[3].length);
+            writer.close();
+
+            AttachmentTimesBinaryReader reader = new AttachmentTimesBinaryReader(file.getPath());
+            assertArrayEquals(LABELS, reader.getLabels());
+            for (int i = 0; i < RECORDS.length; i++) {
+                assertTrue(reader.next());
+                assertEquals(1000L * i, reader.getSample());
+                assertArrayEquals(RECORDS[i], Arrays.copyOf(reader.getValues(), reader.getValueCount()), 0.0);
+            }
+            assertFalse(reader.next());
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testConversionToText() throws Exception {
+        AttachmentTimesBinaryReader reader = new AttachmentTimesBinaryReader(writeTrace(true).getPath());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bytes);
+        reader.toText(out);
+        out.flush();
+        reader.close();
+
+        String[] lines = bytes.toString().split(System.lineSeparator());
+        assertEquals(RECORDS.length + 1, lines.length);
+        assertEquals("Sample\ttree_t0_0\ttree_t0_1\ttree_t0_2\t", lines[0]);
+        // values are written as the text loggers print them
+        assertEquals("2000\t3.75\t2.25\t" + 1e-12 + "\t", lines[3]);
+    }
+}
@@ -0,0 +1,63 @@
+package test.piqmee.util;
+
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+import beast.base.core.Description;
+import piqmee.tree.QuasiSpeciesTree;
+import piqmee.util.DoubleFormatter;
+import piqmee.util.QuasiSpeciesNodeTreeLogger;
+import test.piqmee.QuasiSpeciesTestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+@Description("Test the reused-buffer output of the quasi-species node tree logger")
+public class QuasiSpeciesNodeTreeLoggerTests {
+
+    private String log(QuasiSpeciesNodeTreeLogger logger, long sample) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bytes);
+        logger.log(sample, out);
+        out.flush();
+        return bytes.toString();
+    }
+
+    @Test
+    public void testFastOutputMatchesSortedNewick() throws Exception {
+        String[] sequences = new String[] {"A", "C", "G", "T", "T", "T", "T"};
+        QuasiSpeciesTree tree = QuasiSpeciesTestCase.setTreeFromFullNewick(
+                "(((t3:1.,t4:1.):2.0,(t5:1.5,t6:0.5):0.5):1.0,((t0:1.5,t1:0.5):1.,t2:0.5):1.5);", sequences);
+
+        QuasiSpeciesNodeTreeLogger logger = new QuasiSpeciesNodeTreeLogger();
+        logger.initByName("tree", tree);
+        QuasiSpeciesNodeTreeLogger fastLogger = new QuasiSpeciesNodeTreeLogger();
+        fastLogger.initByName("tree", tree, "fastOutput", true);
+
+        assertEquals(log(logger, 1000), log(fastLogger, 1000));
+        // buffers are reused by the next sample
+        assertEquals(log(logger, 2000), log(fastLogger, 2000));
+    }
+
+    @Test
+    public void testDoubleFormatter() throws Exception {
+        DoubleFormatter formatter = new DoubleFormatter(3);
+        StringBuilder sb = new StringBuilder();
+
+        formatter.append(sb, 1.23456).append(' ');
+        formatter.append(sb, 0.0004).append(' ');
+        formatter.append(sb, -2.0506).append(' ');
+        formatter.append(sb, -0.0001).append(' ');
+        formatter.append(sb, 12.05);
+        assertEquals("1.235 0.000 -2.051 0.000 12.050", sb.toString());
+
+        // values too large to round exactly and full precision are written as by append(double)
+        sb.setLength(0);
+        formatter.append(sb, 1e300).append(' ');
+        new DoubleFormatter(-1).append(sb, 0.1);
+        assertEquals("1.0E300 0.1", sb.toString());
+
+        sb.setLength(0);
+        new DoubleFormatter(0).append(sb, 2.5);
+        assertEquals("3", sb.toString());
+    }
+}